@@ -0,0 +1,206 @@
+package bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Write syscalls and TCP segments per second on the server while a few
+ * students draw, with and without batched flushing (--flush-ms).
+ *
+ * Usage:
+ *   java -cp out bench.BroadcastFlushBenchmark [clients] [seconds] [segments/s per drawer]
+ *
+ * Each configuration runs the server in a child JVM so that its write
+ * syscalls can be read from /proc/&lt;pid&gt;/io. Segments come from the
+ * host-wide Tcp OutSegs counter in /proc/net/snmp, so they include the ACKs
+ * the fake clients send back; run on an otherwise idle machine. Both numbers
+ * are Linux only.
+ */
+public class BroadcastFlushBenchmark {
+
+    private static final int DRAWERS = 4;
+    // Drawers send a burst every SEND_INTERVAL_MS, like mouseDragged events
+    private static final int SEND_INTERVAL_MS = 10;
+
+    private static final String[][] CONFIGS = {
+            {"threads", "0"}, {"threads", "5"},
+            {"nio", "0"}, {"nio", "5"},
+    };
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int rate = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        System.out.printf("%d receivers, %d drawers at %d DRAW/s each, %d s per run%n",
+                clients, DRAWERS, rate, seconds);
+        System.out.printf("%-8s %9s %16s %16s %14s%n",
+                "engine", "flush-ms", "write calls/s", "TCP segments/s", "received MB/s");
+        for (String[] config : CONFIGS) {
+            run(config[0], Integer.parseInt(config[1]), clients, seconds, rate);
+        }
+        System.exit(0);
+    }
+
+    private static void run(String engine, int flushMillis, int clients, int seconds, int rate)
+            throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "server.WhiteboardServer", "--port=" + port, "--engine=" + engine,
+                "--flush-ms=" + flushMillis);
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        Process server = pb.start();
+        try {
+            waitForPort(port);
+
+            Drainer drainer = new Drainer();
+            Thread drainThread = new Thread(drainer, "bench-drainer");
+            drainThread.setDaemon(true);
+            drainThread.start();
+
+            List<SocketChannel> open = new ArrayList<>();
+            for (int i = 0; i < clients + DRAWERS; i++) {
+                SocketChannel ch = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+                writeFully(ch, "JOIN|bot" + i + "\n");
+                ch.configureBlocking(false);
+                drainer.add(ch);
+                open.add(ch);
+            }
+            while (drainer.millisSinceLastRead() < 500) {
+                Thread.sleep(50);
+            }
+
+            List<Thread> drawers = new ArrayList<>();
+            long end = System.currentTimeMillis() + seconds * 1000L + 1000;
+            for (int d = 0; d < DRAWERS; d++) {
+                SocketChannel ch = open.get(d);
+                Thread t = new Thread(() -> draw(ch, rate, end), "bench-drawer-" + d);
+                t.setDaemon(true);
+                t.start();
+                drawers.add(t);
+            }
+
+            // One second of warm-up, then measure
+            Thread.sleep(1000);
+            long writes0 = writeSyscalls(server.pid());
+            long segs0 = tcpOutSegments();
+            long bytes0 = drainer.bytesRead();
+            long t0 = System.nanoTime();
+            Thread.sleep(seconds * 1000L);
+            long writes1 = writeSyscalls(server.pid());
+            long segs1 = tcpOutSegments();
+            long bytes1 = drainer.bytesRead();
+            double secs = (System.nanoTime() - t0) / 1e9;
+
+            for (Thread t : drawers) {
+                t.join();
+            }
+            System.out.printf("%-8s %9d %16s %16s %14.2f%n", engine, flushMillis,
+                    perSecond(writes0, writes1, secs), perSecond(segs0, segs1, secs),
+                    (bytes1 - bytes0) / secs / (1024 * 1024));
+            for (SocketChannel ch : open) {
+                ch.close();
+            }
+        } finally {
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    // Short DRAW segments, SEND_INTERVAL_MS apart, until end
+    private static void draw(SocketChannel ch, int rate, long end) {
+        int perBurst = Math.max(1, rate * SEND_INTERVAL_MS / 1000);
+        int x = 300, y = 300;
+        StringBuilder sb = new StringBuilder();
+        try {
+            while (System.currentTimeMillis() < end) {
+                sb.setLength(0);
+                for (int i = 0; i < perBurst; i++) {
+                    int nx = x + 2, ny = y + 1;
+                    sb.append("DRAW|").append(x).append('|').append(y).append('|')
+                            .append(nx).append('|').append(ny).append("|-16777216|3.0\n");
+                    x = nx % 800;
+                    y = ny % 600;
+                }
+                writeFully(ch, sb.toString());
+                Thread.sleep(SEND_INTERVAL_MS);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void writeFully(SocketChannel ch, String s) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+    }
+
+    private static String perSecond(long before, long after, double secs) {
+        if (before < 0 || after < 0) return "n/a";
+        return String.format("%.0f", (after - before) / secs);
+    }
+
+    // syscw from /proc/<pid>/io, or -1 if unavailable
+    private static long writeSyscalls(long pid) {
+        try (BufferedReader r = Files.newBufferedReader(Paths.get("/proc", String.valueOf(pid), "io"))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.startsWith("syscw:")) {
+                    return Long.parseLong(line.substring(6).trim());
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {}
+        return -1;
+    }
+
+    // Tcp OutSegs from /proc/net/snmp, or -1 if unavailable
+    private static long tcpOutSegments() {
+        Path snmp = Paths.get("/proc/net/snmp");
+        try {
+            List<String> lines = Files.readAllLines(snmp);
+            for (int i = 0; i + 1 < lines.size(); i++) {
+                if (!lines.get(i).startsWith("Tcp:") || !lines.get(i + 1).startsWith("Tcp:")) continue;
+                String[] names = lines.get(i).split("\\s+");
+                String[] values = lines.get(i + 1).split("\\s+");
+                for (int k = 0; k < names.length; k++) {
+                    if (names[k].equals("OutSegs")) {
+                        return Long.parseLong(values[k]);
+                    }
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {}
+        return -1;
+    }
+
+    private static void waitForPort(int port) throws InterruptedException {
+        while (true) {
+            try (Socket probe = new Socket("127.0.0.1", port)) {
+                probe.setSoLinger(true, 0);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Bytes on the wire with and without DEFLATE, and what the compression costs
+ * the server, for a room of students drawing.
+ *
+ * Usage:
+ *   java -cp out bench.CompressionBenchmark [receivers] [seconds]
+ *
+ * The server runs in a child JVM with --compression=always (the benchmark
+ * connects over loopback, which --compression=auto would leave alone). Half
+ * the receivers offer DEFLATE in JOIN, half do not; a few senders draw
+ * strokes and move their cursor like the client does. The ratio and CPU time
+ * come from the "Compression for ..." line the server prints for every
+ * compressed connection when it closes.
+ */
+public class CompressionBenchmark {
+
+    private static final Pattern SUMMARY =
+            Pattern.compile("Compression for .*: (\\d+) KB -> (\\d+) KB .*, (\\d+) ms deflating");
+
+    public static void main(String[] args) throws Exception {
+        int receivers = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        System.out.printf("%d receivers (half compressed), 4 senders drawing, %d s per run%n",
+                receivers, seconds);
+        System.out.printf("%-8s %14s %14s %8s %16s%n",
+                "format", "plain KB/s", "deflate KB/s", "ratio", "deflate ms/MB");
+        run(false, receivers, seconds);
+        run(true, receivers, seconds);
+        System.exit(0);
+    }
+
+    private static void run(boolean binary, int receivers, int seconds) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "server.WhiteboardServer", "--port=" + port, "--compression=always");
+        pb.redirectErrorStream(true);
+        Process server = pb.start();
+        long[] summary = new long[3];
+        Thread log = new Thread(() -> collect(server, summary), "bench-server-log");
+        log.setDaemon(true);
+        log.start();
+        try {
+            waitForPort(port);
+
+            Drainer plain = new Drainer();
+            Drainer deflated = new Drainer();
+            for (Drainer d : new Drainer[]{plain, deflated}) {
+                Thread t = new Thread(d, "bench-drainer");
+                t.setDaemon(true);
+                t.start();
+            }
+            String format = binary ? "|BIN" : "";
+            List<SocketChannel> open = new ArrayList<>();
+            for (int i = 0; i < receivers; i++) {
+                boolean compressed = i % 2 == 1;
+                SocketChannel ch = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+                writeFully(ch, "JOIN|bot" + i + format + "|USERS" + (compressed ? "|DEFLATE" : "") + "\n");
+                ch.configureBlocking(false);
+                (compressed ? deflated : plain).add(ch);
+                open.add(ch);
+            }
+            while (plain.millisSinceLastRead() < 500) {
+                Thread.sleep(50);
+            }
+
+            long end = System.currentTimeMillis() + seconds * 1000L;
+            List<Thread> senders = new ArrayList<>();
+            for (int s = 0; s < 4; s++) {
+                SocketChannel ch = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+                writeFully(ch, "JOIN|pen" + s + "\n");
+                int seed = s;
+                Thread t = new Thread(() -> draw(ch, "pen" + seed, new Random(seed), end), "bench-sender-" + s);
+                t.setDaemon(true);
+                t.start();
+                senders.add(t);
+                open.add(ch);
+            }
+
+            long plain0 = plain.bytesRead();
+            long deflated0 = deflated.bytesRead();
+            long t0 = System.nanoTime();
+            for (Thread t : senders) {
+                t.join();
+            }
+            Thread.sleep(200);
+            double secs = (System.nanoTime() - t0) / 1e9;
+            int half = receivers / 2;
+            double plainRate = (plain.bytesRead() - plain0) / secs / 1024 / (receivers - half);
+            double deflatedRate = (deflated.bytesRead() - deflated0) / secs / 1024 / half;
+
+            for (SocketChannel ch : open) {
+                ch.close();
+            }
+            // The server reports each compressed connection as it closes
+            long deadline = System.currentTimeMillis() + 2000;
+            while (System.currentTimeMillis() < deadline) {
+                synchronized (summary) {
+                    if (summary[0] >= half) break;
+                }
+                Thread.sleep(50);
+            }
+            double msPerMb;
+            synchronized (summary) {
+                msPerMb = summary[1] == 0 ? 0 : summary[2] * 1024.0 / summary[1];
+            }
+            System.out.printf("%-8s %14.1f %14.1f %7.1fx %16.2f%n", binary ? "binary" : "text",
+                    plainRate, deflatedRate, plainRate / deflatedRate, msPerMb);
+        } finally {
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    // Strokes of 20-60 points in batches of 8, with a CURSOR per batch
+    private static void draw(SocketChannel ch, String name, Random rnd, long end) {
+        StringBuilder sb = new StringBuilder();
+        long strokeId = ((long) rnd.nextInt(1 << 30)) << 24;
+        int x = 200 + rnd.nextInt(400);
+        int y = 150 + rnd.nextInt(300);
+        try {
+            while (System.currentTimeMillis() < end) {
+                sb.setLength(0);
+                sb.append("STROKE_BEGIN|").append(strokeId).append('|').append(x).append('|').append(y)
+                        .append('|').append(0xFF38BDF8).append("|3.0\n");
+                int points = 20 + rnd.nextInt(40);
+                for (int i = 0; i < points; i += 8) {
+                    sb.append("STROKE_POINTS|").append(strokeId).append('|');
+                    for (int j = 0; j < 8; j++) {
+                        int dx = rnd.nextInt(7) - 3;
+                        int dy = rnd.nextInt(7) - 3;
+                        x += dx;
+                        y += dy;
+                        if (j > 0) sb.append(';');
+                        sb.append(dx).append(',').append(dy);
+                    }
+                    sb.append('\n');
+                    sb.append("CURSOR|").append(name).append('|').append(x).append('|').append(y).append('\n');
+                }
+                sb.append("STROKE_END|").append(strokeId++).append('\n');
+                writeFully(ch, sb.toString());
+                Thread.sleep(20);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Sum up the server's per-connection summaries: count, raw KB, ms
+    private static void collect(Process server, long[] summary) {
+        try (BufferedReader in = new BufferedReader(
+                new InputStreamReader(server.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                Matcher m = SUMMARY.matcher(line);
+                if (!m.matches()) continue;
+                synchronized (summary) {
+                    summary[0]++;
+                    summary[1] += Long.parseLong(m.group(1));
+                    summary[2] += Long.parseLong(m.group(3));
+                }
+            }
+        } catch (IOException ignored) {
+            // Server stopped
+        }
+    }
+
+    private static void writeFully(SocketChannel ch, String s) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+    }
+
+    private static void waitForPort(int port) throws InterruptedException {
+        while (true) {
+            try (Socket probe = new Socket("127.0.0.1", port)) {
+                probe.setSoLinger(true, 0);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package bench;
+
+import server.ServerConfig;
+import server.WhiteboardServer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares how many idle classroom connections each server mode can hold,
+ * and what they cost in threads and memory.
+ *
+ * Usage:
+ *   java -cp out bench.ConnectionScaleBenchmark                   (all modes, default steps)
+ *   java -cp out bench.ConnectionScaleBenchmark nio 100,500,2000  (one mode in this JVM)
+ *
+ * Modes: threads (platform thread per client), virtual (virtual thread per
+ * client, Java 21+) and nio. With no mode argument every mode is measured in
+ * its own child JVM, so that the numbers of one run do not leak into the next.
+ *
+ * The thread column counts platform threads only; virtual threads show up in
+ * the heap column instead.
+ */
+public class ConnectionScaleBenchmark {
+
+    private static final String DEFAULT_STEPS = "100,300,1000";
+    private static final String[] MODES = {"threads", "virtual", "nio"};
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0 || args[0].equals("all")) {
+            String steps = args.length > 1 ? args[1] : DEFAULT_STEPS;
+            printHeader();
+            for (String mode : MODES) {
+                runChild(mode, steps);
+            }
+            return;
+        }
+
+        String mode = args[0];
+        String steps = args.length > 1 ? args[1] : DEFAULT_STEPS;
+        if (args.length < 3 || !args[2].equals("--child")) {
+            printHeader();
+        }
+        measure(mode, steps);
+        System.exit(0);
+    }
+
+    private static void printHeader() {
+        System.out.printf("%-8s %8s %10s %10s %14s %14s%n",
+                "mode", "clients", "connected", "threads", "heap used MB", "est. stack MB");
+    }
+
+    private static void runChild(String mode, String steps) throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                ConnectionScaleBenchmark.class.getName(), mode, steps, "--child");
+        pb.redirectErrorStream(true);
+        Process p = pb.start();
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                // Server logs every join; only keep the result rows
+                if (line.startsWith(mode)) {
+                    System.out.println(line);
+                }
+            }
+        }
+        p.waitFor();
+    }
+
+    private static ServerConfig configFor(String mode) {
+        switch (mode) {
+            case "threads":
+                return new ServerConfig().setEngine(ServerConfig.Engine.THREADS);
+            case "virtual":
+                return new ServerConfig().setEngine(ServerConfig.Engine.THREADS)
+                        .setClientThreads(ServerConfig.ClientThreads.VIRTUAL);
+            case "nio":
+                return new ServerConfig().setEngine(ServerConfig.Engine.NIO);
+            default:
+                throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+    }
+
+    private static void measure(String mode, String steps) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        settle();
+        int baseThreads = threads.getThreadCount();
+        long baseHeap = memory.getHeapMemoryUsage().getUsed();
+
+        ServerConfig config = configFor(mode).setPort(port);
+        Thread server = new Thread(() -> WhiteboardServer.startServer(config), "WB-Server-Thread");
+        server.setDaemon(true);
+        server.start();
+        waitForPort(port);
+
+        Drainer drainer = new Drainer();
+        Thread drainThread = new Thread(drainer, "bench-drainer");
+        drainThread.setDaemon(true);
+        drainThread.start();
+
+        List<SocketChannel> open = new ArrayList<>();
+        for (String step : steps.split(",")) {
+            int target = Integer.parseInt(step.trim());
+            boolean failed = false;
+            while (open.size() < target) {
+                try {
+                    SocketChannel ch = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+                    ch.write(ByteBuffer.wrap(("JOIN|bot" + open.size() + "\n")
+                            .getBytes(StandardCharsets.UTF_8)));
+                    ch.configureBlocking(false);
+                    drainer.add(ch);
+                    open.add(ch);
+                } catch (IOException e) {
+                    failed = true;
+                    break;
+                }
+            }
+
+            long deadline = System.currentTimeMillis() + 30_000;
+            while (WhiteboardServer.clientCount() < open.size() &&
+                    System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            // Let the join broadcasts reach the clients before sampling
+            while (drainer.millisSinceLastRead() < 500 &&
+                    System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            settle();
+
+            int threadDelta = threads.getThreadCount() - baseThreads - 2; // server + drainer
+            long heapMb = (memory.getHeapMemoryUsage().getUsed() - baseHeap) / (1024 * 1024);
+            // Platform threads reserve their stack up front (1 MB by default on 64-bit)
+            long stackMb = Math.max(0, threadDelta);
+            System.out.printf("%-8s %8d %10d %10d %14d %14d%n",
+                    mode, target, WhiteboardServer.clientCount(),
+                    threadDelta, heapMb, stackMb);
+            if (failed) break;
+        }
+    }
+
+    private static void settle() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(200);
+        }
+    }
+
+    private static void waitForPort(int port) throws InterruptedException {
+        while (true) {
+            try (Socket probe = new Socket("127.0.0.1", port)) {
+                probe.setSoLinger(true, 0);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+    }
+}
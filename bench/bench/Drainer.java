@@ -0,0 +1,72 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Reads and discards everything the server sends to the fake clients. */
+class Drainer implements Runnable {
+    private final Selector selector;
+    private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer sink = ByteBuffer.allocateDirect(64 * 1024);
+    private final AtomicLong bytesRead = new AtomicLong();
+    private volatile long lastReadMillis = System.currentTimeMillis();
+
+    Drainer() throws IOException {
+        selector = Selector.open();
+    }
+
+    /** @param ch a connected channel in non-blocking mode */
+    void add(SocketChannel ch) {
+        pending.add(ch);
+        selector.wakeup();
+    }
+
+    long millisSinceLastRead() {
+        return System.currentTimeMillis() - lastReadMillis;
+    }
+
+    long bytesRead() {
+        return bytesRead.get();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                selector.select();
+                SocketChannel ch;
+                while ((ch = pending.poll()) != null) {
+                    ch.register(selector, SelectionKey.OP_READ);
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    sink.clear();
+                    lastReadMillis = System.currentTimeMillis();
+                    int n;
+                    try {
+                        n = ((SocketChannel) key.channel()).read(sink);
+                    } catch (IOException e) {
+                        // Closed by the benchmark between runs
+                        n = -1;
+                    }
+                    if (n < 0) {
+                        key.cancel();
+                    } else {
+                        bytesRead.addAndGet(n);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,555 @@
+package bench;
+
+import protocol.FieldReader;
+import protocol.MessageType;
+import server.WhiteboardServer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives a server with simulated students, for capacity planning, without
+ * opening a window.
+ *
+ * Usage:
+ *   java -cp out bench.LoadGenerator [--bots=200] [--seconds=30] [--profile=class]
+ *        [--draw-hz=N] [--cursor-hz=N] [--chat-every=S] [--chat-burst=N]
+ *        [--vote-every=S] [--room=name] [--attach=port] [--per-bot] [--verbose]
+ *
+ * By default the server is started in this JVM with
+ * {@link WhiteboardServer#startServer(int)} on a free port; --attach=port
+ * drives a server already running on this machine instead. The server's own
+ * log is hidden unless --verbose is given.
+ *
+ * Every bot joins over the text protocol and then, per its profile, draws
+ * DRAW segments of a random walk, moves its cursor, sends bursts of CHAT and
+ * votes in every poll it sees. The first bot to join is the teacher and
+ * opens a new poll every --vote-every seconds, which all the others answer
+ * at once. Profiles (each setting can be overridden):
+ *
+ *   idle      cursor 2/s
+ *   class     draw 10/s, cursor 10/s, a chat every 20 s, a poll every 30 s
+ *   scribble  draw 60/s, cursor 25/s
+ *   chat      draw 2/s, cursor 5/s, bursts of 5 chats every 5 s
+ *   storm     draw 5/s, cursor 5/s, a poll every 5 s
+ *
+ * Latency is measured end to end, from the sending bot's write to the
+ * receiving bot's read, on every DRAW, CHAT and POLL_CREATE another bot
+ * receives. All bots share this JVM's clock, so the send time travels in
+ * the message: in the low 24 bits of a DRAW's colour (microseconds, which
+ * wrap after 16 s), at the end of a CHAT and in the poll id.
+ */
+public class LoadGenerator {
+
+    // What each bot does
+    static final class Profile {
+        double drawHz;
+        double cursorHz;
+        int chatEverySeconds;
+        int chatBurst;
+        int voteEverySeconds;
+
+        static Profile named(String name) {
+            Profile p = new Profile();
+            switch (name) {
+                case "idle":
+                    p.cursorHz = 2;
+                    break;
+                case "class":
+                    p.drawHz = 10;
+                    p.cursorHz = 10;
+                    p.chatEverySeconds = 20;
+                    p.chatBurst = 1;
+                    p.voteEverySeconds = 30;
+                    break;
+                case "scribble":
+                    p.drawHz = 60;
+                    p.cursorHz = 25;
+                    break;
+                case "chat":
+                    p.drawHz = 2;
+                    p.cursorHz = 5;
+                    p.chatEverySeconds = 5;
+                    p.chatBurst = 5;
+                    break;
+                case "storm":
+                    p.drawHz = 5;
+                    p.cursorHz = 5;
+                    p.voteEverySeconds = 5;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown profile: " + name);
+            }
+            return p;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("draw %.0f/s, cursor %.0f/s, chat %s, polls %s", drawHz, cursorHz,
+                    chatEverySeconds == 0 ? "off" : chatBurst + " every " + chatEverySeconds + " s",
+                    voteEverySeconds == 0 ? "off" : "every " + voteEverySeconds + " s");
+        }
+    }
+
+    // Message types that carry a send time, in report order
+    private static final int[] TIMED = {MessageType.DRAW, MessageType.CHAT, MessageType.POLL_CREATE};
+
+    private static final LongAdder[] sent = new LongAdder[MessageType.COUNT];
+
+    static {
+        for (int i = 0; i < sent.length; i++) {
+            sent[i] = new LongAdder();
+        }
+    }
+
+    // Latencies and counts are recorded between these points: once every bot
+    // has joined and received the board and chat history, until the bots
+    // start to leave
+    private static volatile long measureFrom = Long.MAX_VALUE;
+    private static volatile long measureTo = Long.MAX_VALUE;
+
+    public static void main(String[] args) throws Exception {
+        int bots = 200;
+        int seconds = 30;
+        String profileName = "class";
+        String room = "";
+        int attach = 0;
+        boolean perBot = false;
+        boolean verbose = false;
+        List<String> overrides = new ArrayList<>();
+        for (String arg : args) {
+            String key = arg.startsWith("--") ? arg.substring(2) : arg;
+            String value = "";
+            int eq = key.indexOf('=');
+            if (eq >= 0) {
+                value = key.substring(eq + 1);
+                key = key.substring(0, eq);
+            }
+            switch (key) {
+                case "bots": bots = Integer.parseInt(value); break;
+                case "seconds": seconds = Integer.parseInt(value); break;
+                case "profile": profileName = value; break;
+                case "room": room = value; break;
+                case "attach": attach = Integer.parseInt(value); break;
+                case "per-bot": perBot = true; break;
+                case "verbose": verbose = true; break;
+                default: overrides.add(key + "=" + value); break;
+            }
+        }
+        Profile profile = Profile.named(profileName);
+        for (String o : overrides) {
+            String key = o.substring(0, o.indexOf('='));
+            String value = o.substring(o.indexOf('=') + 1);
+            switch (key) {
+                case "draw-hz": profile.drawHz = Double.parseDouble(value); break;
+                case "cursor-hz": profile.cursorHz = Double.parseDouble(value); break;
+                case "chat-every": profile.chatEverySeconds = Integer.parseInt(value); break;
+                case "chat-burst": profile.chatBurst = Integer.parseInt(value); break;
+                case "vote-every": profile.voteEverySeconds = Integer.parseInt(value); break;
+                default: throw new IllegalArgumentException("Unknown option: --" + key);
+            }
+        }
+
+        PrintStream report = System.out;
+        if (!verbose) {
+            // The server logs every join and leave
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+        int port = attach;
+        if (port == 0) {
+            try (ServerSocket probe = new ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+            int serverPort = port;
+            Thread server = new Thread(() -> WhiteboardServer.startServer(serverPort), "bench-server");
+            server.setDaemon(true);
+            server.start();
+        }
+        waitForPort(port);
+
+        report.printf("%d bots, profile %s (%s), %d s%n", bots, profileName, profile, seconds);
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+                    Thread t = new Thread(r, "bench-bot-sender");
+                    t.setDaemon(true);
+                    return t;
+                });
+        List<Bot> all = new ArrayList<>();
+        for (int i = 0; i < bots; i++) {
+            Bot bot = new Bot(i, port, room);
+            all.add(bot);
+            bot.awaitJoined();
+        }
+        // Let the last joins' state transfers drain
+        Thread.sleep(500);
+
+        long start = System.nanoTime();
+        measureFrom = start;
+        for (Bot bot : all) {
+            bot.schedule(scheduler, profile);
+        }
+        Thread.sleep(seconds * 1000L);
+        scheduler.shutdownNow();
+        // Whatever is still on its way counts if it arrives within a second
+        Thread.sleep(1000);
+        measureTo = System.nanoTime();
+        double elapsed = (measureTo - start) / 1e9;
+        for (Bot bot : all) {
+            bot.close();
+        }
+
+        report(report, all, elapsed, perBot);
+        System.exit(0);
+    }
+
+    // ---- Report ----
+
+    private static void report(PrintStream out, List<Bot> bots, double elapsed, boolean perBot) {
+        out.println();
+        out.printf("%-14s %10s %10s %12s %12s%n", "type", "sent", "received", "sent/s", "received/s");
+        long[] received = new long[MessageType.COUNT];
+        long bytes = 0;
+        for (Bot bot : bots) {
+            for (int t = 0; t < received.length; t++) {
+                received[t] += bot.received[t];
+            }
+            bytes += bot.bytes;
+        }
+        for (int t = 0; t < received.length; t++) {
+            long s = sent[t].sum();
+            if (s == 0 && received[t] == 0) continue;
+            out.printf("%-14s %10d %10d %12.1f %12.1f%n", MessageType.name(t), s, received[t],
+                    s / elapsed, received[t] / elapsed);
+        }
+        long total = Arrays.stream(received).sum();
+        out.printf("%-14s %10s %10d %12s %12.1f   (%.2f MB/s)%n", "total", "", total, "",
+                total / elapsed, bytes / elapsed / (1024 * 1024));
+
+        out.println();
+        out.printf("%-14s %10s %10s %10s %10s %10s%n",
+                "latency (ms)", "samples", "p50", "p99", "p99.9", "max");
+        for (int type : TIMED) {
+            Histogram merged = new Histogram();
+            for (Bot bot : bots) {
+                merged.add(bot.latency[type]);
+            }
+            if (merged.count() == 0) continue;
+            out.printf("%-14s %10d %10.2f %10.2f %10.2f %10.2f%n", MessageType.name(type), merged.count(),
+                    merged.percentile(0.50) / 1000.0, merged.percentile(0.99) / 1000.0,
+                    merged.percentile(0.999) / 1000.0, merged.max() / 1000.0);
+        }
+
+        // The spread between bots shows whether some fall behind the rest
+        double[] rates = new double[bots.size()];
+        long[] p99s = new long[bots.size()];
+        for (int i = 0; i < bots.size(); i++) {
+            Bot bot = bots.get(i);
+            rates[i] = Arrays.stream(bot.received).sum() / elapsed;
+            p99s[i] = bot.latency[MessageType.DRAW].percentile(0.99);
+        }
+        Arrays.sort(rates);
+        Arrays.sort(p99s);
+        out.println();
+        out.printf("per bot: received/s min %.0f, median %.0f, max %.0f; DRAW p99 median %.2f ms, worst %.2f ms%n",
+                rates[0], rates[rates.length / 2], rates[rates.length - 1],
+                p99s[p99s.length / 2] / 1000.0, p99s[p99s.length - 1] / 1000.0);
+
+        if (perBot) {
+            out.println();
+            out.printf("%-10s %12s %10s %10s %10s%n", "bot", "received/s", "p50 ms", "p99 ms", "p99.9 ms");
+            for (Bot bot : bots) {
+                Histogram h = new Histogram();
+                for (int type : TIMED) {
+                    h.add(bot.latency[type]);
+                }
+                out.printf("%-10s %12.0f %10.2f %10.2f %10.2f%n", bot.name,
+                        Arrays.stream(bot.received).sum() / elapsed, h.percentile(0.50) / 1000.0,
+                        h.percentile(0.99) / 1000.0, h.percentile(0.999) / 1000.0);
+            }
+        }
+    }
+
+    // ---- Bots ----
+
+    private static final class Bot {
+        final int id;
+        final Socket socket;
+        final Writer out;
+        volatile String name;
+        volatile boolean teacher = false;
+        // Set once the state transfer on join is complete
+        private boolean joined = false;
+
+        // Written by the reader thread only, read once it has stopped
+        final long[] received = new long[MessageType.COUNT];
+        long bytes = 0;
+        final Histogram[] latency = new Histogram[MessageType.COUNT];
+
+        // Sender state, touched by one scheduled task at a time per bot
+        private int x, y;
+        private int pollCount = 0;
+
+        Bot(int id, int port, String room) throws IOException {
+            this.id = id;
+            this.name = "bot" + id;
+            for (int type : TIMED) {
+                latency[type] = new Histogram();
+            }
+            socket = new Socket("127.0.0.1", port);
+            socket.setTcpNoDelay(true);
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            Random rnd = ThreadLocalRandom.current();
+            x = 100 + rnd.nextInt(1000);
+            y = 100 + rnd.nextInt(600);
+            Thread reader = new Thread(this::read, "bench-bot-" + id);
+            reader.setDaemon(true);
+            reader.start();
+            send("JOIN|" + name + "|USERS" + (room.isEmpty() ? "" : "|room=" + room));
+        }
+
+        synchronized void awaitJoined() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!joined && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+        }
+
+        void schedule(ScheduledExecutorService scheduler, Profile p) {
+            Random rnd = ThreadLocalRandom.current();
+            if (p.drawHz > 0) {
+                long period = (long) (1_000_000 / p.drawHz);
+                scheduler.scheduleAtFixedRate(this::draw, rnd.nextInt((int) period), period, TimeUnit.MICROSECONDS);
+            }
+            if (p.cursorHz > 0) {
+                long period = (long) (1_000_000 / p.cursorHz);
+                scheduler.scheduleAtFixedRate(this::cursor, rnd.nextInt((int) period), period, TimeUnit.MICROSECONDS);
+            }
+            if (p.chatEverySeconds > 0) {
+                long period = p.chatEverySeconds * 1000L;
+                int burst = p.chatBurst;
+                scheduler.scheduleAtFixedRate(() -> chat(burst), rnd.nextInt((int) period), period, TimeUnit.MILLISECONDS);
+            }
+            if (p.voteEverySeconds > 0 && teacher) {
+                long period = p.voteEverySeconds * 1000L;
+                scheduler.scheduleAtFixedRate(this::openPoll, period / 2, period, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void draw() {
+            Random rnd = ThreadLocalRandom.current();
+            int nx = Math.max(0, Math.min(1279, x + rnd.nextInt(11) - 5));
+            int ny = Math.max(0, Math.min(799, y + rnd.nextInt(11) - 5));
+            int stamp = 0xFF000000 | (int) (micros() & 0xFFFFFF);
+            send("DRAW|" + x + "|" + y + "|" + nx + "|" + ny + "|" + stamp + "|3.0");
+            x = nx;
+            y = ny;
+            sent[MessageType.DRAW].increment();
+        }
+
+        private void cursor() {
+            send("CURSOR|" + name + "|" + x + "|" + y);
+            sent[MessageType.CURSOR].increment();
+        }
+
+        private void chat(int burst) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < burst; i++) {
+                sb.append("CHAT|").append(name).append("|hello from ").append(name).append(' ')
+                        .append(System.nanoTime());
+                if (i < burst - 1) sb.append('\n');
+            }
+            send(sb.toString());
+            sent[MessageType.CHAT].add(burst);
+        }
+
+        private void openPoll() {
+            String pollId = "load" + System.nanoTime();
+            send("POLL_CREATE|" + name + "|" + pollId + "|Poll " + (++pollCount) + "?|A;B;C;D");
+            sent[MessageType.POLL_CREATE].increment();
+        }
+
+        private void vote(String pollId) {
+            send("POLL_VOTE|" + name + "|" + pollId + "|" + ThreadLocalRandom.current().nextInt(4));
+            sent[MessageType.POLL_VOTE].increment();
+        }
+
+        private void send(String lines) {
+            synchronized (out) {
+                try {
+                    out.write(lines);
+                    out.write('\n');
+                    out.flush();
+                } catch (IOException e) {
+                    // Closed at the end of the run, or dropped by the server
+                }
+            }
+        }
+
+        private void read() {
+            FieldReader fields = new FieldReader();
+            try (BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    long now = System.nanoTime();
+                    int type = MessageType.of(line);
+                    switch (type) {
+                        case MessageType.USERNAME:
+                            name = line.substring("USERNAME|".length());
+                            break;
+                        case MessageType.ROLE:
+                            teacher = line.equals("ROLE|TEACHER");
+                            break;
+                        case MessageType.USERS:
+                            // Sent last in the state transfer on join
+                            synchronized (this) {
+                                joined = true;
+                                notifyAll();
+                            }
+                            break;
+                        case MessageType.POLL_CREATE: {
+                            // POLL_CREATE|username|pollId|question|options
+                            FieldReader f = fields.reset(line);
+                            f.skip();
+                            String pollId = f.nextString();
+                            if (now >= measureFrom) {
+                                if (pollId.startsWith("load")) {
+                                    latency[type].record(now - Long.parseLong(pollId.substring(4)));
+                                }
+                                vote(pollId);
+                            }
+                            break;
+                        }
+                        default:
+                            break;
+                    }
+                    if (now < measureFrom || now > measureTo) continue;
+                    received[type]++;
+                    bytes += line.length() + 1;
+                    if (type == MessageType.DRAW) {
+                        // DRAW|x1|y1|x2|y2|rgb|stroke
+                        FieldReader f = fields.reset(line);
+                        f.skip();
+                        f.skip();
+                        f.skip();
+                        f.skip();
+                        long sentMicros = f.nextColor() & 0xFFFFFF;
+                        long micros = (micros() - sentMicros) & 0xFFFFFF;
+                        latency[type].record(micros * 1000);
+                    } else if (type == MessageType.CHAT) {
+                        int space = line.lastIndexOf(' ');
+                        try {
+                            latency[type].record(now - Long.parseLong(line.substring(space + 1)));
+                        } catch (NumberFormatException e) {
+                            // Not one of ours
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // Closed at the end of the run
+            }
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static long micros() {
+        return System.nanoTime() / 1000;
+    }
+
+    // ---- Latency histogram ----
+
+    /**
+     * Latencies in nanoseconds, kept in microsecond buckets with 16 steps per
+     * power of two, so every percentile is within about 6 % of the true
+     * value. Not thread-safe: each bot records into its own.
+     */
+    static final class Histogram {
+        // 0-31 us exactly, then 16 buckets for each power of two up to 2^40 us
+        private static final int LINEAR = 32;
+        private final long[] counts = new long[LINEAR + 36 * 16];
+        private long count = 0;
+        private long max = 0;
+
+        void record(long nanos) {
+            long v = Math.max(0, nanos / 1000);
+            counts[index(v)]++;
+            count++;
+            max = Math.max(max, v);
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            count += other.count;
+            max = Math.max(max, other.max);
+        }
+
+        long count() {
+            return count;
+        }
+
+        /** In microseconds. */
+        long max() {
+            return max;
+        }
+
+        /** Upper bound in microseconds of the bucket holding the {@code p}-th fraction. */
+        long percentile(double p) {
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(p * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(max, upper(i));
+            }
+            return max;
+        }
+
+        private static int index(long v) {
+            if (v < LINEAR) return (int) v;
+            int e = Math.min(40, 63 - Long.numberOfLeadingZeros(v));
+            int sub = (int) (v >>> (e - 4)) & 15;
+            return LINEAR + (e - 5) * 16 + sub;
+        }
+
+        private static long upper(int i) {
+            if (i < LINEAR) return i;
+            int e = (i - LINEAR) / 16 + 5;
+            int sub = (i - LINEAR) % 16;
+            return ((16L + sub + 1) << (e - 4)) - 1;
+        }
+    }
+
+    private static void waitForPort(int port) throws InterruptedException {
+        while (true) {
+            try (Socket probe = new Socket("127.0.0.1", port)) {
+                probe.setSoLinger(true, 0);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package bench;
+
+import protocol.FieldReader;
+import protocol.MessageType;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Time and garbage per incoming text line: the old startsWith chain with
+ * split("\\|") and parseInt/parseFloat, against MessageType plus FieldReader.
+ *
+ * Usage:
+ *   java -cp out bench.MessageParseBenchmark [lines]
+ *
+ * The lines are what a drawing class sends most: DRAW segments, CURSOR moves
+ * and STROKE_BEGIN / STROKE_END, with a chat line now and then. Both paths
+ * extract the same fields and fold them into a checksum that has to match.
+ * Allocation is read from the JVM's per-thread counter.
+ */
+public class MessageParseBenchmark {
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        String[] lines = lines(n, new Random(42));
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        FieldReader f = new FieldReader();
+
+        double[] ns = new double[2];
+        double[] bytes = new double[2];
+        long[] sums = new long[2];
+        // First rounds are warm-up; keep the last one
+        for (int round = 0; round < 20; round++) {
+            for (int path = 0; path < 2; path++) {
+                long a0 = threads.getThreadAllocatedBytes(tid);
+                long t0 = System.nanoTime();
+                long sum = path == 0 ? runSplit(lines) : runFields(lines, f);
+                long t1 = System.nanoTime();
+                long a1 = threads.getThreadAllocatedBytes(tid);
+                ns[path] = (double) (t1 - t0) / n;
+                bytes[path] = (double) (a1 - a0) / n;
+                sums[path] = sum;
+            }
+        }
+        if (sums[0] != sums[1]) {
+            throw new IllegalStateException("paths disagree: " + sums[0] + " vs " + sums[1]);
+        }
+
+        System.out.printf("lines: %d%n", n);
+        System.out.printf("%-22s %10s %14s%n", "", "ns/line", "bytes/line");
+        System.out.printf("%-22s %10.1f %14.1f%n", "startsWith + split", ns[0], bytes[0]);
+        System.out.printf("%-22s %10.1f %14.1f%n", "MessageType + fields", ns[1], bytes[1]);
+        System.out.printf("%.1fx faster%n", ns[0] / ns[1]);
+    }
+
+    private static String[] lines(int n, Random rnd) {
+        String[] lines = new String[n];
+        long strokeId = 1L << 40;
+        int x = 600, y = 400;
+        for (int i = 0; i < n; i++) {
+            int nx = Math.max(0, x + rnd.nextInt(13) - 6);
+            int ny = Math.max(0, y + rnd.nextInt(13) - 6);
+            int kind = rnd.nextInt(100);
+            if (kind < 50) {
+                lines[i] = "DRAW|" + x + "|" + y + "|" + nx + "|" + ny + "|" + 0xFF38BDF8 + "|" + 3.0f;
+            } else if (kind < 90) {
+                lines[i] = "CURSOR|student" + rnd.nextInt(40) + "|" + nx + "|" + ny;
+            } else if (kind < 95) {
+                lines[i] = "STROKE_BEGIN|" + strokeId + "|" + nx + "|" + ny + "|" + 0xFFF87171 + "|" + 2.5f;
+            } else if (kind < 99) {
+                lines[i] = "STROKE_END|" + strokeId++;
+            } else {
+                lines[i] = "CHAT|student" + rnd.nextInt(40) + "|looks good";
+            }
+            x = nx;
+            y = ny;
+        }
+        return lines;
+    }
+
+    // One method per path, so each loop is compiled on its own
+    private static long runSplit(String[] lines) {
+        long sum = 0;
+        for (String line : lines) {
+            sum += parseSplit(line);
+        }
+        return sum;
+    }
+
+    private static long runFields(String[] lines, FieldReader f) {
+        long sum = 0;
+        for (String line : lines) {
+            sum += parseFields(line, f);
+        }
+        return sum;
+    }
+
+    // Same work as WhiteboardClient.handleServerMessage did before MessageType
+    private static long parseSplit(String msg) {
+        if (msg.startsWith("CHAT|")) {
+            return msg.split("\\|", 3)[1].length();
+        } else if (msg.startsWith("DRAW|")) {
+            String[] parts = msg.split("\\|");
+            return Integer.parseInt(parts[1]) + Integer.parseInt(parts[2]) + Integer.parseInt(parts[3]) +
+                    Integer.parseInt(parts[4]) + Integer.parseInt(parts[5]) + (long) Float.parseFloat(parts[6]);
+        } else if (msg.startsWith("STROKE_POINTS|")) {
+            return 0;
+        } else if (msg.startsWith("STROKE_BEGIN|")) {
+            String[] parts = msg.split("\\|");
+            return Long.parseLong(parts[1]) + Integer.parseInt(parts[2]) + Integer.parseInt(parts[3]) +
+                    Integer.parseInt(parts[4]) + (long) Float.parseFloat(parts[5]);
+        } else if (msg.startsWith("STROKE_END|")) {
+            return Long.parseLong(msg.split("\\|")[1]);
+        } else if (msg.startsWith("CLEAR|") || msg.startsWith("BOARD_BEGIN|") ||
+                msg.startsWith("BOARD_CHUNK|") || msg.startsWith("BOARD_END|")) {
+            return 0;
+        } else if (msg.startsWith("CURSOR|")) {
+            String[] parts = msg.split("\\|");
+            return parts[1].length() + Integer.parseInt(parts[2]) + Integer.parseInt(parts[3]);
+        }
+        return 0;
+    }
+
+    private static long parseFields(String msg, FieldReader f) {
+        switch (MessageType.of(msg)) {
+            case MessageType.CHAT:
+                return f.reset(msg).nextString().length();
+            case MessageType.DRAW:
+                f.reset(msg);
+                return f.nextInt() + f.nextInt() + f.nextInt() + f.nextInt() + f.nextColor() +
+                        (long) f.nextFloat();
+            case MessageType.STROKE_BEGIN:
+                f.reset(msg);
+                return f.nextLong() + f.nextInt() + f.nextInt() + f.nextColor() + (long) f.nextFloat();
+            case MessageType.STROKE_END:
+                return f.reset(msg).nextLong();
+            case MessageType.CURSOR:
+                f.reset(msg);
+                return f.nextString().length() + f.nextInt() + f.nextInt();
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Join latency and broadcast throughput while several students send at once
+ * and others keep joining and leaving the same room.
+ *
+ * Usage:
+ *   java -cp out bench.RegistryContentionBenchmark [clients] [senders] [seconds]
+ *
+ * The server runs in a child JVM with --cursor-hz=0, so every CURSOR is
+ * broadcast by the thread that read it. While the senders flood the room, one
+ * thread joins, waits for the end of the board transfer and disconnects, over
+ * and over; its JOIN-to-BOARD_END time shows how long a join waits behind the
+ * broadcasts in progress.
+ */
+public class RegistryContentionBenchmark {
+
+    private static final String[] ENGINES = {"threads", "nio"};
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int senders = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        System.out.printf("%d receivers, %d senders flooding CURSOR, %d s per run%n",
+                clients, senders, seconds);
+        System.out.printf("%-8s %8s %12s %12s %14s%n",
+                "engine", "joins/s", "join p50 ms", "join p99 ms", "received MB/s");
+        for (String engine : ENGINES) {
+            run(engine, clients, senders, seconds);
+        }
+        System.exit(0);
+    }
+
+    private static void run(String engine, int clients, int senders, int seconds) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "server.WhiteboardServer", "--port=" + port, "--engine=" + engine,
+                "--io-threads=4", "--cursor-hz=0", "--flush-ms=0");
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        Process server = pb.start();
+        try {
+            waitForPort(port);
+
+            Drainer drainer = new Drainer();
+            Thread drainThread = new Thread(drainer, "bench-drainer");
+            drainThread.setDaemon(true);
+            drainThread.start();
+
+            List<SocketChannel> open = new ArrayList<>();
+            for (int i = 0; i < clients + senders; i++) {
+                SocketChannel ch = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+                writeFully(ch, "JOIN|bot" + i + "\n");
+                ch.configureBlocking(false);
+                drainer.add(ch);
+                open.add(ch);
+            }
+            while (drainer.millisSinceLastRead() < 500) {
+                Thread.sleep(50);
+            }
+
+            long end = System.currentTimeMillis() + seconds * 1000L;
+            List<Thread> threads = new ArrayList<>();
+            for (int s = 0; s < senders; s++) {
+                SocketChannel ch = open.get(s);
+                String name = "bot" + s;
+                Thread t = new Thread(() -> flood(ch, name, end), "bench-sender-" + s);
+                t.setDaemon(true);
+                t.start();
+                threads.add(t);
+            }
+
+            List<Long> joinNanos = new ArrayList<>();
+            long bytes0 = drainer.bytesRead();
+            long t0 = System.nanoTime();
+            int n = 0;
+            while (System.currentTimeMillis() < end) {
+                joinNanos.add(joinAndLeave(port, "churn" + (n++ % 10)));
+            }
+            double secs = (System.nanoTime() - t0) / 1e9;
+            long bytes1 = drainer.bytesRead();
+            for (Thread t : threads) {
+                t.join();
+            }
+
+            Collections.sort(joinNanos);
+            System.out.printf("%-8s %8.0f %12.2f %12.2f %14.2f%n", engine,
+                    joinNanos.size() / secs, percentile(joinNanos, 0.50), percentile(joinNanos, 0.99),
+                    (bytes1 - bytes0) / secs / (1024 * 1024));
+            for (SocketChannel ch : open) {
+                ch.close();
+            }
+        } finally {
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    // Bursts of CURSOR lines, as fast as the socket takes them, until end
+    private static void flood(SocketChannel ch, String name, long end) {
+        StringBuilder sb = new StringBuilder();
+        int x = 0;
+        try {
+            while (System.currentTimeMillis() < end) {
+                sb.setLength(0);
+                for (int i = 0; i < 20; i++) {
+                    x = (x + 7) % 800;
+                    sb.append("CURSOR|").append(name).append('|').append(x).append("|300\n");
+                }
+                writeFully(ch, sb.toString());
+                Thread.yield();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Nanoseconds from sending JOIN to receiving BOARD_END
+    private static long joinAndLeave(int port, String name) throws IOException {
+        try (Socket s = new Socket("127.0.0.1", port)) {
+            s.setSoLinger(true, 0);
+            OutputStream out = s.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            long start = System.nanoTime();
+            out.write(("JOIN|" + name + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String line;
+            while ((line = in.readLine()) != null && !line.startsWith("BOARD_END|")) {
+                // USERNAME, ROLE, BOARD_LOCK, BOARD_BEGIN
+            }
+            return System.nanoTime() - start;
+        }
+    }
+
+    private static double percentile(List<Long> sorted, double p) {
+        if (sorted.isEmpty()) return 0;
+        int i = Math.min(sorted.size() - 1, (int) Math.ceil(p * sorted.size()) - 1);
+        return sorted.get(Math.max(0, i)) / 1e6;
+    }
+
+    private static void writeFully(SocketChannel ch, String s) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+    }
+
+    private static void waitForPort(int port) throws InterruptedException {
+        while (true) {
+            try (Socket probe = new Socket("127.0.0.1", port)) {
+                probe.setSoLinger(true, 0);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package bench;
+
+import protocol.BinaryCodec;
+import protocol.StrokePoints;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Bytes on the wire and decode cost of a DRAW segment, text vs binary, and
+ * what the same handwriting costs when sent as STROKE_* messages.
+ *
+ * Usage:
+ *   java -cp out bench.WireProtocolBenchmark [segments]
+ *
+ * The text path is the client's original split("\\|") + parseInt/parseFloat;
+ * the binary path is BinaryCodec.decodeDraw. Segments look like fast
+ * handwriting: small steps from the previous point, palette colours.
+ */
+public class WireProtocolBenchmark {
+
+    private static final int[] COLORS = {0xFF38BDF8, 0xFFF87171, 0xFFF9FAFC, 0xFF123456};
+    private static final int STROKE_LENGTH = 60;
+    // Points per STROKE_POINTS message, as in WhiteboardClient
+    private static final int BATCH = 32;
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        Random rnd = new Random(42);
+
+        String[] lines = new String[n];
+        byte[][] frames = new byte[n][];
+        long textBytes = 0;
+        long binaryBytes = 0;
+        int x = 600, y = 400;
+        for (int i = 0; i < n; i++) {
+            int nx = Math.max(0, x + rnd.nextInt(13) - 6);
+            int ny = Math.max(0, y + rnd.nextInt(13) - 6);
+            int color = COLORS[rnd.nextInt(COLORS.length)];
+            float stroke = 1 + rnd.nextInt(12);
+            lines[i] = "DRAW|" + x + "|" + y + "|" + nx + "|" + ny + "|" + color + "|" + stroke;
+            frames[i] = BinaryCodec.encodeDraw(x, y, nx, ny, color, stroke);
+            textBytes += lines[i].getBytes(StandardCharsets.UTF_8).length + 1;
+            binaryBytes += frames[i].length;
+            x = nx;
+            y = ny;
+        }
+
+        System.out.printf("segments: %d%n", n);
+        System.out.printf("text:   %6.1f bytes/segment%n", (double) textBytes / n);
+        System.out.printf("binary: %6.1f bytes/segment  (%.1fx smaller)%n",
+                (double) binaryBytes / n, (double) textBytes / binaryBytes);
+
+        long sink = 0;
+        double textNs = 0;
+        double binaryNs = 0;
+        // First rounds are warm-up; keep the last one
+        for (int round = 0; round < 5; round++) {
+            long t0 = System.nanoTime();
+            for (String line : lines) {
+                sink += parseText(line);
+            }
+            long t1 = System.nanoTime();
+            BinaryCodec.DrawOp op = new BinaryCodec.DrawOp();
+            for (byte[] frame : frames) {
+                BinaryCodec.decodeDraw(frame, op);
+                sink += op.x1 + op.y2 + op.argb + (int) op.stroke;
+            }
+            long t2 = System.nanoTime();
+            textNs = (double) (t1 - t0) / n;
+            binaryNs = (double) (t2 - t1) / n;
+        }
+        System.out.printf("text decode:   %6.1f ns/segment%n", textNs);
+        System.out.printf("binary decode: %6.1f ns/segment  (%.1fx faster)%n",
+                binaryNs, textNs / binaryNs);
+        if (sink == 42) System.out.println();
+
+        compareStrokes(lines, frames);
+    }
+
+    // Re-send the same points as strokes of STROKE_LENGTH segments, batched
+    // like WhiteboardClient does
+    private static void compareStrokes(String[] lines, byte[][] frames) {
+        long messages = 0;
+        long textBytes = 0;
+        long binaryBytes = 0;
+        int[] deltas = new int[2 * BATCH];
+        long strokeId = 1L << 40;
+        for (int start = 0; start < lines.length; start += STROKE_LENGTH) {
+            int end = Math.min(lines.length, start + STROKE_LENGTH);
+            BinaryCodec.DrawOp first = new BinaryCodec.DrawOp();
+            BinaryCodec.decodeDraw(frames[start], first);
+            String begin = "STROKE_BEGIN|" + strokeId + "|" + first.x1 + "|" + first.y1 + "|" +
+                    first.argb + "|" + first.stroke;
+            textBytes += begin.length() + 1;
+            binaryBytes += BinaryCodec.fromText(begin).length;
+            messages++;
+
+            int n = 0;
+            BinaryCodec.DrawOp seg = new BinaryCodec.DrawOp();
+            for (int i = start; i < end; i++) {
+                BinaryCodec.decodeDraw(frames[i], seg);
+                deltas[2 * n] = seg.x2 - seg.x1;
+                deltas[2 * n + 1] = seg.y2 - seg.y1;
+                n++;
+                if (n == BATCH || i == end - 1) {
+                    String pts = "STROKE_POINTS|" + strokeId + "|" + StrokePoints.format(deltas, n);
+                    textBytes += pts.length() + 1;
+                    binaryBytes += BinaryCodec.encodeStrokePoints(strokeId, deltas, n).length;
+                    messages++;
+                    n = 0;
+                }
+            }
+            String endMsg = "STROKE_END|" + strokeId;
+            textBytes += endMsg.length() + 1;
+            binaryBytes += BinaryCodec.encodeStrokeEnd(strokeId).length;
+            messages++;
+            strokeId++;
+        }
+        System.out.printf("strokes of %d segments: %d messages instead of %d (%.1fx fewer)%n",
+                STROKE_LENGTH, messages, lines.length, (double) lines.length / messages);
+        System.out.printf("  text:   %6.1f bytes/segment%n", (double) textBytes / lines.length);
+        System.out.printf("  binary: %6.1f bytes/segment%n", (double) binaryBytes / lines.length);
+    }
+
+    // Same work as WhiteboardClient.handleServerMessage does for DRAW
+    private static int parseText(String msg) {
+        String[] parts = msg.split("\\|");
+        int x1 = Integer.parseInt(parts[1]);
+        int y1 = Integer.parseInt(parts[2]);
+        int x2 = Integer.parseInt(parts[3]);
+        int y2 = Integer.parseInt(parts[4]);
+        int rgb = Integer.parseInt(parts[5]);
+        float stroke = Float.parseFloat(parts[6]);
+        return x1 + y2 + rgb + (int) stroke + x2 + y1;
+    }
+}
@@ -0,0 +1,109 @@
+package client;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DrawPanel#paintComponent} into an offscreen image, for boards of
+ * 10k, 100k and 1M line segments.
+ *
+ * repaint is the usual case: the lines are already on the panel's cached
+ * canvas and only the grid, the canvas and the cursors are painted.
+ * rebuild is what a resize or a late join costs: the canvas is thrown away
+ * and every line is stroked again. The panel width alternates by one pixel
+ * to force that through the public API.
+ *
+ * The board is built like a real one, from strokes of 20-60 connected
+ * segments in one colour and width.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xmx2g"})
+public class DrawPanelPaintBenchmark {
+
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 800;
+
+    @Param({"10000", "100000", "1000000"})
+    int lines;
+
+    private DrawPanel panel;
+    private BufferedImage image;
+    private Graphics2D g;
+    private boolean wide = false;
+
+    @Setup
+    public void setUp() {
+        panel = new DrawPanel();
+        panel.setSize(WIDTH, HEIGHT);
+        for (int i = 0; i < 5; i++) {
+            panel.updateUserCursor("student" + i, 100 + 200 * i, 300);
+        }
+
+        Random rnd = new Random(42);
+        Color[] colors = {new Color(56, 189, 248), Color.BLACK, new Color(239, 68, 68),
+                new Color(34, 197, 94)};
+        float[] widths = {2f, 3f, 5.5f, 12f};
+        panel.beginBatch();
+        int added = 0;
+        while (added < lines) {
+            Color color = colors[rnd.nextInt(colors.length)];
+            float width = widths[rnd.nextInt(widths.length)];
+            int x = rnd.nextInt(WIDTH);
+            int y = rnd.nextInt(HEIGHT);
+            int segments = Math.min(lines - added, 20 + rnd.nextInt(40));
+            for (int s = 0; s < segments; s++) {
+                int nx = Math.max(0, Math.min(WIDTH - 1, x + rnd.nextInt(11) - 5));
+                int ny = Math.max(0, Math.min(HEIGHT - 1, y + rnd.nextInt(11) - 5));
+                panel.addRemoteLine(x, y, nx, ny, color, width);
+                x = nx;
+                y = ny;
+            }
+            added += segments;
+        }
+        panel.endBatch();
+
+        image = new BufferedImage(WIDTH + 1, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        g = image.createGraphics();
+        // Build the cached canvas once so that repaint starts warm
+        panel.paintComponent(g);
+    }
+
+    @TearDown
+    public void tearDown() {
+        g.dispose();
+    }
+
+    @Benchmark
+    public BufferedImage repaint() {
+        panel.paintComponent(g);
+        return image;
+    }
+
+    @Benchmark
+    public BufferedImage rebuild() {
+        wide = !wide;
+        panel.setSize(wide ? WIDTH + 1 : WIDTH, HEIGHT);
+        panel.paintComponent(g);
+        return image;
+    }
+}
@@ -0,0 +1,88 @@
+package client;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.awt.Color;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one incoming DRAW or CURSOR line in
+ * {@link WhiteboardClient#handleServerMessage}: type lookup, field parsing
+ * and the call into the board. The board is a {@link DrawPanel} that only
+ * sums what it is given, so drawing is left out (see
+ * {@link DrawPanelPaintBenchmark} for that).
+ *
+ * The lines cycle through 1024 pre-built ones with realistic coordinates,
+ * colours and widths, so parsing is not measured on one constant string.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ServerMessageBenchmark {
+
+    private static final int LINES = 1024;
+
+    private SinkPanel board;
+    private WhiteboardClient client;
+    private final String[] draws = new String[LINES];
+    private final String[] cursors = new String[LINES];
+    private int next = 0;
+
+    /** Keeps what it is given from being optimised away, and nothing else. */
+    static final class SinkPanel extends DrawPanel {
+        long sum = 0;
+
+        @Override
+        public void addRemoteLine(int x1, int y1, int x2, int y2, Color color, float stroke) {
+            sum += x1 + y1 + x2 + y2 + color.getRGB() + Float.floatToIntBits(stroke);
+        }
+
+        @Override
+        public void updateUserCursor(String username, int x, int y) {
+            sum += username.length() + x + y;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        board = new SinkPanel();
+        client = new WhiteboardClient(board);
+        Random rnd = new Random(42);
+        int[] colors = {0xFF38BDF8, 0xFF000000, 0xFFEF4444, 0xFF22C55E, 0xFFF9FAFF};
+        String[] widths = {"2.0", "3.0", "5.5", "12.0"};
+        for (int i = 0; i < LINES; i++) {
+            int x = rnd.nextInt(1600);
+            int y = rnd.nextInt(900);
+            draws[i] = "DRAW|" + x + "|" + y + "|" + (x + rnd.nextInt(7) - 3) + "|" +
+                    (y + rnd.nextInt(7) - 3) + "|" + colors[rnd.nextInt(colors.length)] + "|" +
+                    widths[rnd.nextInt(widths.length)];
+            cursors[i] = "CURSOR|student" + rnd.nextInt(40) + "|" + x + "|" + y;
+        }
+    }
+
+    @Benchmark
+    public void draw(Blackhole bh) {
+        client.handleServerMessage(draws[next++ & (LINES - 1)]);
+        bh.consume(board.sum);
+    }
+
+    @Benchmark
+    public void cursor(Blackhole bh) {
+        client.handleServerMessage(cursors[next++ & (LINES - 1)]);
+        bh.consume(board.sum);
+    }
+}
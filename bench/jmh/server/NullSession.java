@@ -0,0 +1,47 @@
+package server;
+
+import protocol.WireMessage;
+
+/**
+ * A client that takes every message and writes nothing, so that a
+ * benchmark measures the room and not a socket. The bytes are still
+ * encoded, as a real writer would.
+ */
+final class NullSession extends ClientSession {
+
+    // Written by whichever thread broadcasts; only read to keep the JIT honest
+    long queuedBytes = 0;
+
+    NullSession(boolean binary) {
+        this.binary = binary;
+        this.userDeltas = true;
+    }
+
+    @Override
+    boolean enqueue(WireMessage msg) {
+        queuedBytes += encode(msg).length;
+        return true;
+    }
+
+    @Override
+    void startCompression() {
+    }
+
+    @Override
+    boolean isLoopback() {
+        return true;
+    }
+
+    @Override
+    int queuedMessages() {
+        return 0;
+    }
+
+    @Override
+    void requestClose() {
+    }
+
+    @Override
+    void close() {
+    }
+}
@@ -0,0 +1,93 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import protocol.WireMessage;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * POLL_VOTE handling while many students vote at once: {@link Room#handleMessage}
+ * down to {@link PollRegistry#vote}, with POLL_RESULTS throttled on a ticker
+ * as the server does by default.
+ *
+ * Every vote comes from a different username, so each one is counted; a
+ * fresh room and poll are set up for every iteration to keep the set of
+ * voters from growing without bound. Run with -t to change the number of
+ * voting threads, e.g. -t 1 for the uncontended cost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Threads(4)
+public class PollVoteBenchmark {
+
+    private static final String POLL_ID = "bench";
+
+    private final AtomicInteger threadIds = new AtomicInteger();
+    private ScheduledExecutorService ticker;
+    private Room room;
+
+    @State(Scope.Thread)
+    public static class Voter {
+        final NullSession session = new NullSession(false);
+        String prefix;
+        int next = 0;
+
+        @Setup
+        public void setUp(PollVoteBenchmark bench) {
+            prefix = "POLL_VOTE|t" + bench.threadIds.getAndIncrement() + "-";
+        }
+    }
+
+    @Setup
+    public void startTicker() {
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "WB-Tick");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Setup(Level.Iteration)
+    public void openPoll() {
+        room = new Room("bench", ticker, 0, 250, null);
+        NullSession teacher = new NullSession(false);
+        room.join(teacher, "teacher");
+        room.handleMessage(teacher,
+                WireMessage.ofText("POLL_CREATE|teacher|" + POLL_ID + "|Which one?|A;B;C;D"));
+        // A few students to receive POLL_RESULTS
+        for (int i = 0; i < 30; i++) {
+            room.join(new NullSession(i % 2 == 0), "student" + i);
+        }
+    }
+
+    @TearDown
+    public void stopTicker() {
+        ticker.shutdownNow();
+    }
+
+    @Benchmark
+    public void vote(Voter voter) {
+        int n = voter.next++;
+        room.handleMessage(voter.session,
+                WireMessage.ofText(voter.prefix + n + "|" + POLL_ID + "|" + (n & 3)));
+    }
+}
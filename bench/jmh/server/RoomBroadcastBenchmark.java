@@ -0,0 +1,76 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import protocol.WireMessage;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fan-out of one message to every client of a room, i.e. the work
+ * {@link Room#broadcast(WireMessage, ClientSession)} does for each DRAW,
+ * STROKE_POINTS or CURSOR a student sends. The clients are {@link NullSession}s,
+ * so the numbers are the room's own cost: iterating the registry, the queue
+ * checks in {@link ClientSession#send} and encoding the message once.
+ *
+ * Each invocation broadcasts a new {@link WireMessage}, as the server does,
+ * so the one-off text-to-binary conversion is included when half the room
+ * is binary.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoomBroadcastBenchmark {
+
+    @Param({"10", "100", "500"})
+    int clients;
+
+    // text: every client reads the text protocol; mixed: every other one negotiated BIN
+    @Param({"text", "mixed"})
+    String format;
+
+    private Room room;
+    private NullSession sender;
+
+    private static final String DRAW = "DRAW|412|233|415|236|-13058568|3.0";
+    private static final String STROKE_POINTS =
+            "STROKE_POINTS|281474976710657|1,0;2,1;1,1;2,0;1,-1;0,-2;-1,-1;-2,0";
+    private static final String CURSOR = "CURSOR|user0|415|236";
+
+    @Setup
+    public void setUp() {
+        room = new Room("bench", null, 0, 0, null);
+        for (int i = 0; i < clients; i++) {
+            NullSession client = new NullSession(format.equals("mixed") && i % 2 == 1);
+            room.join(client, "user" + i);
+            if (i == 0) sender = client;
+        }
+    }
+
+    @Benchmark
+    public void draw() {
+        room.broadcast(WireMessage.ofText(DRAW), sender);
+    }
+
+    @Benchmark
+    public void strokePoints() {
+        room.broadcast(WireMessage.ofText(STROKE_POINTS), sender);
+    }
+
+    @Benchmark
+    public void cursor() {
+        room.broadcast(WireMessage.ofText(CURSOR), sender);
+    }
+}
@@ -4,7 +4,9 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.awt.geom.Path2D;
 import java.awt.geom.RoundRectangle2D;
+import java.awt.image.BufferedImage;
 import java.util.*;
 import java.util.List;
 
@@ -13,6 +15,12 @@ import java.util.List;
  * - Supports color, variable thickness, eraser, clear.
  * - Tracks remote user cursors and labels.
  * - Notifies listeners when the local cursor moves or a new line is drawn.
+ * - Renders remote strokes sent as STROKE_BEGIN / STROKE_POINTS / STROKE_END.
+ * - Loads a whole board in one batch (beginBatch / endBatch) when joining late.
+ * - Keeps finished lines rendered in an off-screen image, so a repaint (for a
+ *   cursor move, say) does not redraw every segment of a busy board.
+ * - With {@link #setServerOrdered}, keeps local lines the server has not yet
+ *   ordered at the top, and slots remote lines in beneath them.
  */
 public class DrawPanel extends JPanel {
 
@@ -25,6 +33,19 @@ public class DrawPanel extends JPanel {
         void onCursorMove(int x, int y);
     }
 
+    /**
+     * Stroke-level alternative to {@link DrawListener}: style is reported once
+     * per stroke, then only points. When set, the DrawListener is not called
+     * for local drawing.
+     */
+    public interface StrokeListener {
+        void onStrokeBegin(int x, int y, Color color, float strokeWidth);
+
+        void onStrokePoint(int x, int y);
+
+        void onStrokeEnd();
+    }
+
     // ---- Internal line model ----
     private static class Line {
         int x1, y1, x2, y2;
@@ -41,17 +62,45 @@ public class DrawPanel extends JPanel {
         }
     }
 
+    // Remote stroke in progress: style plus the last point received
+    private static class RemoteStroke {
+        int lastX, lastY;
+        final Color color;
+        final float stroke;
+
+        RemoteStroke(int x, int y, Color color, float stroke) {
+            this.lastX = x;
+            this.lastY = y;
+            this.color = color;
+            this.stroke = stroke;
+        }
+    }
+
+    private static final int MAX_PATH_SEGMENTS = 64;
+
     private final java.util.List<Line> lines = new ArrayList<>();
+    // All of `lines` drawn on a transparent image; null when it must be rebuilt
+    private BufferedImage canvas;
+    private Graphics2D canvasGraphics;
     private final Map<String, Point> userCursors = new HashMap<>();
+    private final Map<Long, RemoteStroke> remoteStrokes = new HashMap<>();
 
     private int lastX, lastY;
+    private boolean strokeActive = false;
     private DrawListener drawListener;
     private CursorListener cursorListener;
+    private StrokeListener strokeListener;
 
     private Color currentColor = new Color(56, 189, 248); // default cyan
     private float currentStroke = 3.0f;
     private boolean eraserMode = false;
     private boolean drawingEnabled = true;
+    // While true, remote drawing is recorded without repainting
+    private boolean batching = false;
+    // Local lines not yet confirmed by the server, always the last ones in
+    // `lines`; only counted while the server orders the board
+    private boolean serverOrdered = false;
+    private int unconfirmedLines = 0;
 
     public DrawPanel() {
         setBackground(new Color(249, 250, 255));
@@ -64,17 +113,32 @@ public class DrawPanel extends JPanel {
                 if (!drawingEnabled) return;
                 lastX = e.getX();
                 lastY = e.getY();
+                if (strokeListener != null) {
+                    strokeActive = true;
+                    strokeListener.onStrokeBegin(lastX, lastY, drawColor(), drawStroke());
+                }
                 notifyCursorMove(lastX, lastY);
             }
 
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                if (strokeActive) {
+                    strokeActive = false;
+                    strokeListener.onStrokeEnd();
+                }
+            }
+
             @Override
             public void mouseDragged(MouseEvent e) {
                 if (!drawingEnabled) return;
                 int x = e.getX();
                 int y = e.getY();
-                Color drawColor = eraserMode ? getBackground() : currentColor;
-                float stroke = eraserMode ? currentStroke + 4.0f : currentStroke;
-                addLineInternal(lastX, lastY, x, y, drawColor, stroke, true);
+                if (strokeActive) {
+                    addLineInternal(lastX, lastY, x, y, drawColor(), drawStroke(), false);
+                    strokeListener.onStrokePoint(x, y);
+                } else {
+                    addLineInternal(lastX, lastY, x, y, drawColor(), drawStroke(), true);
+                }
                 lastX = x;
                 lastY = y;
                 notifyCursorMove(x, y);
@@ -99,6 +163,18 @@ public class DrawPanel extends JPanel {
         this.cursorListener = listener;
     }
 
+    public void setStrokeListener(StrokeListener listener) {
+        this.strokeListener = listener;
+    }
+
+    private Color drawColor() {
+        return eraserMode ? getBackground() : currentColor;
+    }
+
+    private float drawStroke() {
+        return eraserMode ? currentStroke + 4.0f : currentStroke;
+    }
+
     private void notifyCursorMove(int x, int y) {
         if (cursorListener != null) {
             cursorListener.onCursorMove(x, y);
@@ -121,9 +197,60 @@ public class DrawPanel extends JPanel {
 
     public void clearBoard() {
         lines.clear();
+        // Points that follow for a stroke begun before the clear are ignored,
+        // as they are by anyone who joins later
+        remoteStrokes.clear();
+        unconfirmedLines = 0;
+        discardCanvas();
+        repaint();
+    }
+
+    /**
+     * Whether the server tells us where our own lines fall among everyone
+     * else's (see {@link #confirmLocalLines}). Until it does, every remote
+     * line is drawn over everything drawn locally so far.
+     */
+    public void setServerOrdered(boolean ordered) {
+        serverOrdered = ordered;
+        unconfirmedLines = 0;
+    }
+
+    /**
+     * The server has ordered the oldest {@code count} unconfirmed local lines
+     * before whatever arrives next; remote lines now go above them.
+     */
+    public void confirmLocalLines(int count) {
+        unconfirmedLines = Math.max(0, unconfirmedLines - count);
+    }
+
+    /** Treat every local line as confirmed, e.g. after reconnecting. */
+    public void confirmAllLocalLines() {
+        unconfirmedLines = 0;
+    }
+
+    /**
+     * Start loading a board: clears it and holds back repaints until
+     * {@link #endBatch()}, so thousands of segments cost a single paint.
+     */
+    public void beginBatch() {
+        lines.clear();
+        remoteStrokes.clear();
+        unconfirmedLines = 0;
+        discardCanvas();
+        batching = true;
+    }
+
+    public void endBatch() {
+        batching = false;
         repaint();
     }
 
+    private void repaintUnlessBatching() {
+        if (!batching) {
+            repaint();
+        }
+    }
+
     public void setDrawingEnabled(boolean enabled) {
         this.drawingEnabled = enabled;
     }
@@ -131,7 +258,35 @@ public class DrawPanel extends JPanel {
     // Called by network layer when a DRAW message arrives
     public void addRemoteLine(int x1, int y1, int x2, int y2,
                               Color color, float stroke) {
-        addLineInternal(x1, y1, x2, y2, color, stroke, false);
+        addLine(new Line(x1, y1, x2, y2, color, stroke));
+        repaintUnlessBatching();
+    }
+
+    // ---- Remote strokes (STROKE_BEGIN / STROKE_POINTS / STROKE_END) ----
+    public void beginRemoteStroke(long strokeId, int x, int y, Color color, float stroke) {
+        remoteStrokes.put(strokeId, new RemoteStroke(x, y, color, stroke));
+    }
+
+    /**
+     * Append a batch of points to a remote stroke. {@code deltas} holds flat
+     * (dx, dy) pairs relative to the previous point. Points for a stroke whose
+     * BEGIN was never seen are ignored.
+     */
+    public void addRemoteStrokePoints(long strokeId, int[] deltas) {
+        RemoteStroke rs = remoteStrokes.get(strokeId);
+        if (rs == null) return;
+        for (int i = 0; i + 1 < deltas.length; i += 2) {
+            int x = rs.lastX + deltas[i];
+            int y = rs.lastY + deltas[i + 1];
+            addLine(new Line(rs.lastX, rs.lastY, x, y, rs.color, rs.stroke));
+            rs.lastX = x;
+            rs.lastY = y;
+        }
+        repaintUnlessBatching();
+    }
+
+    public void endRemoteStroke(long strokeId) {
+        remoteStrokes.remove(strokeId);
     }
 
     // Update / remove user cursors (used from network / client)
@@ -140,23 +295,164 @@ public class DrawPanel extends JPanel {
         repaint();
     }
 
+    /** Apply a batch of cursor positions with a single repaint. */
+    public void updateUserCursors(String[] usernames, int[] xy, String skip) {
+        for (int i = 0; i < usernames.length; i++) {
+            if (usernames[i].equals(skip)) continue;
+            userCursors.put(usernames[i], new Point(xy[2 * i], xy[2 * i + 1]));
+        }
+        repaint();
+    }
+
     public void syncUserCursors(Set<String> activeUsers) {
         userCursors.keySet().retainAll(activeUsers);
         repaint();
     }
 
+    public void removeUserCursor(String username) {
+        if (userCursors.remove(username) != null) {
+            repaint();
+        }
+    }
+
     // ---- Internal drawing logic ----
+    // Local drawing only
     private void addLineInternal(int x1, int y1, int x2, int y2,
                                  Color color, float stroke,
                                  boolean notifyServer) {
-        lines.add(new Line(x1, y1, x2, y2, color, stroke));
-        repaint();
+        Line line = new Line(x1, y1, x2, y2, color, stroke);
+        lines.add(line);
+        if (canvas != null && !batching) {
+            drawLine(canvasGraphics, line);
+        }
+        if (serverOrdered) {
+            unconfirmedLines++;
+        }
+        repaintUnlessBatching();
 
         if (notifyServer && drawListener != null) {
             drawListener.onNewLine(x1, y1, x2, y2, color, stroke);
         }
     }
 
+    // Remote drawing: below any unconfirmed local lines, which the server
+    // ordered after it
+    private void addLine(Line line) {
+        if (unconfirmedLines == 0) {
+            lines.add(line);
+            // While batching, the canvas is rebuilt once on the next paint
+            if (canvas != null && !batching) {
+                drawLine(canvasGraphics, line);
+            }
+            return;
+        }
+        int firstUnconfirmed = lines.size() - unconfirmedLines;
+        lines.add(firstUnconfirmed, line);
+        if (canvas != null && !batching) {
+            // Draw it, then the unconfirmed lines it crosses again on top,
+            // within its bounds only
+            Rectangle bounds = bounds(line);
+            Shape clip = canvasGraphics.getClip();
+            canvasGraphics.clip(bounds);
+            drawLine(canvasGraphics, line);
+            for (int i = firstUnconfirmed + 1; i < lines.size(); i++) {
+                Line above = lines.get(i);
+                if (bounds.intersects(bounds(above))) {
+                    drawLine(canvasGraphics, above);
+                }
+            }
+            canvasGraphics.setClip(clip);
+        }
+    }
+
+    // Pixels a line can touch, round caps included
+    private static Rectangle bounds(Line line) {
+        int pad = (int) Math.ceil(line.stroke / 2) + 1;
+        int x = Math.min(line.x1, line.x2) - pad;
+        int y = Math.min(line.y1, line.y2) - pad;
+        return new Rectangle(x, y, Math.abs(line.x2 - line.x1) + 2 * pad,
+                Math.abs(line.y2 - line.y1) + 2 * pad);
+    }
+
+    private void discardCanvas() {
+        if (canvasGraphics != null) {
+            canvasGraphics.dispose();
+        }
+        canvas = null;
+        canvasGraphics = null;
+    }
+
+    // Canvas matching the panel size, with every line drawn on it
+    private BufferedImage canvas() {
+        int w = Math.max(1, getWidth());
+        int h = Math.max(1, getHeight());
+        if (canvas == null || canvas.getWidth() != w || canvas.getHeight() != h) {
+            discardCanvas();
+            canvas = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+            canvasGraphics = canvas.createGraphics();
+            canvasGraphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                    RenderingHints.VALUE_ANTIALIAS_ON);
+            drawAll(canvasGraphics);
+        }
+        return canvas;
+    }
+
+    // Connected segments of the same style are drawn as one short path,
+    // which is much cheaper than one drawLine each. Very long paths get slow
+    // to stroke again, hence the cap.
+    private void drawAll(Graphics2D g2) {
+        Path2D.Float path = new Path2D.Float();
+        Line first = null;
+        Line prev = null;
+        int segments = 0;
+        for (Line line : lines) {
+            boolean continues = prev != null && segments < MAX_PATH_SEGMENTS &&
+                    line.x1 == prev.x2 && line.y1 == prev.y2 &&
+                    line.stroke == prev.stroke && line.color.equals(prev.color);
+            if (!continues) {
+                if (first != null) {
+                    strokePath(g2, path, first);
+                }
+                path.reset();
+                path.moveTo(line.x1, line.y1);
+                first = line;
+                segments = 0;
+            }
+            path.lineTo(line.x2, line.y2);
+            segments++;
+            prev = line;
+        }
+        if (first != null) {
+            strokePath(g2, path, first);
+        }
+    }
+
+    private static void strokePath(Graphics2D g2, Path2D path, Line style) {
+        applyStyle(g2, style);
+        g2.draw(path);
+    }
+
+    private static void drawLine(Graphics2D g2, Line line) {
+        applyStyle(g2, line);
+        g2.drawLine(line.x1, line.y1, line.x2, line.y2);
+    }
+
+    // Consecutive segments usually share colour and width
+    private static void applyStyle(Graphics2D g2, Line line) {
+        if (!line.color.equals(g2.getColor())) {
+            g2.setColor(line.color);
+        }
+        Stroke current = g2.getStroke();
+        if (!(current instanceof BasicStroke) ||
+                ((BasicStroke) current).getLineWidth() != line.stroke ||
+                ((BasicStroke) current).getEndCap() != BasicStroke.CAP_ROUND) {
+            g2.setStroke(new BasicStroke(
+                    line.stroke,
+                    BasicStroke.CAP_ROUND,
+                    BasicStroke.JOIN_ROUND));
+        }
+    }
+
     @Override
     protected void paintComponent(Graphics g) {
         super.paintComponent(g);
@@ -178,14 +474,7 @@ public class DrawPanel extends JPanel {
         g2.drawRoundRect(4, 4, getWidth() - 8, getHeight() - 8, 18, 18);
 
         // Draw lines
-        for (Line line : lines) {
-            g2.setColor(line.color);
-            g2.setStroke(new BasicStroke(
-                    line.stroke,
-                    BasicStroke.CAP_ROUND,
-                    BasicStroke.JOIN_ROUND));
-            g2.drawLine(line.x1, line.y1, line.x2, line.y2);
-        }
+        g2.drawImage(canvas(), 0, 0, null);
 
         // Draw user cursors + labels
         Font labelFont = getFont().deriveFont(Font.BOLD, 11f);
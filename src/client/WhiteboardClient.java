@@ -1,18 +1,33 @@
 package client;
 
+import protocol.BinaryCodec;
+import protocol.CursorList;
+import protocol.FieldReader;
+import protocol.FrameReader;
+import protocol.MessageType;
+import protocol.StrokePoints;
+
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
 /**
  * Client app:
  * - Connects to server
  * - Shows modern GUI with whiteboard + chat + tools + polls
- * - Sends DRAW / CHAT / CLEAR / CURSOR / BOARD_LOCK / POLL_* to server
+ * - Sends STROKE_* / CHAT / CLEAR / CURSOR / BOARD_LOCK / POLL_* to server
  * - Receives messages and updates UI in real time
  */
 public class WhiteboardClient {
@@ -33,16 +48,98 @@ public class WhiteboardClient {
 
     private PollPanel pollPanel;
 
-    private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    // Replaced by the reader thread when it reconnects
+    private volatile Socket socket;
+    private volatile FrameReader in;
+    private volatile OutputStream out;
+    // True once the server accepted binary framing in the JOIN handshake
+    private volatile boolean binaryProtocol = false;
+    private String serverHost;
+    private int serverPort;
+    // First server line, if an older server skipped the PROTO reply
+    private String firstServerMessage;
 
     private String username;
+    // Room on the server; empty for the server's default room
+    private String room = "";
+
+    // ---- Outgoing stroke state (EDT only) ----
+    // Points are batched into one STROKE_POINTS message per
+    // STROKE_BATCH_POINTS points or STROKE_FLUSH_MS, whichever comes first.
+    private static final int STROKE_BATCH_POINTS = 32;
+    private static final int STROKE_FLUSH_MS = 30;
+    // Random per-client prefix keeps stroke ids from different clients apart
+    private final long strokeIdBase = (long) new Random().nextInt(1 << 30) << 24;
+    private int strokeCounter = 0;
+    private long currentStrokeId = -1;
+    private int strokeLastX, strokeLastY;
+    private final int[] pendingDeltas = new int[2 * STROKE_BATCH_POINTS];
+    private int pendingPoints = 0;
+    private Timer strokeFlushTimer;
+    private Color strokeColor;
+    private float strokeWidth;
+
+    // ---- Board order (EDT only) ----
+    // On once the server has sent EPOCH at the end of JOIN. It then sends
+    // BOARD_ACK|n before another client's drawing to say how many of our own
+    // operations it ordered first, and CLEAR|epoch back to us when we clear.
+    private boolean boardOrdered = false;
+    // Our drawing operations not yet acknowledged, as the number of lines
+    // each one drew, with CLEAR_SENT where we sent a CLEAR
+    private final ArrayDeque<Integer> unackedOps = new ArrayDeque<>();
+    private static final int CLEAR_SENT = -1;
+    // Our CLEARs not yet sent back: until then, incoming drawing was ordered
+    // before the CLEAR and is wiped by it, so it is not drawn at all
+    private int clearsSent = 0;
+
+    // Version of the participants list from USERS / USER_JOIN / USER_LEAVE;
+    // -1 until the first USERS (or for an older server sending USERLIST)
+    private long userListVersion = -1;
+    // A USERS| request is on its way after a missed change
+    private boolean userListRequested = false;
+
+    // Heartbeats, if the server accepted PING in JOIN: after PING_MS without
+    // a message from the server we send PING, after SERVER_TIMEOUT_MS we give
+    // up on it instead of waiting for TCP to notice
+    private static final int PING_MS = 5000;
+    private static final int SERVER_TIMEOUT_MS = 15000;
+    private boolean heartbeats = false;
+    // System.nanoTime() of the last message from the server (reader thread)
+    private volatile long lastHeard = System.nanoTime();
+    private long lastPingSent = 0;
+    private volatile Timer heartbeatTimer;
+
+    // Where we are in the room's numbered broadcasts (reader thread): the
+    // session token and last SESSION|token|seq or SEQ|seq, and how many
+    // sequenced messages arrived since. Sent back in JOIN after a lost
+    // connection so the server can replay only what we missed.
+    private String resumeToken = null;
+    private long checkpointSeq = 0;
+    private int sinceCheckpoint = 0;
+    // Counting starts with the SESSION line that ends the join
+    private boolean counting = false;
+    // Pauses between attempts to get back in, after which we give up
+    private static final int[] RECONNECT_DELAYS_MS = {0, 500, 1000, 2000, 4000, 8000, 8000};
+    // Set on the EDT when a reconnect has been made and the server has not
+    // yet said whether it resumes or sends the whole board again
+    private boolean rejoining = false;
+
+    // Reused for every incoming DRAW / CURSOR / STROKE_* line (EDT only)
+    private final FieldReader fields = new FieldReader();
 
     private boolean isTeacher = false;
     private boolean boardLocked = false;
     private boolean suppressLockToggleEvent = false;
 
+    public WhiteboardClient() {
+    }
+
+    // No window and no connection, only a board: for the JMH benchmarks in
+    // bench/jmh, which feed server lines straight to handleServerMessage
+    WhiteboardClient(DrawPanel drawPanel) {
+        this.drawPanel = drawPanel;
+    }
+
     public static void main(String[] args) {
         SwingUtilities.invokeLater(() -> {
             try {
@@ -68,6 +165,7 @@ public class WhiteboardClient {
         JTextField ipField = new JTextField("127.0.0.1");
         JTextField portField = new JTextField("5001");
         JTextField userField = new JTextField("Student");
+        JTextField roomField = new JTextField("");
 
 
         JPanel connectPanel = new JPanel(new GridLayout(0, 1, 6, 6));
@@ -78,6 +176,8 @@ public class WhiteboardClient {
         connectPanel.add(portField);
         connectPanel.add(new JLabel("Username:"));
         connectPanel.add(userField);
+        connectPanel.add(new JLabel("Room (optional):"));
+        connectPanel.add(roomField);
 
         int result = JOptionPane.showConfirmDialog(
                 null, connectPanel, "Connect to Whiteboard Server",
@@ -90,23 +190,20 @@ public class WhiteboardClient {
         String serverIp = ipField.getText().trim();
         String serverPort = portField.getText().trim();
         username = userField.getText().trim();
+        room = roomField.getText().trim();
         if (username.isEmpty()) {
             username = "Student";
         }
 
         // ---- connect to server ----
         try {
-            socket = new Socket(serverIp, Integer.parseInt(serverPort));
-            in = new BufferedReader(
-                    new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(
-                    new OutputStreamWriter(socket.getOutputStream()), true);
-
-            // send JOIN message
-            out.println("JOIN|" + username);
+            connect(serverIp, Integer.parseInt(serverPort));
 
             // build UI
             initUI();
+            if (firstServerMessage != null) {
+                handleServerMessage(firstServerMessage);
+            }
 
             // start background reader
             new Thread(this::listenToServer).start();
@@ -146,17 +243,13 @@ public class WhiteboardClient {
 
         // ---- connect to server ----
         try {
-            socket = new Socket(serverIp, port);
-            in = new BufferedReader(
-                    new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(
-                    new OutputStreamWriter(socket.getOutputStream()), true);
-
-            // send JOIN message
-            out.println("JOIN|" + username);
+            connect(serverIp, port);
 
             // build UI
             initUI();
+            if (firstServerMessage != null) {
+                handleServerMessage(firstServerMessage);
+            }
 
             // start background reader
             new Thread(this::listenToServer).start();
@@ -169,13 +262,97 @@ public class WhiteboardClient {
         }
     }
 
+    /**
+     * Open the socket and send JOIN, offering binary framing, compression and
+     * heartbeats. The server answers PROTO|BIN or PROTO|TEXT, followed by
+     * |DEFLATE if it compresses the rest of the stream and |PING if it
+     * exchanges heartbeats, before anything else; nothing else is sent until
+     * that reply has been read, so the switch is unambiguous.
+     */
+    private void connect(String serverIp, int port) throws IOException {
+        serverHost = serverIp;
+        serverPort = port;
+        Socket s = new Socket(serverIp, port);
+        FrameReader reader = new FrameReader(s.getInputStream());
+        OutputStream writer = new BufferedOutputStream(s.getOutputStream());
+
+        // send JOIN message, with where we were if this is a reconnect
+        String join = "JOIN|" + username + "|" + BinaryCodec.JOIN_CAPABILITY +
+                "|" + BinaryCodec.DEFLATE_CAPABILITY + "|USERS|PING|RESUME|EPOCH" +
+                (resumeToken == null ? ""
+                        : "|resume=" + resumeToken + ":" + checkpointSeq + ":" + sinceCheckpoint) +
+                (room.isEmpty() ? "" : "|room=" + room);
+        counting = false;
+        try {
+            writer.write((join + "\n").getBytes(StandardCharsets.UTF_8));
+            writer.flush();
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+
+        String reply = reader.readLine();
+        if (reply == null) {
+            s.close();
+            throw new IOException("Server closed the connection");
+        }
+        // PROTO|BIN or PROTO|TEXT, then the options the server accepted
+        String[] parts = reply.split("\\|");
+        String proto = parts.length >= 2 ? parts[0] + "|" + parts[1] : reply;
+        boolean deflate = false;
+        heartbeats = false;
+        for (int i = 2; i < parts.length; i++) {
+            deflate |= BinaryCodec.DEFLATE_CAPABILITY.equals(parts[i]);
+            heartbeats |= "PING".equals(parts[i]);
+        }
+        // Only now that JOIN is through may the EDT write to the new stream
+        socket = s;
+        in = reader;
+        binaryProtocol = BinaryCodec.PROTO_BINARY.equals(proto);
+        out = writer;
+        if (!binaryProtocol && !BinaryCodec.PROTO_TEXT.equals(proto)) {
+            // Older server without negotiation: this is already a real message
+            firstServerMessage = reply;
+            return;
+        }
+        if (deflate) {
+            in.inflate();
+        }
+        if (heartbeats) {
+            lastHeard = System.nanoTime();
+            lastPingSent = lastHeard;
+            heartbeatTimer = new Timer(1000, e -> checkServer());
+            heartbeatTimer.start();
+        }
+    }
+
+    // Once a second on the EDT while heartbeats are on
+    private void checkServer() {
+        long now = System.nanoTime();
+        long silentMs = (now - lastHeard) / 1_000_000;
+        if (silentMs >= SERVER_TIMEOUT_MS) {
+            // The reader fails on the closed socket and reports the lost connection
+            heartbeatTimer.stop();
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        } else if (silentMs >= PING_MS && (now - lastPingSent) / 1_000_000 >= PING_MS) {
+            send("PING|" + now / 1_000_000);
+            lastPingSent = now;
+        }
+    }
 
     // ---------------------------------------------------------
     // UI
     // ---------------------------------------------------------
 
+    private String windowTitle() {
+        return "CollabBoard – Interactive Classroom | " + username +
+                (room.isEmpty() ? "" : " | " + room);
+    }
+
     private void initUI() {
-        frame = new JFrame("CollabBoard – Interactive Classroom | " + username);
+        frame = new JFrame(windowTitle());
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         frame.setSize(1550, 930);
         frame.setMinimumSize(new Dimension(1340, 820));
@@ -246,14 +423,43 @@ public class WhiteboardClient {
         drawPanel.setDrawListener((x1, y1, x2, y2, color, stroke) -> {
             if (out != null) {
                 int rgb = color.getRGB();
-                out.println("DRAW|" + x1 + "|" + y1 + "|" + x2 + "|" + y2 + "|" + rgb + "|" + stroke);
+                if (binaryProtocol) {
+                    write(BinaryCodec.encodeDraw(x1, y1, x2, y2, rgb, stroke));
+                } else {
+                    send("DRAW|" + x1 + "|" + y1 + "|" + x2 + "|" + y2 + "|" + rgb + "|" + stroke);
+                }
+                sentBoardOp(1);
+            }
+        });
+
+        // send strokes: style once, then batched point deltas
+        strokeFlushTimer = new Timer(STROKE_FLUSH_MS, e -> flushStrokePoints());
+        strokeFlushTimer.setRepeats(false);
+        drawPanel.setStrokeListener(new DrawPanel.StrokeListener() {
+            @Override
+            public void onStrokeBegin(int x, int y, Color color, float strokeWidth) {
+                beginStroke(x, y, color, strokeWidth);
+            }
+
+            @Override
+            public void onStrokePoint(int x, int y) {
+                addStrokePoint(x, y);
+            }
+
+            @Override
+            public void onStrokeEnd() {
+                endStroke();
             }
         });
 
         // send cursor updates
         drawPanel.setCursorListener((x, y) -> {
             if (out != null) {
-                out.println("CURSOR|" + username + "|" + x + "|" + y);
+                if (binaryProtocol) {
+                    write(BinaryCodec.encodeCursor(username, x, y));
+                } else {
+                    send("CURSOR|" + username + "|" + x + "|" + y);
+                }
             }
         });
 
@@ -433,7 +639,11 @@ public class WhiteboardClient {
             if (!isTeacher) return;
             drawPanel.clearBoard();
             if (out != null) {
-                out.println("CLEAR|");
+                send("CLEAR|");
+                if (boardOrdered) {
+                    unackedOps.addLast(CLEAR_SENT);
+                    clearsSent++;
+                }
             }
         });
 
@@ -443,7 +653,7 @@ public class WhiteboardClient {
             if (!isTeacher || out == null) return;
             if (suppressLockToggleEvent) return;
             boolean lock = lockToggle.isSelected();
-            out.println("BOARD_LOCK|" + lock);
+            send("BOARD_LOCK|" + lock);
         });
 
         createPollButton = new JButton("Create poll");
@@ -642,158 +852,628 @@ public class WhiteboardClient {
     // Networking
     // ---------------------------------------------------------
 
+    // Send one protocol line in the negotiated wire format
+    private void send(String line) {
+        if (out == null) return;
+        write(binaryProtocol
+                ? BinaryCodec.fromText(line)
+                : (line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void write(byte[] data) {
+        try {
+            out.write(data);
+            out.flush();
+        } catch (IOException ignored) {
+            // the reader thread notices the lost connection and reports it
+        }
+    }
+
+    private void beginStroke(int x, int y, Color color, float strokeWidth) {
+        currentStrokeId = strokeIdBase + (strokeCounter++);
+        strokeLastX = x;
+        strokeLastY = y;
+        strokeColor = color;
+        this.strokeWidth = strokeWidth;
+        pendingPoints = 0;
+        int rgb = color.getRGB();
+        if (binaryProtocol) {
+            write(BinaryCodec.encodeStrokeBegin(currentStrokeId, x, y, rgb, strokeWidth));
+        } else {
+            send("STROKE_BEGIN|" + currentStrokeId + "|" + x + "|" + y + "|" + rgb + "|" + strokeWidth);
+        }
+        sentBoardOp(0);
+    }
+
+    private void addStrokePoint(int x, int y) {
+        if (currentStrokeId < 0) return;
+        pendingDeltas[2 * pendingPoints] = x - strokeLastX;
+        pendingDeltas[2 * pendingPoints + 1] = y - strokeLastY;
+        pendingPoints++;
+        strokeLastX = x;
+        strokeLastY = y;
+        if (pendingPoints == STROKE_BATCH_POINTS) {
+            flushStrokePoints();
+        } else if (!strokeFlushTimer.isRunning()) {
+            strokeFlushTimer.start();
+        }
+    }
+
+    private void flushStrokePoints() {
+        strokeFlushTimer.stop();
+        if (currentStrokeId < 0 || pendingPoints == 0 || out == null) return;
+        if (binaryProtocol) {
+            write(BinaryCodec.encodeStrokePoints(currentStrokeId, pendingDeltas, pendingPoints));
+        } else {
+            send("STROKE_POINTS|" + currentStrokeId + "|" +
+                    StrokePoints.format(pendingDeltas, pendingPoints));
+        }
+        sentBoardOp(pendingPoints);
+        pendingPoints = 0;
+    }
+
+    private void endStroke() {
+        if (currentStrokeId < 0) return;
+        flushStrokePoints();
+        if (binaryProtocol) {
+            write(BinaryCodec.encodeStrokeEnd(currentStrokeId));
+        } else {
+            send("STROKE_END|" + currentStrokeId);
+        }
+        sentBoardOp(0);
+        currentStrokeId = -1;
+    }
+
+    // ---- Board order ----
+
+    private void sentBoardOp(int lines) {
+        if (boardOrdered) {
+            unackedOps.addLast(lines);
+        }
+    }
+
+    // BOARD_ACK|n: our oldest n operations come before what follows
+    private void acknowledgeOps(int count) {
+        int lines = 0;
+        while (count > 0 && !unackedOps.isEmpty() && unackedOps.peekFirst() != CLEAR_SENT) {
+            lines += unackedOps.pollFirst();
+            count--;
+        }
+        // Before a CLEAR of ours those lines are gone from the board already
+        if (clearsSent == 0) {
+            drawPanel.confirmLocalLines(lines);
+        }
+    }
+
+    // CLEAR|epoch, or CLEAR| from an older server
+    private void applyClear(String msg) {
+        String arg = msg.substring("CLEAR|".length());
+        long epoch = arg.isEmpty() ? -1 : Long.parseLong(arg);
+        if (clearsSent > 0 && epoch >= 0) {
+            // Our own CLEAR back: the board was cleared when we sent it, and
+            // what we drew since then comes after it
+            clearsSent--;
+            Integer lines;
+            do {
+                lines = unackedOps.pollFirst();
+            } while (lines != null && lines != CLEAR_SENT);
+            return;
+        }
+        drawPanel.clearBoard();
+        if (epoch < 0 || !boardOrdered) return;
+
+        // The server drops anything we send before acknowledging this, as
+        // drawn on the board it wipes. Points not sent yet are wiped here
+        // too, and a stroke in progress goes on as a new one.
+        unackedOps.clear();
+        pendingPoints = 0;
+        send("EPOCH|" + epoch);
+        if (currentStrokeId >= 0) {
+            endStroke();
+            beginStroke(strokeLastX, strokeLastY, strokeColor, strokeWidth);
+        }
+    }
+
     private void sendChatMessage() {
         String text = chatInput.getText().trim();
         if (!text.isEmpty() && out != null) {
-            out.println("CHAT|" + username + "|" + text);
+            send("CHAT|" + username + "|" + text);
             chatInput.setText("");
         }
     }
 
+    // Reads until the connection is lost, then reconnects and carries on;
+    // gives up only if the server stays out of reach
     private void listenToServer() {
-        try {
+        do {
+            try {
+                readFromServer();
+            } catch (IOException e) {
+                // lost; try to get back in below
+            }
+        } while (reconnect());
+        SwingUtilities.invokeLater(() -> {
+            JOptionPane.showMessageDialog(frame,
+                    "Disconnected from server.",
+                    "Connection Lost",
+                    JOptionPane.WARNING_MESSAGE);
+            frame.dispose();
+            System.exit(0);
+        });
+    }
+
+    // A frame or line that cannot be read ends the connection like an
+    // IOException: nothing after it in the stream can be trusted either
+    private void readFromServer() throws IOException {
+        FrameReader in = this.in;
+        if (binaryProtocol) {
+            byte[] frame;
+            while ((frame = in.readFrame()) != null) {
+                lastHeard = System.nanoTime();
+                try {
+                    handleServerFrame(frame);
+                } catch (RuntimeException e) {
+                    throw new IOException("Unreadable frame from server: " + e, e);
+                }
+            }
+        } else {
             String line;
             while ((line = in.readLine()) != null) {
+                lastHeard = System.nanoTime();
+                try {
+                    track(MessageType.of(line), line);
+                } catch (RuntimeException e) {
+                    throw new IOException("Unreadable line from server: " + e, e);
+                }
                 final String msg = line;
                 SwingUtilities.invokeLater(() -> handleServerMessage(msg));
             }
-        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Connect again after the connection dropped, with a few pauses in
+     * between. The board, chat and polls stay as they are: the server either
+     * resumes the session and sends what we missed, or sends everything again.
+     */
+    private boolean reconnect() {
+        Timer timer = heartbeatTimer;
+        if (timer != null) {
+            timer.stop();
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+        SwingUtilities.invokeLater(() -> {
+            frame.setTitle(windowTitle() + " | reconnecting...");
+            boardStatusLabel.setText(" Connection lost, reconnecting...");
+        });
+        for (int delay : RECONNECT_DELAYS_MS) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            try {
+                connect(serverHost, serverPort);
+            } catch (IOException e) {
+                continue;
+            }
+            String first = firstServerMessage;
+            firstServerMessage = null;
             SwingUtilities.invokeLater(() -> {
-                JOptionPane.showMessageDialog(frame,
-                        "Disconnected from server.",
-                        "Connection Lost",
-                        JOptionPane.WARNING_MESSAGE);
-                frame.dispose();
-                System.exit(0);
+                rejoining = true;
+                // Whatever was in flight is lost or already in place; the
+                // server sends EPOCH again at the end of JOIN
+                boardOrdered = false;
+                unackedOps.clear();
+                clearsSent = 0;
+                drawPanel.setServerOrdered(false);
+                frame.setTitle(windowTitle());
+                if (first != null) {
+                    handleServerMessage(first);
+                }
             });
+            return true;
+        }
+        return false;
+    }
+
+    // Reader thread, for every message in the order received: keep track of
+    // where we are for resume= (see the server's Room)
+    private void track(int type, String line) {
+        if (type == MessageType.SESSION) {
+            // SESSION|token|seq
+            String[] parts = line.split("\\|");
+            if (parts.length >= 3) {
+                resumeToken = parts[1];
+                checkpointSeq = Long.parseLong(parts[2]);
+                sinceCheckpoint = 0;
+                counting = true;
+            }
+        } else if (type == MessageType.SEQ && counting) {
+            checkpointSeq = Long.parseLong(line.substring("SEQ|".length()));
+            sinceCheckpoint = 0;
+        } else if (counting && MessageType.isSequenced(type)) {
+            sinceCheckpoint++;
         }
     }
 
-    private void handleServerMessage(String msg) {
+    // Called on the reader thread; strokes and cursors skip the text parser.
+    // Throws IllegalArgumentException for a frame that does not decode
+    private void handleServerFrame(byte[] frame) {
+        switch (BinaryCodec.opcode(frame)) {
+            case BinaryCodec.OP_DRAW: {
+                track(MessageType.DRAW, null);
+                BinaryCodec.DrawOp d = new BinaryCodec.DrawOp();
+                BinaryCodec.decodeDraw(frame, d);
+                Color color = new Color(d.argb, true);
+                SwingUtilities.invokeLater(() -> {
+                    if (clearsSent == 0) {
+                        drawPanel.addRemoteLine(d.x1, d.y1, d.x2, d.y2, color, d.stroke);
+                    }
+                });
+                break;
+            }
+            case BinaryCodec.OP_CURSOR: {
+                BinaryCodec.CursorOp c = new BinaryCodec.CursorOp();
+                BinaryCodec.decodeCursor(frame, c);
+                SwingUtilities.invokeLater(() ->
+                        drawPanel.updateUserCursor(c.username, c.x, c.y));
+                break;
+            }
+            case BinaryCodec.OP_CURSORS: {
+                BinaryCodec.CursorOp[] cs = BinaryCodec.decodeCursors(frame);
+                String[] names = new String[cs.length];
+                int[] xy = new int[2 * cs.length];
+                for (int i = 0; i < cs.length; i++) {
+                    names[i] = cs[i].username;
+                    xy[2 * i] = cs[i].x;
+                    xy[2 * i + 1] = cs[i].y;
+                }
+                SwingUtilities.invokeLater(() ->
+                        drawPanel.updateUserCursors(names, xy, username));
+                break;
+            }
+            case BinaryCodec.OP_BOARD_CHUNK: {
+                // Decoded for real on the EDT, where a broken one could not
+                // end the connection
+                BinaryCodec.check(frame);
+                byte[] frames = BinaryCodec.decodeBoardChunk(frame);
+                SwingUtilities.invokeLater(() -> applyBoardChunk(frames));
+                break;
+            }
+            case BinaryCodec.OP_STROKE_BEGIN:
+            case BinaryCodec.OP_STROKE_POINTS:
+            case BinaryCodec.OP_STROKE_END: {
+                track(MessageType.STROKE_POINTS, null);
+                byte op = BinaryCodec.opcode(frame);
+                BinaryCodec.StrokeOp st = new BinaryCodec.StrokeOp();
+                BinaryCodec.decodeStroke(frame, st);
+                SwingUtilities.invokeLater(() -> {
+                    if (clearsSent == 0) {
+                        applyStroke(op, st);
+                    }
+                });
+                break;
+            }
+            default: {
+                String msg = BinaryCodec.toText(frame);
+                track(MessageType.of(msg), msg);
+                SwingUtilities.invokeLater(() -> handleServerMessage(msg));
+            }
+        }
+    }
+
+    private void applyStroke(byte op, BinaryCodec.StrokeOp st) {
+        if (op == BinaryCodec.OP_STROKE_BEGIN) {
+            drawPanel.beginRemoteStroke(st.strokeId, st.x, st.y,
+                    new Color(st.argb, true), st.stroke);
+        } else if (op == BinaryCodec.OP_STROKE_POINTS) {
+            drawPanel.addRemoteStrokePoints(st.strokeId, st.deltas);
+        } else {
+            drawPanel.endRemoteStroke(st.strokeId);
+        }
+    }
+
+    // Part of the board transfer on join: DRAW / STROKE_* frames back to
+    // back, applied between drawPanel.beginBatch() and endBatch()
+    private void applyBoardChunk(byte[] frames) {
+        BinaryCodec.DrawOp d = new BinaryCodec.DrawOp();
+        BinaryCodec.StrokeOp st = new BinaryCodec.StrokeOp();
+        Color color = null;
+        int pos = 0;
+        while (pos < frames.length) {
+            int len = BinaryCodec.frameLength(frames, pos, frames.length);
+            if (len < 0 || pos + len > frames.length) break;
+            byte[] f = Arrays.copyOfRange(frames, pos, pos + len);
+            pos += len;
+
+            byte op = BinaryCodec.opcode(f);
+            if (op == BinaryCodec.OP_DRAW) {
+                BinaryCodec.decodeDraw(f, d);
+                if (color == null || color.getRGB() != d.argb) {
+                    color = new Color(d.argb, true);
+                }
+                drawPanel.addRemoteLine(d.x1, d.y1, d.x2, d.y2, color, d.stroke);
+            } else if (op >= BinaryCodec.OP_STROKE_BEGIN && op <= BinaryCodec.OP_STROKE_END) {
+                BinaryCodec.decodeStroke(f, st);
+                applyStroke(op, st);
+            }
+        }
+    }
+
+    // Replace the participants list with comma-separated names
+    private void setParticipants(String names) {
+        Set<String> active = new HashSet<>();
+        participantsModel.clear();
+        for (String n : names.split(",")) {
+            String trimmed = n.trim();
+            if (!trimmed.isEmpty()) {
+                participantsModel.addElement(trimmed);
+                active.add(trimmed);
+            }
+        }
+        drawPanel.syncUserCursors(active);
+    }
+
+    void handleServerMessage(String msg) {
         try {
-            if (msg.startsWith("CHAT|")) {
-                String[] parts = msg.split("\\|", 3);
-                if (parts.length == 3) {
-                    String fromUser = parts[1];
-                    String text = parts[2];
-                    chatArea.append(fromUser + ": " + text + "\n");
-                    chatArea.setCaretPosition(
-                            chatArea.getDocument().getLength());
-                }
-
-            } else if (msg.startsWith("DRAW|")) {
-                String[] parts = msg.split("\\|");
-                if (parts.length >= 5) {
-                    int x1 = Integer.parseInt(parts[1]);
-                    int y1 = Integer.parseInt(parts[2]);
-                    int x2 = Integer.parseInt(parts[3]);
-                    int y2 = Integer.parseInt(parts[4]);
+            switch (MessageType.of(msg)) {
+                case MessageType.CHAT: {
+                    String[] parts = msg.split("\\|", 3);
+                    if (parts.length == 3) {
+                        String fromUser = parts[1];
+                        String text = parts[2];
+                        chatArea.append(fromUser + ": " + text + "\n");
+                        chatArea.setCaretPosition(
+                                chatArea.getDocument().getLength());
+                    }
+                    break;
+                }
+
+                case MessageType.DRAW: {
+                    // DRAW|x1|y1|x2|y2[|rgb|stroke]
+                    if (clearsSent > 0) break;
+                    FieldReader f = fields.reset(msg);
+                    int x1 = f.nextInt();
+                    int y1 = f.nextInt();
+                    int x2 = f.nextInt();
+                    int y2 = f.nextInt();
 
                     Color color = Color.BLACK;
                     float stroke = 2.0f;
 
-                    if (parts.length >= 7) {
-                        int rgb = Integer.parseInt(parts[5]);
-                        color = new Color(rgb, true);
-                        stroke = Float.parseFloat(parts[6]);
+                    if (f.hasNext()) {
+                        color = new Color(f.nextColor(), true);
+                        stroke = f.nextFloat();
                     }
 
                     drawPanel.addRemoteLine(x1, y1, x2, y2, color, stroke);
+                    break;
+                }
+
+                case MessageType.STROKE_POINTS: {
+                    // STROKE_POINTS|strokeId|dx,dy;dx,dy;...
+                    if (clearsSent > 0) break;
+                    FieldReader f = fields.reset(msg);
+                    long strokeId = f.nextLong();
+                    drawPanel.addRemoteStrokePoints(strokeId, StrokePoints.parse(f.nextString()));
+                    break;
+                }
+
+                case MessageType.STROKE_BEGIN: {
+                    // STROKE_BEGIN|strokeId|x|y|rgb|stroke
+                    if (clearsSent > 0) break;
+                    FieldReader f = fields.reset(msg);
+                    drawPanel.beginRemoteStroke(f.nextLong(), f.nextInt(), f.nextInt(),
+                            new Color(f.nextColor(), true), f.nextFloat());
+                    break;
                 }
 
-            } else if (msg.startsWith("CLEAR|")) {
-                drawPanel.clearBoard();
+                case MessageType.STROKE_END:
+                    if (clearsSent > 0) break;
+                    drawPanel.endRemoteStroke(fields.reset(msg).nextLong());
+                    break;
+
+                case MessageType.CLEAR:
+                    applyClear(msg);
+                    break;
+
+                case MessageType.EPOCH:
+                    // EPOCH|epoch at the end of JOIN: the server orders our drawing
+                    boardOrdered = true;
+                    unackedOps.clear();
+                    clearsSent = 0;
+                    drawPanel.setServerOrdered(true);
+                    break;
+
+                case MessageType.BOARD_ACK:
+                    acknowledgeOps(Integer.parseInt(msg.substring("BOARD_ACK|".length())));
+                    break;
 
-            } else if (msg.startsWith("CURSOR|")) {
-                // CURSOR|username|x|y
-                String[] parts = msg.split("\\|");
-                if (parts.length >= 4) {
-                    String user = parts[1];
-                    int x = Integer.parseInt(parts[2]);
-                    int y = Integer.parseInt(parts[3]);
+                case MessageType.BOARD_BEGIN:
+                    // BOARD_BEGIN|operationCount, then BOARD_CHUNKs, then BOARD_END|
+                    if (rejoining) {
+                        // Not resumed: the chat history follows in full
+                        rejoining = false;
+                        chatArea.setText("");
+                    }
+                    drawPanel.beginBatch();
+                    break;
+
+                case MessageType.RESUMED:
+                    // RESUMED|seq, then only what we missed
+                    rejoining = false;
+                    break;
+
+                case MessageType.SESSION:
+                case MessageType.SEQ:
+                    // Read by the reader thread already
+                    break;
+
+                case MessageType.BOARD_CHUNK:
+                    applyBoardChunk(Base64.getDecoder().decode(msg.substring("BOARD_CHUNK|".length())));
+                    break;
+
+                case MessageType.BOARD_END:
+                    drawPanel.endBatch();
+                    break;
+
+                case MessageType.CURSOR: {
+                    // CURSOR|username|x|y
+                    FieldReader f = fields.reset(msg);
+                    String user = f.nextString();
+                    int x = f.nextInt();
+                    int y = f.nextInt();
                     // server does not echo our own cursor, so these are remote users
                     drawPanel.updateUserCursor(user, x, y);
+                    break;
+                }
+
+                case MessageType.CURSORS:
+                    // CURSORS|u1,x,y;u2,x,y;... (includes our own cursor)
+                    drawPanel.updateUserCursors(CursorList.parseNames(msg),
+                            CursorList.parsePositions(msg), username);
+                    break;
+
+                case MessageType.PING:
+                    // PING|token -> PONG|token
+                    send("PONG" + msg.substring("PING".length()));
+                    break;
+
+                case MessageType.PONG:
+                    break;
+
+                case MessageType.USERS: {
+                    // USERS|version|u1,u2,u3 - the whole list, on joining or on request
+                    String[] parts = msg.split("\\|", 3);
+                    if (parts.length == 3) {
+                        userListVersion = Long.parseLong(parts[1]);
+                        userListRequested = false;
+                        setParticipants(parts[2]);
+                    }
+                    break;
                 }
 
-            } else if (msg.startsWith("USERLIST|")) {
-                // USERLIST|u1,u2,u3
-                String[] parts = msg.split("\\|", 2);
-                Set<String> active = new HashSet<>();
-                participantsModel.clear();
-                if (parts.length == 2 && !parts[1].isEmpty()) {
-                    String[] names = parts[1].split(",");
-                    for (String n : names) {
-                        String trimmed = n.trim();
-                        if (!trimmed.isEmpty()) {
-                            participantsModel.addElement(trimmed);
-                            active.add(trimmed);
+                case MessageType.USER_JOIN:
+                case MessageType.USER_LEAVE: {
+                    // USER_JOIN|version|name or USER_LEAVE|version|name
+                    String[] parts = msg.split("\\|", 3);
+                    if (parts.length == 3) {
+                        long version = Long.parseLong(parts[1]);
+                        if (version <= userListVersion) {
+                            // Already in the list we have
+                        } else if (version != userListVersion + 1) {
+                            // Missed a change; ask for the whole list once
+                            if (!userListRequested) {
+                                userListRequested = true;
+                                send("USERS|");
+                            }
+                        } else {
+                            userListVersion = version;
+                            if (msg.startsWith("USER_JOIN|")) {
+                                participantsModel.addElement(parts[2]);
+                            } else {
+                                participantsModel.removeElement(parts[2]);
+                                drawPanel.removeUserCursor(parts[2]);
+                            }
                         }
                     }
+                    break;
                 }
-                drawPanel.syncUserCursors(active);
 
-            } else if (msg.startsWith("ROLE|")) {
-                // ROLE|TEACHER or ROLE|STUDENT
-                String[] parts = msg.split("\\|", 2);
-                if (parts.length == 2) {
-                    String role = parts[1];
-                    isTeacher = "TEACHER".equalsIgnoreCase(role);
-                    refreshRoleUI();
+                case MessageType.USERLIST: {
+                    // USERLIST|u1,u2,u3 from a server without USERS
+                    String[] parts = msg.split("\\|", 2);
+                    setParticipants(parts.length == 2 ? parts[1] : "");
+                    break;
+                }
+
+                case MessageType.ROLE: {
+                    // ROLE|TEACHER or ROLE|STUDENT
+                    String[] parts = msg.split("\\|", 2);
+                    if (parts.length == 2) {
+                        String role = parts[1];
+                        isTeacher = "TEACHER".equalsIgnoreCase(role);
+                        refreshRoleUI();
+                    }
+                    break;
                 }
 
-            } else if (msg.startsWith("USERNAME|")) {
-                String[] parts = msg.split("\\|", 2);
-                if (parts.length == 2) {
-                    username = parts[1];
-                    frame.setTitle("CollabBoard – Interactive Classroom | " + username);
-                    if (userLabel != null) {
-                        userLabel.setText(" Connected as " + username + "  ");
+                case MessageType.USERNAME: {
+                    String[] parts = msg.split("\\|", 2);
+                    if (parts.length == 2) {
+                        username = parts[1];
+                        frame.setTitle(windowTitle());
+                        if (userLabel != null) {
+                            userLabel.setText(" Connected as " + username + "  ");
+                        }
                     }
+                    break;
                 }
 
-            } else if (msg.startsWith("BOARD_LOCK|")) {
-                // BOARD_LOCK|true/false
-                String[] parts = msg.split("\\|", 2);
-                if (parts.length == 2) {
-                    boardLocked = Boolean.parseBoolean(parts[1]);
-                    boardStatusLabel.setText(
-                            boardLocked ? " Board locked by teacher"
-                                    : " Board unlocked");
+                case MessageType.BOARD_LOCK: {
+                    // BOARD_LOCK|true/false
+                    String[] parts = msg.split("\\|", 2);
+                    if (parts.length == 2) {
+                        boardLocked = Boolean.parseBoolean(parts[1]);
+                        boardStatusLabel.setText(
+                                boardLocked ? " Board locked by teacher"
+                                        : " Board unlocked");
+
+                        if (isTeacher) {
+                            suppressLockToggleEvent = true;
+                            lockToggle.setSelected(boardLocked);
+                            suppressLockToggleEvent = false;
+                        }
+                        updateDrawingPermission();
+                    }
+                    break;
+                }
 
-                    if (isTeacher) {
-                        suppressLockToggleEvent = true;
-                        lockToggle.setSelected(boardLocked);
-                        suppressLockToggleEvent = false;
+                case MessageType.POLL_CREATE: {
+                    // POLL_CREATE|username|pollId|question|opt1;opt2;...[|seconds]
+                    String[] parts = msg.split("\\|", 6);
+                    if (parts.length >= 5) {
+                        String pollId = parts[2];
+                        String question = parts[3];
+                        String[] options = parts[4].split(";");
+                        pollPanel.showPoll(pollId, question, options);
                     }
-                    updateDrawingPermission();
-                }
-
-            } else if (msg.startsWith("POLL_CREATE|")) {
-                // POLL_CREATE|username|pollId|question|opt1;opt2;...
-                String[] parts = msg.split("\\|", 5);
-                if (parts.length >= 5) {
-                    String pollId = parts[2];
-                    String question = parts[3];
-                    String[] options = parts[4].split(";");
-                    pollPanel.showPoll(pollId, question, options);
-                }
-
-            } else if (msg.startsWith("POLL_RESULTS|")) {
-                // POLL_RESULTS|pollId|c0;c1;c2;...
-                String[] parts = msg.split("\\|", 3);
-                if (parts.length == 3) {
-                    String pollId = parts[1];
-                    String[] cParts = parts[2].split(";");
-                    int[] counts = new int[cParts.length];
-                    for (int i = 0; i < cParts.length; i++) {
-                        try {
-                            counts[i] = Integer.parseInt(cParts[i]);
-                        } catch (NumberFormatException e) {
-                            counts[i] = 0;
+                    break;
+                }
+
+                case MessageType.POLL_RESULTS: {
+                    // POLL_RESULTS|pollId|c0;c1;c2;...
+                    String[] parts = msg.split("\\|", 3);
+                    if (parts.length == 3) {
+                        String pollId = parts[1];
+                        String[] cParts = parts[2].split(";");
+                        int[] counts = new int[cParts.length];
+                        for (int i = 0; i < cParts.length; i++) {
+                            try {
+                                counts[i] = Integer.parseInt(cParts[i]);
+                            } catch (NumberFormatException e) {
+                                counts[i] = 0;
+                            }
                         }
+                        pollPanel.updateResults(pollId, counts);
                     }
-                    pollPanel.updateResults(pollId, counts);
+                    break;
                 }
+
+                case MessageType.POLL_CLOSE: {
+                    // POLL_CLOSE|username|pollId
+                    String[] parts = msg.split("\\|", 3);
+                    if (parts.length == 3) {
+                        pollPanel.closePoll(parts[2]);
+                    }
+                    break;
+                }
+
+                default:
+                    break;
             }
 
         } catch (Exception ex) {
@@ -809,6 +1489,9 @@ public class WhiteboardClient {
         if (clearBoardButton != null) {
             clearBoardButton.setEnabled(isTeacher);
         }
+        if (pollPanel != null) {
+            pollPanel.refreshRole();
+        }
         updateDrawingPermission();
     }
 
@@ -823,6 +1506,7 @@ public class WhiteboardClient {
         JTextField opt2Field = new JTextField();
         JTextField opt3Field = new JTextField();
         JTextField opt4Field = new JTextField();
+        JTextField secondsField = new JTextField();
 
         JPanel panel = new JPanel(new GridLayout(0, 1, 4, 4));
         panel.add(new JLabel("Question:"));
@@ -835,6 +1519,8 @@ public class WhiteboardClient {
         panel.add(opt3Field);
         panel.add(new JLabel("Option 4 (optional):"));
         panel.add(opt4Field);
+        panel.add(new JLabel("Close after seconds (optional):"));
+        panel.add(secondsField);
 
         int result = JOptionPane.showConfirmDialog(
                 frame, panel, "Create Poll",
@@ -881,8 +1567,18 @@ public class WhiteboardClient {
             sb.append(opts.get(i).replace("|", " ").replace(";", " "));
         }
 
-        out.println("POLL_CREATE|" + username + "|" + pollId + "|" +
-                question.replace("|", " ") + "|" + sb);
+        String limit = "";
+        try {
+            int seconds = Integer.parseInt(secondsField.getText().trim());
+            if (seconds > 0) {
+                limit = "|" + seconds;
+            }
+        } catch (NumberFormatException ignored) {
+            // No time limit
+        }
+
+        send("POLL_CREATE|" + username + "|" + pollId + "|" +
+                question.replace("|", " ") + "|" + sb + limit);
     }
 
     // ---------------------------------------------------------
@@ -890,13 +1586,11 @@ public class WhiteboardClient {
     // ---------------------------------------------------------
 
     private class PollPanel extends JPanel {
-        private String currentPollId = null;
-        private JLabel titleLabel;
-        private JRadioButton[] optionButtons;
-        private JProgressBar[] optionBars;
-        private ButtonGroup optionGroup;
-        private JButton voteButton;
-        private JLabel emptyLabel;
+        // Polls shown at once; beyond that the oldest closed one goes first
+        private final int maxCards = 4;
+        private final Map<String, PollCard> cards = new LinkedHashMap<>();
+        private final JPanel list;
+        private final JLabel emptyLabel;
 
         PollPanel() {
             setLayout(new BorderLayout());
@@ -906,115 +1600,229 @@ public class WhiteboardClient {
             emptyLabel = new JLabel("No active poll.");
             emptyLabel.setForeground(new Color(148, 163, 184));
             emptyLabel.setFont(emptyLabel.getFont().deriveFont(11f));
-            add(emptyLabel, BorderLayout.CENTER);
+            add(emptyLabel, BorderLayout.NORTH);
+
+            list = new JPanel();
+            list.setOpaque(false);
+            list.setLayout(new BoxLayout(list, BoxLayout.Y_AXIS));
+            JScrollPane scroll = new JScrollPane(list,
+                    ScrollPaneConstants.VERTICAL_SCROLLBAR_AS_NEEDED,
+                    ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
+            scroll.setOpaque(false);
+            scroll.getViewport().setOpaque(false);
+            scroll.setBorder(null);
+            add(scroll, BorderLayout.CENTER);
+        }
+
+        @Override
+        public Dimension getPreferredSize() {
+            // Grow with the polls, but leave most of the column to the chat
+            Dimension d = super.getPreferredSize();
+            return new Dimension(d.width, Math.min(d.height, 340));
         }
 
+        /** Add a card for a new poll; the cards already shown are left alone. */
         void showPoll(String pollId, String question, String[] options) {
-            removeAll();
-            currentPollId = pollId;
+            if (cards.containsKey(pollId)) return;
+            PollCard card = new PollCard(pollId, question, options);
+            cards.put(pollId, card);
+            list.add(card.panel, 0);
+            trimCards();
+            emptyLabel.setVisible(false);
+            revalidate();
+            repaint();
+        }
 
-            JPanel card = new JPanel(new BorderLayout(8, 8));
-            card.setBackground(new Color(15, 23, 42));
-            card.setBorder(BorderFactory.createCompoundBorder(
-                    BorderFactory.createLineBorder(new Color(30, 64, 175), 1, true),
-                    new EmptyBorder(10, 10, 10, 10)
-            ));
+        void updateResults(String pollId, int[] counts) {
+            PollCard card = cards.get(pollId);
+            if (card != null) {
+                card.update(counts);
+            }
+        }
 
-            titleLabel = new JLabel("Poll: " + question);
-            titleLabel.setForeground(new Color(241, 245, 249));
-            titleLabel.setFont(titleLabel.getFont().deriveFont(Font.BOLD, 13f));
+        void closePoll(String pollId) {
+            PollCard card = cards.get(pollId);
+            if (card != null) {
+                card.close();
+            }
+        }
 
-            JPanel top = new JPanel(new BorderLayout());
-            top.setOpaque(false);
-            top.add(titleLabel, BorderLayout.CENTER);
+        void refreshRole() {
+            for (PollCard card : cards.values()) {
+                card.closeButton.setVisible(isTeacher && !card.closed);
+            }
+        }
 
-            card.add(top, BorderLayout.NORTH);
+        private void trimCards() {
+            while (cards.size() > maxCards) {
+                PollCard victim = null;
+                for (PollCard card : cards.values()) {
+                    if (card.closed) {
+                        victim = card;
+                        break;
+                    }
+                }
+                if (victim == null) {
+                    Iterator<PollCard> it = cards.values().iterator();
+                    victim = it.next();
+                }
+                cards.remove(victim.pollId);
+                list.remove(victim.panel);
+            }
+        }
 
-            int n = options.length;
-            optionButtons = new JRadioButton[n];
-            optionBars = new JProgressBar[n];
-            optionGroup = new ButtonGroup();
+        // One poll's components, built once and then updated in place
+        private final class PollCard {
+            final String pollId;
+            final JPanel panel;
+            final JLabel titleLabel;
+            final JRadioButton[] optionButtons;
+            final JProgressBar[] optionBars;
+            final JButton voteButton;
+            final JButton closeButton;
+            private int[] shown;
+            boolean closed = false;
+
+            PollCard(String pollId, String question, String[] options) {
+                this.pollId = pollId;
+
+                panel = new JPanel(new BorderLayout(8, 8));
+                panel.setBackground(new Color(15, 23, 42));
+                panel.setBorder(BorderFactory.createCompoundBorder(
+                        BorderFactory.createCompoundBorder(
+                                new EmptyBorder(0, 0, 6, 0),
+                                BorderFactory.createLineBorder(new Color(30, 64, 175), 1, true)),
+                        new EmptyBorder(10, 10, 10, 10)
+                ));
+
+                titleLabel = new JLabel("Poll: " + question);
+                titleLabel.setForeground(new Color(241, 245, 249));
+                titleLabel.setFont(titleLabel.getFont().deriveFont(Font.BOLD, 13f));
+
+                JPanel top = new JPanel(new BorderLayout());
+                top.setOpaque(false);
+                top.add(titleLabel, BorderLayout.CENTER);
+
+                panel.add(top, BorderLayout.NORTH);
+
+                int n = options.length;
+                optionButtons = new JRadioButton[n];
+                optionBars = new JProgressBar[n];
+                shown = new int[n];
+                ButtonGroup optionGroup = new ButtonGroup();
+
+                JPanel center = new JPanel();
+                center.setOpaque(false);
+                center.setLayout(new GridLayout(n, 1, 4, 4));
+
+                for (int i = 0; i < n; i++) {
+                    JPanel row = new JPanel(new BorderLayout(4, 2));
+                    row.setOpaque(false);
+
+                    optionButtons[i] = new JRadioButton(options[i]);
+                    optionButtons[i].setOpaque(false);
+                    optionButtons[i].setForeground(new Color(226, 232, 240));
+                    optionButtons[i].setFont(optionButtons[i].getFont().deriveFont(12f));
+                    optionGroup.add(optionButtons[i]);
+
+                    optionBars[i] = new JProgressBar(0, 100);
+                    optionBars[i].setStringPainted(true);
+                    optionBars[i].setValue(0);
+                    optionBars[i].setString("0 (0%)");
+                    optionBars[i].setForeground(new Color(56, 189, 248));
+
+                    row.add(optionButtons[i], BorderLayout.WEST);
+                    row.add(optionBars[i], BorderLayout.CENTER);
+                    center.add(row);
+                }
 
-            JPanel center = new JPanel();
-            center.setOpaque(false);
-            center.setLayout(new GridLayout(n, 1, 4, 4));
+                panel.add(center, BorderLayout.CENTER);
 
-            for (int i = 0; i < n; i++) {
-                JPanel row = new JPanel(new BorderLayout(4, 2));
-                row.setOpaque(false);
+                voteButton = new JButton("Vote");
+                voteButton.setFocusPainted(false);
+                voteButton.setBackground(new Color(56, 189, 248));
+                voteButton.setForeground(Color.BLACK);
+                voteButton.setFont(voteButton.getFont().deriveFont(Font.BOLD, 11f));
+                voteButton.addActionListener(e -> sendVote());
 
-                optionButtons[i] = new JRadioButton(options[i]);
-                optionButtons[i].setOpaque(false);
-                optionButtons[i].setForeground(new Color(226, 232, 240));
-                optionButtons[i].setFont(optionButtons[i].getFont().deriveFont(12f));
-                optionGroup.add(optionButtons[i]);
+                closeButton = new JButton("Close");
+                closeButton.setFocusPainted(false);
+                closeButton.setFont(closeButton.getFont().deriveFont(11f));
+                closeButton.setVisible(isTeacher);
+                closeButton.addActionListener(e -> send("POLL_CLOSE|" + username + "|" + pollId));
 
-                optionBars[i] = new JProgressBar(0, 100);
-                optionBars[i].setStringPainted(true);
-                optionBars[i].setValue(0);
-                optionBars[i].setForeground(new Color(56, 189, 248));
+                JPanel bottom = new JPanel(new FlowLayout(FlowLayout.RIGHT, 6, 0));
+                bottom.setOpaque(false);
+                bottom.add(closeButton);
+                bottom.add(voteButton);
 
-                row.add(optionButtons[i], BorderLayout.WEST);
-                row.add(optionBars[i], BorderLayout.CENTER);
-                center.add(row);
+                panel.add(bottom, BorderLayout.SOUTH);
             }
 
-            card.add(center, BorderLayout.CENTER);
-
-            voteButton = new JButton("Vote");
-            voteButton.setFocusPainted(false);
-            voteButton.setBackground(new Color(56, 189, 248));
-            voteButton.setForeground(Color.BLACK);
-            voteButton.setFont(voteButton.getFont().deriveFont(Font.BOLD, 11f));
-            voteButton.addActionListener(e -> sendVote());
-
-            JPanel bottom = new JPanel(new FlowLayout(FlowLayout.RIGHT, 0, 0));
-            bottom.setOpaque(false);
-            bottom.add(voteButton);
-
-            card.add(bottom, BorderLayout.SOUTH);
-
-            add(card, BorderLayout.CENTER);
-            revalidate();
-            repaint();
-        }
+            private void sendVote() {
+                if (out == null || closed) return;
 
-        private void sendVote() {
-            if (out == null || currentPollId == null) return;
+                int index = -1;
+                for (int i = 0; i < optionButtons.length; i++) {
+                    if (optionButtons[i].isSelected()) {
+                        index = i;
+                        break;
+                    }
+                }
 
-            int index = -1;
-            for (int i = 0; i < optionButtons.length; i++) {
-                if (optionButtons[i].isSelected()) {
-                    index = i;
-                    break;
+                if (index == -1) {
+                    JOptionPane.showMessageDialog(frame,
+                            "Please select an option before voting.",
+                            "No option selected",
+                            JOptionPane.WARNING_MESSAGE);
+                    return;
                 }
-            }
 
-            if (index == -1) {
-                JOptionPane.showMessageDialog(frame,
-                        "Please select an option before voting.",
-                        "No option selected",
-                        JOptionPane.WARNING_MESSAGE);
-                return;
+                send("POLL_VOTE|" + username + "|" + pollId + "|" + index);
+                // The server counts one vote per user
+                setVotingEnabled(false);
+                voteButton.setText("Voted");
             }
 
-            out.println("POLL_VOTE|" + username + "|" + currentPollId + "|" + index);
-        }
+            void update(int[] counts) {
+                int total = 0;
+                for (int c : counts) {
+                    total += c;
+                }
+                int shownTotal = 0;
+                for (int c : shown) {
+                    shownTotal += c;
+                }
 
-        void updateResults(String pollId, int[] counts) {
-            if (currentPollId == null || !currentPollId.equals(pollId)) return;
-            if (optionBars == null) return;
+                for (int i = 0; i < optionBars.length && i < counts.length; i++) {
+                    // Percentages move with the total even if this count did not
+                    if (counts[i] == shown[i] && total == shownTotal) continue;
+                    int c = counts[i];
+                    int pct = (total == 0) ? 0 : (int) Math.round(100.0 * c / total);
+                    optionBars[i].setValue(pct);
+                    optionBars[i].setString(c + " (" + pct + "%)");
+                }
+                System.arraycopy(counts, 0, shown, 0, Math.min(counts.length, shown.length));
+            }
 
-            int total = 0;
-            for (int c : counts) {
-                total += c;
+            void close() {
+                if (closed) return;
+                closed = true;
+                titleLabel.setText(titleLabel.getText() + " (closed)");
+                setVotingEnabled(false);
+                voteButton.setVisible(false);
+                closeButton.setVisible(false);
+                // A closed poll is the first to make room for new ones
+                trimCards();
+                list.revalidate();
+                list.repaint();
             }
 
-            for (int i = 0; i < optionBars.length && i < counts.length; i++) {
-                int c = counts[i];
-                int pct = (total == 0) ? 0 : (int) Math.round(100.0 * c / total);
-                optionBars[i].setValue(pct);
-                optionBars[i].setString(c + " (" + pct + "%)");
+            private void setVotingEnabled(boolean enabled) {
+                voteButton.setEnabled(enabled);
+                for (JRadioButton b : optionButtons) {
+                    b.setEnabled(enabled);
+                }
             }
         }
     }
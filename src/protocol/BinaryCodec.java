@@ -0,0 +1,587 @@
+package protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Compact binary form of the whiteboard protocol.
+ *
+ * Every frame is
+ *   varint length | opcode byte | payload      (length counts opcode + payload)
+ *
+ * Opcodes:
+ *   OP_TEXT    payload is one text-protocol line in UTF-8 (chat, polls, ...)
+ *   OP_DRAW    zigzag x1, y1, then x2-x1, y2-y1 (varints), palette index
+ *              (0xFF = ARGB follows as 4 bytes), stroke in quarter pixels
+ *   OP_CURSOR  varint name length, UTF-8 name, zigzag x, y
+ *   OP_STROKE_BEGIN   varint stroke id, zigzag x, y, colour, stroke (as DRAW)
+ *   OP_STROKE_POINTS  varint stroke id, varint count, count zigzag dx, dy pairs
+ *   OP_STROKE_END     varint stroke id
+ *   OP_CURSORS        varint count, then per cursor as OP_CURSOR
+ *   OP_BOARD_CHUNK    complete DRAW / STROKE_* frames, back to back
+ *                     (text form: BOARD_CHUNK|base64 of the same bytes)
+ *
+ * A typical stroke segment is 10 bytes instead of ~35 for the text line.
+ * Binary mode is negotiated during JOIN (see WhiteboardServer); text remains
+ * the fallback.
+ *
+ * The decoders throw IllegalArgumentException for a frame that ends too
+ * soon or does not make sense. Frames from a peer that is not trusted go
+ * through {@link #check} once on receipt, so nothing further along (the
+ * board, the journal, the conversion to text) ever sees a broken one.
+ */
+public final class BinaryCodec {
+
+    public static final byte OP_TEXT = 1;
+    public static final byte OP_DRAW = 2;
+    public static final byte OP_CURSOR = 3;
+    public static final byte OP_STROKE_BEGIN = 4;
+    public static final byte OP_STROKE_POINTS = 5;
+    public static final byte OP_STROKE_END = 6;
+    public static final byte OP_CURSORS = 7;
+    public static final byte OP_BOARD_CHUNK = 8;
+
+    /** Capability flag a client appends to JOIN to offer binary framing. */
+    public static final String JOIN_CAPABILITY = "BIN";
+    /** First line the server sends back when binary framing is accepted. */
+    public static final String PROTO_BINARY = "PROTO|BIN";
+    public static final String PROTO_TEXT = "PROTO|TEXT";
+    /**
+     * Capability flag a client appends to JOIN to accept a compressed stream.
+     * A server that agrees appends it to its PROTO reply; everything after
+     * that line is one zlib stream, sync-flushed after every batch.
+     */
+    public static final String DEFLATE_CAPABILITY = "DEFLATE";
+
+    public static final int MAX_FRAME_LENGTH = 64 * 1024;
+
+    private static final int PALETTE_ESCAPE = 0xFF;
+
+    // Colours the client UI can produce: tool swatches, default pen and the
+    // board backgrounds used by the eraser.
+    private static final int[] PALETTE = {
+            0xFFF8FAFC, 0xFF89B4FA, 0xFF5EEAD4, 0xFFFFCB6B, 0xFFF87171, 0xFFCBD5E1,
+            0xFF38BDF8, 0xFFF9FAFC, 0xFFF9FAFF, 0xFF000000, 0xFFFFFFFF
+    };
+
+    private BinaryCodec() {}
+
+    /** Decoded OP_DRAW payload. */
+    public static final class DrawOp {
+        public int x1, y1, x2, y2;
+        public int argb;
+        public float stroke;
+    }
+
+    /** Decoded OP_STROKE_* payload; unused fields are left alone. */
+    public static final class StrokeOp {
+        public long strokeId;
+        public int x, y;
+        public int argb;
+        public float stroke;
+        /** Flat (dx, dy) pairs for OP_STROKE_POINTS. */
+        public int[] deltas;
+    }
+
+    /** Decoded OP_CURSOR payload. */
+    public static final class CursorOp {
+        public String username;
+        public int x, y;
+    }
+
+    // ---- Encoding ----
+
+    public static byte[] encodeText(String line) {
+        byte[] utf8 = line.getBytes(StandardCharsets.UTF_8);
+        Sink sink = new Sink(utf8.length + 6);
+        sink.begin(OP_TEXT);
+        sink.write(utf8, 0, utf8.length);
+        return sink.finish();
+    }
+
+    public static byte[] encodeDraw(int x1, int y1, int x2, int y2, int argb, float stroke) {
+        Sink sink = new Sink(24);
+        sink.begin(OP_DRAW);
+        sink.zigzag(x1);
+        sink.zigzag(y1);
+        sink.zigzag(x2 - x1);
+        sink.zigzag(y2 - y1);
+        sink.color(argb);
+        sink.put(quantiseStroke(stroke));
+        return sink.finish();
+    }
+
+    public static byte[] encodeStrokeBegin(long strokeId, int x, int y, int argb, float stroke) {
+        Sink sink = new Sink(24);
+        sink.begin(OP_STROKE_BEGIN);
+        sink.varlong(strokeId);
+        sink.zigzag(x);
+        sink.zigzag(y);
+        sink.color(argb);
+        sink.put(quantiseStroke(stroke));
+        return sink.finish();
+    }
+
+    /** @param deltas flat (dx, dy) pairs, {@code count} pairs are used */
+    public static byte[] encodeStrokePoints(long strokeId, int[] deltas, int count) {
+        Sink sink = new Sink(12 + count * 2);
+        sink.begin(OP_STROKE_POINTS);
+        sink.varlong(strokeId);
+        sink.varint(count);
+        for (int i = 0; i < 2 * count; i++) {
+            sink.zigzag(deltas[i]);
+        }
+        return sink.finish();
+    }
+
+    public static byte[] encodeStrokeEnd(long strokeId) {
+        Sink sink = new Sink(12);
+        sink.begin(OP_STROKE_END);
+        sink.varlong(strokeId);
+        return sink.finish();
+    }
+
+    public static byte[] encodeCursor(String username, int x, int y) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        Sink sink = new Sink(name.length + 16);
+        sink.begin(OP_CURSOR);
+        sink.varint(name.length);
+        sink.write(name, 0, name.length);
+        sink.zigzag(x);
+        sink.zigzag(y);
+        return sink.finish();
+    }
+
+    /** @param xy flat (x, y) pairs, one per name */
+    public static byte[] encodeCursors(String[] names, int[] xy, int count) {
+        Sink sink = new Sink(count * 16 + 8);
+        sink.begin(OP_CURSORS);
+        sink.varint(count);
+        for (int i = 0; i < count; i++) {
+            byte[] name = names[i].getBytes(StandardCharsets.UTF_8);
+            sink.varint(name.length);
+            sink.write(name, 0, name.length);
+            sink.zigzag(xy[2 * i]);
+            sink.zigzag(xy[2 * i + 1]);
+        }
+        return sink.finish();
+    }
+
+    /** @param frames complete frames, back to back; at most MAX_FRAME_LENGTH - 1 bytes */
+    public static byte[] encodeBoardChunk(byte[] frames, int off, int len) {
+        Sink sink = new Sink(len + 1);
+        sink.begin(OP_BOARD_CHUNK);
+        sink.write(frames, off, len);
+        return sink.finish();
+    }
+
+    /**
+     * Binary frame for a text-protocol line. DRAW and CURSOR lines get their
+     * compact encoding; anything else (or a malformed line) is sent as OP_TEXT.
+     */
+    public static byte[] fromText(String line) {
+        try {
+            FieldReader f;
+            switch (MessageType.of(line)) {
+                case MessageType.DRAW:
+                    f = new FieldReader().reset(line);
+                    return encodeDraw(f.nextInt(), f.nextInt(), f.nextInt(), f.nextInt(),
+                            f.nextColor(), f.nextFloat());
+                case MessageType.CURSOR:
+                    f = new FieldReader().reset(line);
+                    return encodeCursor(f.nextString(), f.nextInt(), f.nextInt());
+                case MessageType.CURSORS: {
+                    String[] names = CursorList.parseNames(line);
+                    int[] xy = CursorList.parsePositions(line);
+                    return encodeCursors(names, xy, names.length);
+                }
+                case MessageType.STROKE_POINTS: {
+                    f = new FieldReader().reset(line);
+                    long strokeId = f.nextLong();
+                    int[] deltas = StrokePoints.parse(f.nextString());
+                    return encodeStrokePoints(strokeId, deltas, deltas.length / 2);
+                }
+                case MessageType.STROKE_BEGIN:
+                    f = new FieldReader().reset(line);
+                    return encodeStrokeBegin(f.nextLong(), f.nextInt(), f.nextInt(),
+                            f.nextColor(), f.nextFloat());
+                case MessageType.STROKE_END:
+                    return encodeStrokeEnd(new FieldReader().reset(line).nextLong());
+                case MessageType.BOARD_CHUNK: {
+                    byte[] frames = Base64.getDecoder().decode(line.substring("BOARD_CHUNK|".length()));
+                    return encodeBoardChunk(frames, 0, frames.length);
+                }
+                default:
+                    break;
+            }
+        } catch (IllegalArgumentException ignored) {
+            // Bad number or base64: let the receiver deal with it as text
+        }
+        return encodeText(line);
+    }
+
+    // ---- Decoding ----
+
+    /**
+     * Decode a complete frame from an untrusted peer all the way through.
+     * An OP_BOARD_CHUNK must hold only complete DRAW / STROKE_* frames.
+     *
+     * @throws IllegalArgumentException if the frame is not exactly one
+     *         well-formed frame of a known opcode
+     */
+    public static void check(byte[] frame) {
+        Source src = new Source(frame, 0);
+        int length = src.varint();
+        if (length < 1 || length != frame.length - src.pos) {
+            throw new IllegalArgumentException("Frame length does not match its prefix");
+        }
+        byte op = (byte) src.get();
+        switch (op) {
+            case OP_TEXT:
+                return;
+            case OP_DRAW:
+                readDraw(src, new DrawOp());
+                break;
+            case OP_CURSOR:
+                readCursor(src, new CursorOp());
+                break;
+            case OP_CURSORS:
+                readCursors(src);
+                break;
+            case OP_STROKE_BEGIN:
+            case OP_STROKE_POINTS:
+            case OP_STROKE_END:
+                readStroke(src, op, new StrokeOp());
+                break;
+            case OP_BOARD_CHUNK:
+                while (src.pos < frame.length) {
+                    int len = frameLength(frame, src.pos, frame.length);
+                    if (len < 0 || len > frame.length - src.pos) throw Source.truncated();
+                    byte[] inner = Arrays.copyOfRange(frame, src.pos, src.pos + len);
+                    byte innerOp = opcode(inner);
+                    if (innerOp != OP_DRAW && (innerOp < OP_STROKE_BEGIN || innerOp > OP_STROKE_END)) {
+                        throw new IllegalArgumentException("Opcode " + innerOp + " in a board chunk");
+                    }
+                    check(inner);
+                    src.pos += len;
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown opcode " + op);
+        }
+        if (src.pos != frame.length) {
+            throw new IllegalArgumentException((frame.length - src.pos) + " bytes after the payload");
+        }
+    }
+
+    /** Opcode of a complete frame. */
+    public static byte opcode(byte[] frame) {
+        return frame[payloadStart(frame) - 1];
+    }
+
+    /** Text-protocol line equivalent to a complete frame. */
+    public static String toText(byte[] frame) {
+        switch (opcode(frame)) {
+            case OP_DRAW: {
+                DrawOp d = new DrawOp();
+                decodeDraw(frame, d);
+                return "DRAW|" + d.x1 + "|" + d.y1 + "|" + d.x2 + "|" + d.y2 + "|" +
+                        d.argb + "|" + d.stroke;
+            }
+            case OP_CURSOR: {
+                CursorOp c = new CursorOp();
+                decodeCursor(frame, c);
+                return "CURSOR|" + c.username + "|" + c.x + "|" + c.y;
+            }
+            case OP_CURSORS: {
+                CursorOp[] cursors = decodeCursors(frame);
+                String[] names = new String[cursors.length];
+                int[] xy = new int[2 * cursors.length];
+                for (int i = 0; i < cursors.length; i++) {
+                    names[i] = cursors[i].username;
+                    xy[2 * i] = cursors[i].x;
+                    xy[2 * i + 1] = cursors[i].y;
+                }
+                return CursorList.format(names, xy, names.length);
+            }
+            case OP_STROKE_BEGIN: {
+                StrokeOp s = new StrokeOp();
+                decodeStroke(frame, s);
+                return "STROKE_BEGIN|" + s.strokeId + "|" + s.x + "|" + s.y + "|" +
+                        s.argb + "|" + s.stroke;
+            }
+            case OP_STROKE_POINTS: {
+                StrokeOp s = new StrokeOp();
+                decodeStroke(frame, s);
+                return "STROKE_POINTS|" + s.strokeId + "|" +
+                        StrokePoints.format(s.deltas, s.deltas.length / 2);
+            }
+            case OP_STROKE_END: {
+                StrokeOp s = new StrokeOp();
+                decodeStroke(frame, s);
+                return "STROKE_END|" + s.strokeId;
+            }
+            case OP_BOARD_CHUNK:
+                return "BOARD_CHUNK|" + Base64.getEncoder().encodeToString(decodeBoardChunk(frame));
+            default: {
+                int start = payloadStart(frame);
+                return new String(frame, start, frame.length - start, StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    public static void decodeDraw(byte[] frame, DrawOp into) {
+        readDraw(new Source(frame, payloadStart(frame)), into);
+    }
+
+    private static void readDraw(Source src, DrawOp into) {
+        into.x1 = src.zigzag();
+        into.y1 = src.zigzag();
+        into.x2 = into.x1 + src.zigzag();
+        into.y2 = into.y1 + src.zigzag();
+        into.argb = src.color();
+        into.stroke = src.get() / 4.0f;
+    }
+
+    /** Decode any of the three OP_STROKE_* frames. */
+    public static void decodeStroke(byte[] frame, StrokeOp into) {
+        readStroke(new Source(frame, payloadStart(frame)), opcode(frame), into);
+    }
+
+    private static void readStroke(Source src, byte op, StrokeOp into) {
+        into.strokeId = src.varlong();
+        if (op == OP_STROKE_BEGIN) {
+            into.x = src.zigzag();
+            into.y = src.zigzag();
+            into.argb = src.color();
+            into.stroke = src.get() / 4.0f;
+        } else if (op == OP_STROKE_POINTS) {
+            // Every delta takes at least one byte
+            int count = src.count(2);
+            int[] deltas = new int[2 * count];
+            for (int i = 0; i < deltas.length; i++) {
+                deltas[i] = src.zigzag();
+            }
+            into.deltas = deltas;
+        }
+    }
+
+    public static void decodeCursor(byte[] frame, CursorOp into) {
+        Source src = new Source(frame, payloadStart(frame));
+        readCursor(src, into);
+    }
+
+    /** The frames carried by an OP_BOARD_CHUNK frame, back to back. */
+    public static byte[] decodeBoardChunk(byte[] frame) {
+        return Arrays.copyOfRange(frame, payloadStart(frame), frame.length);
+    }
+
+    public static CursorOp[] decodeCursors(byte[] frame) {
+        return readCursors(new Source(frame, payloadStart(frame)));
+    }
+
+    private static CursorOp[] readCursors(Source src) {
+        // A name length and two coordinates: three bytes at least
+        CursorOp[] out = new CursorOp[src.count(3)];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = new CursorOp();
+            readCursor(src, out[i]);
+        }
+        return out;
+    }
+
+    private static void readCursor(Source src, CursorOp into) {
+        int len = src.varint();
+        if (len < 0 || len > src.buf.length - src.pos) throw Source.truncated();
+        into.username = new String(src.buf, src.pos, len, StandardCharsets.UTF_8);
+        src.pos += len;
+        into.x = src.zigzag();
+        into.y = src.zigzag();
+    }
+
+    /**
+     * Length of the frame starting at {@code off}, including its length prefix,
+     * or -1 if {@code buf[off..limit)} does not yet hold the whole prefix.
+     *
+     * @throws IllegalArgumentException if the frame is larger than MAX_FRAME_LENGTH
+     */
+    public static int frameLength(byte[] buf, int off, int limit) {
+        int value = 0;
+        int shift = 0;
+        int i = off;
+        while (true) {
+            if (i >= limit) return -1;
+            if (shift > 28) throw new IllegalArgumentException("Malformed frame length");
+            int b = buf[i++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+            shift += 7;
+        }
+        if (value < 1 || value > MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("Bad frame length " + value);
+        }
+        return (i - off) + value;
+    }
+
+    private static int payloadStart(byte[] frame) {
+        int i = 0;
+        while (i < frame.length && (frame[i] & 0x80) != 0) i++;
+        if (i + 1 >= frame.length) throw Source.truncated();
+        return i + 2;
+    }
+
+    private static int paletteIndex(int argb) {
+        for (int i = 0; i < PALETTE.length; i++) {
+            if (PALETTE[i] == argb) return i;
+        }
+        return -1;
+    }
+
+    private static int quantiseStroke(float stroke) {
+        return Math.max(1, Math.min(255, Math.round(stroke * 4)));
+    }
+
+    // ---- Byte helpers ----
+
+    /** Growable buffer that writes a frame and prepends its length. */
+    private static final class Sink {
+        private byte[] buf;
+        private int pos;
+
+        Sink(int capacity) {
+            // 5 bytes reserved in front for the length prefix
+            buf = new byte[capacity + 5];
+        }
+
+        void begin(byte opcode) {
+            pos = 5;
+            put(opcode);
+        }
+
+        void put(int b) {
+            if (pos == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+            buf[pos++] = (byte) b;
+        }
+
+        void write(byte[] src, int off, int len) {
+            if (pos + len > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + len));
+            }
+            System.arraycopy(src, off, buf, pos, len);
+            pos += len;
+        }
+
+        void varint(int v) {
+            while ((v & ~0x7F) != 0) {
+                put((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            put(v);
+        }
+
+        void varlong(long v) {
+            while ((v & ~0x7FL) != 0) {
+                put((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            put((int) v);
+        }
+
+        void zigzag(int v) {
+            varint((v << 1) ^ (v >> 31));
+        }
+
+        void color(int argb) {
+            int idx = paletteIndex(argb);
+            if (idx >= 0) {
+                put(idx);
+            } else {
+                put(PALETTE_ESCAPE);
+                put(argb >>> 24);
+                put(argb >>> 16);
+                put(argb >>> 8);
+                put(argb);
+            }
+        }
+
+        byte[] finish() {
+            int len = pos - 5;
+            int prefix = len < 0x80 ? 1 : len < 0x4000 ? 2 : 3;
+            int start = 5 - prefix;
+            int v = len;
+            for (int i = start; i < 5; i++) {
+                buf[i] = (byte) (i == 4 ? (v & 0x7F) : ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            return Arrays.copyOfRange(buf, start, pos);
+        }
+    }
+
+    private static final class Source {
+        private final byte[] buf;
+        private int pos;
+
+        Source(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        static IllegalArgumentException truncated() {
+            return new IllegalArgumentException("Truncated frame");
+        }
+
+        int get() {
+            if (pos >= buf.length) throw truncated();
+            return buf[pos++] & 0xFF;
+        }
+
+        int varint() {
+            int value = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (shift > 28) throw new IllegalArgumentException("Malformed varint");
+                b = get();
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        long varlong() {
+            long value = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (shift > 63) throw new IllegalArgumentException("Malformed varint");
+                b = get();
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        // An element count, each element taking at least minBytes of what is left
+        int count(int minBytes) {
+            int count = varint();
+            if (count < 0 || count > (buf.length - pos) / minBytes) throw truncated();
+            return count;
+        }
+
+        int zigzag() {
+            int v = varint();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        int color() {
+            int idx = get();
+            if (idx == PALETTE_ESCAPE) {
+                return (get() << 24) | (get() << 16) | (get() << 8) | get();
+            }
+            return idx < PALETTE.length ? PALETTE[idx] : 0xFF000000;
+        }
+    }
+}
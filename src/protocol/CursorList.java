@@ -0,0 +1,51 @@
+package protocol;
+
+/**
+ * Text form of the combined cursor frame
+ *   CURSORS|name,x,y;name,x,y;...
+ *
+ * Usernames never contain '|', ',' or ';' (the server replaces them on JOIN).
+ */
+public final class CursorList {
+
+    private CursorList() {}
+
+    /** @param xy flat (x, y) pairs, one per name */
+    public static String format(String[] names, int[] xy, int count) {
+        StringBuilder sb = new StringBuilder(8 + count * 16).append("CURSORS|");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) sb.append(';');
+            sb.append(names[i]).append(',').append(xy[2 * i]).append(',').append(xy[2 * i + 1]);
+        }
+        return sb.toString();
+    }
+
+    public static String[] parseNames(String line) {
+        String[] entries = entries(line);
+        String[] names = new String[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            names[i] = entries[i].substring(0, entries[i].indexOf(','));
+        }
+        return names;
+    }
+
+    /** @throws NumberFormatException if an entry is malformed */
+    public static int[] parsePositions(String line) {
+        String[] entries = entries(line);
+        int[] xy = new int[2 * entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            String e = entries[i];
+            int c1 = e.indexOf(',');
+            int c2 = e.indexOf(',', c1 + 1);
+            if (c1 < 0 || c2 < 0) throw new NumberFormatException("Bad cursor entry: " + e);
+            xy[2 * i] = Integer.parseInt(e.substring(c1 + 1, c2));
+            xy[2 * i + 1] = Integer.parseInt(e.substring(c2 + 1));
+        }
+        return xy;
+    }
+
+    private static String[] entries(String line) {
+        String body = line.substring(line.indexOf('|') + 1);
+        return body.isEmpty() ? new String[0] : body.split(";");
+    }
+}
@@ -0,0 +1,163 @@
+package protocol;
+
+/**
+ * Reads the '|'-separated fields of a text-protocol line in order, parsing
+ * numbers straight from the characters of the line:
+ *
+ *   FieldReader f = new FieldReader().reset("DRAW|10|20|12|24|-16777216|3.0");
+ *   int x1 = f.nextInt(); ...; float stroke = f.nextFloat();
+ *
+ * Numbers and colours are read without creating strings or arrays; only
+ * {@link #nextString()} and {@link #rest()} allocate. This replaces
+ * {@code split("\\|")} plus {@code Integer.parseInt} for the frequent
+ * messages (DRAW, CURSOR, STROKE_*), which made an array and a string per
+ * field. A reader can be reused for any number of lines.
+ *
+ * Like the parse methods it replaces, every method throws
+ * {@link NumberFormatException} (an {@link IllegalArgumentException}) for a
+ * malformed or missing field.
+ *
+ * Not thread-safe.
+ */
+public final class FieldReader {
+
+    // Powers of ten that are exact as a float
+    private static final float[] POW10 = {1f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+
+    private CharSequence line = "";
+    // Start of the next field; past the end once the last field was read
+    private int pos = 1;
+    private int end = 0;
+
+    /** Start reading {@code line} at the first field after the message type. */
+    public FieldReader reset(CharSequence line) {
+        this.line = line;
+        this.end = line.length();
+        int bar = indexOfBar(0);
+        pos = bar < end ? bar + 1 : end + 1;
+        return this;
+    }
+
+    /** Whether another field follows (it may be empty). */
+    public boolean hasNext() {
+        return pos <= end;
+    }
+
+    /** Skip one field. */
+    public void skip() {
+        require();
+        pos = indexOfBar(pos) + 1;
+    }
+
+    public int nextInt() {
+        long v = nextLong();
+        if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) throw bad();
+        return (int) v;
+    }
+
+    public long nextLong() {
+        require();
+        int i = pos;
+        boolean neg = i < end && line.charAt(i) == '-';
+        if (neg) i++;
+        int start = i;
+        long v = 0;
+        while (i < end) {
+            char c = line.charAt(i);
+            if (c == '|') break;
+            if (c < '0' || c > '9' || i - start == 18) throw bad();
+            v = v * 10 + (c - '0');
+            i++;
+        }
+        if (i == start) throw bad();
+        pos = i + 1;
+        return neg ? -v : v;
+    }
+
+    /**
+     * An ARGB colour: the signed decimal int this protocol writes, or the
+     * same 32 bits written unsigned.
+     */
+    public int nextColor() {
+        long v = nextLong();
+        if (v < Integer.MIN_VALUE || v > 0xFFFFFFFFL) throw bad();
+        return (int) v;
+    }
+
+    /**
+     * A decimal such as "3.0" or "-12.75". Anything else (exponents, many
+     * digits) goes through {@link Float#parseFloat}, so the result is always
+     * what {@code Float.parseFloat} would give.
+     */
+    public float nextFloat() {
+        require();
+        int i = pos;
+        boolean neg = i < end && line.charAt(i) == '-';
+        if (neg) i++;
+        int start = i;
+        int mantissa = 0;
+        int fraction = -1;
+        boolean digits = false;
+        boolean simple = true;
+        while (i < end) {
+            char c = line.charAt(i);
+            if (c == '|') break;
+            if (c == '.' && fraction < 0) {
+                fraction = 0;
+            } else if (c >= '0' && c <= '9') {
+                digits = true;
+                if (mantissa >= (1 << 24) / 10) {
+                    simple = false;
+                } else {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (fraction >= 0) fraction++;
+                }
+            } else {
+                simple = false;
+            }
+            i++;
+        }
+        if (i == start) throw bad();
+        int fieldStart = pos;
+        pos = i + 1;
+        if (!simple || !digits || fraction >= POW10.length) {
+            return Float.parseFloat(line.subSequence(fieldStart, i).toString());
+        }
+        // Both operands are exact floats, so the division in double rounds
+        // to the same float as parsing the decimal would
+        float v = (float) ((double) mantissa / POW10[Math.max(fraction, 0)]);
+        return neg ? -v : v;
+    }
+
+    /** The next field as a string. */
+    public String nextString() {
+        require();
+        int bar = indexOfBar(pos);
+        String s = line.subSequence(pos, bar).toString();
+        pos = bar + 1;
+        return s;
+    }
+
+    /** Everything from the next field to the end of the line, '|' included. */
+    public String rest() {
+        require();
+        String s = line.subSequence(pos, end).toString();
+        pos = end + 1;
+        return s;
+    }
+
+    private int indexOfBar(int from) {
+        for (int i = from; i < end; i++) {
+            if (line.charAt(i) == '|') return i;
+        }
+        return end;
+    }
+
+    private void require() {
+        if (pos > end) throw new NumberFormatException("Missing field in: " + line);
+    }
+
+    private NumberFormatException bad() {
+        return new NumberFormatException("Bad field in: " + line);
+    }
+}
@@ -0,0 +1,111 @@
+package protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Buffered reader for a stream that starts with text lines and may switch to
+ * binary frames, and to a compressed stream, after the JOIN handshake. Both
+ * kinds of read share one buffer, so no bytes are lost at the switch. Not
+ * thread-safe.
+ */
+public class FrameReader {
+
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private InputStream in;
+    private byte[] buf = new byte[16 * 1024];
+    private int pos;
+    private int limit;
+
+    public FrameReader(InputStream in) {
+        this.in = in;
+    }
+
+    /** Next UTF-8 line without its terminator, or null at end of stream. */
+    public String readLine() throws IOException {
+        int scanFrom = pos;
+        while (true) {
+            for (int i = scanFrom; i < limit; i++) {
+                if (buf[i] == '\n') {
+                    int end = (i > pos && buf[i - 1] == '\r') ? i - 1 : i;
+                    String line = new String(buf, pos, end - pos, StandardCharsets.UTF_8);
+                    pos = i + 1;
+                    return line;
+                }
+            }
+            scanFrom = limit - pos;
+            if (!fill()) {
+                if (pos == limit) return null;
+                // Last line without a terminator
+                String line = new String(buf, pos, limit - pos, StandardCharsets.UTF_8);
+                pos = limit;
+                return line;
+            }
+            scanFrom += pos;
+            if (limit - pos > MAX_LINE_LENGTH) {
+                throw new IOException("Line too long");
+            }
+        }
+    }
+
+    /** Next complete binary frame (with its length prefix), or null at end of stream. */
+    public byte[] readFrame() throws IOException {
+        while (true) {
+            int len;
+            try {
+                len = BinaryCodec.frameLength(buf, pos, limit);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage());
+            }
+            if (len > 0 && limit - pos >= len) {
+                byte[] frame = Arrays.copyOfRange(buf, pos, pos + len);
+                pos += len;
+                return frame;
+            }
+            if (!fill()) {
+                if (pos == limit) return null;
+                throw new EOFException("Stream ended inside a frame");
+            }
+        }
+    }
+
+    /**
+     * Decompress everything after what has been read so far: the rest of the
+     * stream is one zlib stream (see {@link BinaryCodec#DEFLATE_CAPABILITY}).
+     */
+    public void inflate() {
+        InputStream rest = in;
+        if (pos < limit) {
+            // Already read from the socket, so the stream starts here
+            rest = new SequenceInputStream(
+                    new ByteArrayInputStream(Arrays.copyOfRange(buf, pos, limit)), in);
+        }
+        in = new InflaterInputStream(rest, new Inflater(), 16 * 1024);
+        pos = 0;
+        limit = 0;
+    }
+
+    // Compact, grow if needed, then read more. False at end of stream.
+    private boolean fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n < 0) return false;
+        limit += n;
+        return true;
+    }
+}
@@ -0,0 +1,140 @@
+package protocol;
+
+/**
+ * The type of a text-protocol line, looked up from the name before its
+ * first '|' in a small hash table, so that both ends can dispatch with a
+ * {@code switch} instead of trying {@code startsWith} for every known
+ * message in turn.
+ *
+ * Looking up a type reads the characters of the name and nothing else; no
+ * substring is made.
+ */
+public final class MessageType {
+
+    public static final int UNKNOWN = 0;
+    public static final int JOIN = 1;
+    public static final int PROTO = 2;
+    public static final int USERNAME = 3;
+    public static final int ROLE = 4;
+    public static final int CHAT = 5;
+    public static final int DRAW = 6;
+    public static final int CURSOR = 7;
+    public static final int CURSORS = 8;
+    public static final int STROKE_BEGIN = 9;
+    public static final int STROKE_POINTS = 10;
+    public static final int STROKE_END = 11;
+    public static final int CLEAR = 12;
+    public static final int BOARD_BEGIN = 13;
+    public static final int BOARD_CHUNK = 14;
+    public static final int BOARD_END = 15;
+    public static final int BOARD_LOCK = 16;
+    public static final int USERLIST = 17;
+    public static final int USERS = 18;
+    public static final int USER_JOIN = 19;
+    public static final int USER_LEAVE = 20;
+    public static final int POLL_CREATE = 21;
+    public static final int POLL_VOTE = 22;
+    public static final int POLL_RESULTS = 23;
+    public static final int POLL_CLOSE = 24;
+    public static final int PING = 25;
+    public static final int PONG = 26;
+    public static final int SEQ = 27;
+    public static final int SESSION = 28;
+    public static final int RESUMED = 29;
+    public static final int EPOCH = 30;
+    public static final int BOARD_ACK = 31;
+    /** Number of types, {@link #UNKNOWN} included, for arrays indexed by type. */
+    public static final int COUNT = BOARD_ACK + 1;
+
+    // Indexed by type
+    private static final String[] NAMES = {
+            null, "JOIN", "PROTO", "USERNAME", "ROLE", "CHAT", "DRAW", "CURSOR", "CURSORS",
+            "STROKE_BEGIN", "STROKE_POINTS", "STROKE_END", "CLEAR", "BOARD_BEGIN",
+            "BOARD_CHUNK", "BOARD_END", "BOARD_LOCK", "USERLIST", "USERS", "USER_JOIN",
+            "USER_LEAVE", "POLL_CREATE", "POLL_VOTE", "POLL_RESULTS", "POLL_CLOSE", "PING", "PONG",
+            "SEQ", "SESSION", "RESUMED", "EPOCH", "BOARD_ACK"
+    };
+
+    private static final int MAX_NAME_LENGTH = 13;
+
+    // Open addressing, linear probing; holds types, 0 = empty slot
+    private static final int[] TABLE = new int[64];
+
+    static {
+        for (int type = 1; type < NAMES.length; type++) {
+            String name = NAMES[type];
+            int slot = hash(name, name.length()) & (TABLE.length - 1);
+            while (TABLE[slot] != UNKNOWN) {
+                slot = (slot + 1) & (TABLE.length - 1);
+            }
+            TABLE[slot] = type;
+        }
+    }
+
+    private MessageType() {}
+
+    /** The type of {@code line}, or {@link #UNKNOWN} if it has no '|' or the name is not known. */
+    public static int of(CharSequence line) {
+        int len = -1;
+        int limit = Math.min(line.length(), MAX_NAME_LENGTH + 1);
+        for (int i = 0; i < limit; i++) {
+            if (line.charAt(i) == '|') {
+                len = i;
+                break;
+            }
+        }
+        if (len <= 0) return UNKNOWN;
+
+        int slot = hash(line, len) & (TABLE.length - 1);
+        while (true) {
+            int type = TABLE[slot];
+            if (type == UNKNOWN || matches(NAMES[type], line, len)) return type;
+            slot = (slot + 1) & (TABLE.length - 1);
+        }
+    }
+
+    /**
+     * Whether the server numbers broadcasts of this type for RESUME: the
+     * messages that change what a client shows, as opposed to cursors,
+     * member lists and the join-time transfer. A client counts the ones it
+     * receives so it can tell the server, after reconnecting, where it was.
+     */
+    public static boolean isSequenced(int type) {
+        switch (type) {
+            case DRAW:
+            case STROKE_BEGIN:
+            case STROKE_POINTS:
+            case STROKE_END:
+            case CLEAR:
+            case CHAT:
+            case BOARD_LOCK:
+            case POLL_CREATE:
+            case POLL_RESULTS:
+            case POLL_CLOSE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** The name of a type as it appears on the wire, e.g. "DRAW". */
+    public static String name(int type) {
+        return type > UNKNOWN && type < NAMES.length ? NAMES[type] : "UNKNOWN";
+    }
+
+    private static int hash(CharSequence s, int len) {
+        int h = len;
+        for (int i = 0; i < len; i++) {
+            h = 31 * h + s.charAt(i);
+        }
+        return h ^ (h >>> 7);
+    }
+
+    private static boolean matches(String name, CharSequence line, int len) {
+        if (name.length() != len) return false;
+        for (int i = 0; i < len; i++) {
+            if (name.charAt(i) != line.charAt(i)) return false;
+        }
+        return true;
+    }
+}
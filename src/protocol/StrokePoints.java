@@ -0,0 +1,69 @@
+package protocol;
+
+/**
+ * Text form of the point list in STROKE_POINTS|strokeId|dx,dy;dx,dy;...
+ *
+ * Each pair is the offset from the previous point of the same stroke; the
+ * first pair of a batch continues from the last point of the previous batch
+ * (or the STROKE_BEGIN point).
+ */
+public final class StrokePoints {
+
+    private StrokePoints() {}
+
+    /** Format {@code count} (dx, dy) pairs stored flat in {@code deltas}. */
+    public static String format(int[] deltas, int count) {
+        StringBuilder sb = new StringBuilder(count * 6);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) sb.append(';');
+            sb.append(deltas[2 * i]).append(',').append(deltas[2 * i + 1]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parse a point list into flat (dx, dy) pairs.
+     *
+     * @throws NumberFormatException if the list is malformed
+     */
+    public static int[] parse(String s) {
+        if (s.isEmpty()) return new int[0];
+        int pairs = 1;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == ';') pairs++;
+        }
+        int[] out = new int[pairs * 2];
+        int n = 0;
+        int i = 0;
+        int len = s.length();
+        while (i < len) {
+            boolean neg = false;
+            if (s.charAt(i) == '-') {
+                neg = true;
+                i++;
+            }
+            int start = i;
+            int v = 0;
+            while (i < len && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+                v = v * 10 + (s.charAt(i) - '0');
+                i++;
+            }
+            if (i == start || n == out.length) {
+                throw new NumberFormatException("Bad point list: " + s);
+            }
+            out[n++] = neg ? -v : v;
+            if (i < len) {
+                char sep = s.charAt(i);
+                // comma inside a pair, semicolon between pairs
+                if (sep != (n % 2 == 1 ? ',' : ';')) {
+                    throw new NumberFormatException("Bad point list: " + s);
+                }
+                i++;
+            }
+        }
+        if (n != out.length) {
+            throw new NumberFormatException("Bad point list: " + s);
+        }
+        return out;
+    }
+}
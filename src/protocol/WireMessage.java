@@ -0,0 +1,142 @@
+package protocol;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One protocol message that can be written in either wire format.
+ *
+ * A message is created from whichever form it arrived in (a text line or a
+ * binary frame). The other form is computed on first use and then reused, so
+ * a broadcast converts each message at most once per format rather than once
+ * per recipient.
+ *
+ * The same goes for the bytes that reach the socket: {@link #line()} and
+ * {@link #frame()} encode once and are then shared by every recipient, so
+ * the cost of a broadcast no longer grows with the size of the room beyond
+ * the writes themselves. They stay on the heap: messages are kept for a long
+ * time in chat history, on the board and for replay, and each writer copies
+ * them into a direct buffer of its own as it writes.
+ */
+public final class WireMessage {
+
+    private final byte opcode;
+    // MessageType; -1 until known for an OP_TEXT frame
+    private volatile int type;
+    private volatile String text;
+    private volatile byte[] frame;
+    private volatile byte[] line;
+
+    private WireMessage(byte opcode, int type, String text, byte[] frame) {
+        this.opcode = opcode;
+        this.type = type;
+        this.text = text;
+        this.frame = frame;
+    }
+
+    public static WireMessage ofText(String line) {
+        byte op;
+        int type = MessageType.of(line);
+        switch (type) {
+            case MessageType.DRAW: op = BinaryCodec.OP_DRAW; break;
+            case MessageType.CURSOR: op = BinaryCodec.OP_CURSOR; break;
+            case MessageType.CURSORS: op = BinaryCodec.OP_CURSORS; break;
+            case MessageType.STROKE_POINTS: op = BinaryCodec.OP_STROKE_POINTS; break;
+            case MessageType.STROKE_BEGIN: op = BinaryCodec.OP_STROKE_BEGIN; break;
+            case MessageType.STROKE_END: op = BinaryCodec.OP_STROKE_END; break;
+            case MessageType.BOARD_CHUNK: op = BinaryCodec.OP_BOARD_CHUNK; break;
+            default: op = BinaryCodec.OP_TEXT; break;
+        }
+        return new WireMessage(op, type, line, null);
+    }
+
+    /**
+     * @param frame a complete binary frame, including its length prefix; one
+     *              from a client or a file must have passed
+     *              {@link BinaryCodec#check}
+     */
+    public static WireMessage ofFrame(byte[] frame) {
+        byte op = BinaryCodec.opcode(frame);
+        int type;
+        switch (op) {
+            case BinaryCodec.OP_DRAW: type = MessageType.DRAW; break;
+            case BinaryCodec.OP_CURSOR: type = MessageType.CURSOR; break;
+            case BinaryCodec.OP_CURSORS: type = MessageType.CURSORS; break;
+            case BinaryCodec.OP_STROKE_POINTS: type = MessageType.STROKE_POINTS; break;
+            case BinaryCodec.OP_STROKE_BEGIN: type = MessageType.STROKE_BEGIN; break;
+            case BinaryCodec.OP_STROKE_END: type = MessageType.STROKE_END; break;
+            case BinaryCodec.OP_BOARD_CHUNK: type = MessageType.BOARD_CHUNK; break;
+            default: type = -1; break;
+        }
+        return new WireMessage(op, type, null, frame);
+    }
+
+    public byte opcode() {
+        return opcode;
+    }
+
+    /** The {@link MessageType} of this message, e.g. for per-type counters. */
+    public int type() {
+        int t = type;
+        if (t < 0) {
+            t = MessageType.of(text());
+            type = t;
+        }
+        return t;
+    }
+
+    /** CURSOR or CURSORS: superseded by the next update, so safe to drop. */
+    public boolean isCursor() {
+        return opcode == BinaryCodec.OP_CURSOR || opcode == BinaryCodec.OP_CURSORS;
+    }
+
+    /** DRAW or one of the STROKE_* messages. */
+    public boolean isDrawing() {
+        return opcode == BinaryCodec.OP_DRAW ||
+                (opcode >= BinaryCodec.OP_STROKE_BEGIN && opcode <= BinaryCodec.OP_STROKE_END);
+    }
+
+    /**
+     * CLEAR or BOARD_LOCK: changes to the whole board that should reach
+     * clients without waiting for the next batched flush.
+     */
+    public boolean isControl() {
+        if (opcode != BinaryCodec.OP_TEXT) return false;
+        int t = type();
+        return t == MessageType.CLEAR || t == MessageType.BOARD_LOCK;
+    }
+
+    /** Whether the binary form is at hand without a conversion. */
+    public boolean hasFrame() {
+        return frame != null;
+    }
+
+    /** Text-protocol line, without line terminator. */
+    public String text() {
+        String t = text;
+        if (t == null) {
+            t = BinaryCodec.toText(frame);
+            text = t;
+        }
+        return t;
+    }
+
+    /** Complete binary frame. */
+    public byte[] frame() {
+        byte[] f = frame;
+        if (f == null) {
+            f = BinaryCodec.fromText(text);
+            frame = f;
+        }
+        return f;
+    }
+
+    /** Text-protocol line including its '\n', as UTF-8. Shared; do not modify. */
+    public byte[] line() {
+        byte[] l = line;
+        if (l == null) {
+            l = (text() + "\n").getBytes(StandardCharsets.UTF_8);
+            line = l;
+        }
+        return l;
+    }
+}
@@ -0,0 +1,354 @@
+package server;
+
+import protocol.BinaryCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rewrites a board (DRAW / STROKE_* frames since the last CLEAR) into a
+ * smaller board that looks the same.
+ *
+ * - Segments hidden under a later opaque segment are dropped. This is what
+ *   the eraser produces: it draws thick lines in the background colour over
+ *   earlier ones. A segment counts as hidden only if both of its round ends
+ *   lie inside the later segment's outline, with a pixel to spare for
+ *   anti-aliasing.
+ * - The remaining segments are re-encoded as strokes, which need about two
+ *   bytes per point instead of ten for a DRAW.
+ * - Strokes that have not ended yet are kept as they are, each frame in
+ *   its place among the others so that what overlaps stays on top, and
+ *   STROKE_POINTS that arrive later still find their STROKE_BEGIN.
+ */
+final class BoardCompactor {
+
+    /** Compacted frames and how many there are. */
+    static final class Result {
+        final byte[] frames;
+        final int length;
+        final int operations;
+
+        Result(byte[] frames, int length, int operations) {
+            this.frames = frames;
+            this.length = length;
+            this.operations = operations;
+        }
+    }
+
+    private static final int CELL = 64;
+    // Thin pen lines rarely cover anything; skip them as coverers
+    private static final float MIN_COVER_WIDTH = 4f;
+    // Newest candidates checked per grid cell, to bound the work in busy areas
+    private static final int MAX_CANDIDATES = 256;
+    // Segments spanning more grid squares than this are left alone
+    private static final int MAX_CELL_SPAN = 64;
+    // Points per STROKE_POINTS frame, as sent by WhiteboardClient
+    private static final int POINTS_PER_FRAME = 32;
+
+    // Flat segment list
+    private int count = 0;
+    private int[] x1 = new int[1024], y1 = new int[1024], x2 = new int[1024], y2 = new int[1024];
+    private int[] argb = new int[1024];
+    private float[] width = new float[1024];
+    private boolean[] open = new boolean[1024];
+    // Stroke a segment came from, or null for DRAW
+    private Stroke[] owner = new Stroke[1024];
+    private boolean[] hidden;
+
+    private BoardCompactor() {}
+
+    static Result compact(byte[] data, int length) {
+        BoardCompactor c = new BoardCompactor();
+        List<Placed> openFrames = c.decode(data, length);
+        c.prune();
+        return c.encode(openFrames);
+    }
+
+    // ---- 1. Frames to segments ----
+
+    // A frame kept as it is: its place on the board, and the number of
+    // segments drawn before it
+    private static final class Placed {
+        final int index;
+        final int at;
+        final byte[] frame;
+
+        Placed(int index, int at, byte[] frame) {
+            this.index = index;
+            this.at = at;
+            this.frame = frame;
+        }
+    }
+
+    private static final class Stroke {
+        int lastX, lastY;
+        final int argb;
+        final float width;
+        final List<Placed> frames = new ArrayList<>();
+        boolean open = false;
+
+        Stroke(int x, int y, int argb, float width) {
+            this.lastX = x;
+            this.lastY = y;
+            this.argb = argb;
+            this.width = width;
+        }
+    }
+
+    /** @return frames of strokes that are still open, in board order */
+    private List<Placed> decode(byte[] data, int length) {
+        Map<Long, Stroke> strokes = new LinkedHashMap<>();
+        BinaryCodec.DrawOp d = new BinaryCodec.DrawOp();
+        BinaryCodec.StrokeOp s = new BinaryCodec.StrokeOp();
+        int pos = 0;
+        int index = 0;
+        while (pos < length) {
+            int len = BinaryCodec.frameLength(data, pos, length);
+            byte[] frame = Arrays.copyOfRange(data, pos, pos + len);
+            pos += len;
+            index++;
+            switch (BinaryCodec.opcode(frame)) {
+                case BinaryCodec.OP_DRAW:
+                    BinaryCodec.decodeDraw(frame, d);
+                    add(d.x1, d.y1, d.x2, d.y2, d.argb, d.stroke, null);
+                    break;
+                case BinaryCodec.OP_STROKE_BEGIN:
+                    BinaryCodec.decodeStroke(frame, s);
+                    Stroke begun = new Stroke(s.x, s.y, s.argb, s.stroke);
+                    begun.frames.add(new Placed(index, count, frame));
+                    strokes.put(s.strokeId, begun);
+                    break;
+                case BinaryCodec.OP_STROKE_POINTS: {
+                    BinaryCodec.decodeStroke(frame, s);
+                    Stroke st = strokes.get(s.strokeId);
+                    // Points without a BEGIN are not drawn by anyone joining
+                    if (st == null) break;
+                    st.frames.add(new Placed(index, count, frame));
+                    for (int i = 0; i + 1 < s.deltas.length; i += 2) {
+                        int nx = st.lastX + s.deltas[i];
+                        int ny = st.lastY + s.deltas[i + 1];
+                        add(st.lastX, st.lastY, nx, ny, st.argb, st.width, st);
+                        st.lastX = nx;
+                        st.lastY = ny;
+                    }
+                    break;
+                }
+                case BinaryCodec.OP_STROKE_END:
+                    BinaryCodec.decodeStroke(frame, s);
+                    strokes.remove(s.strokeId);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        // Whatever is left never got its END
+        List<Placed> openFrames = new ArrayList<>();
+        for (Stroke st : strokes.values()) {
+            st.open = true;
+            openFrames.addAll(st.frames);
+        }
+        openFrames.sort(Comparator.comparingInt(f -> f.index));
+        for (int i = 0; i < count; i++) {
+            open[i] = owner[i] != null && owner[i].open;
+        }
+        return openFrames;
+    }
+
+    private void add(int ax, int ay, int bx, int by, int color, float w, Stroke stroke) {
+        if (count == x1.length) {
+            int n = count * 2;
+            x1 = Arrays.copyOf(x1, n);
+            y1 = Arrays.copyOf(y1, n);
+            x2 = Arrays.copyOf(x2, n);
+            y2 = Arrays.copyOf(y2, n);
+            argb = Arrays.copyOf(argb, n);
+            width = Arrays.copyOf(width, n);
+            open = Arrays.copyOf(open, n);
+            owner = Arrays.copyOf(owner, n);
+        }
+        x1[count] = ax;
+        y1[count] = ay;
+        x2[count] = bx;
+        y2[count] = by;
+        argb[count] = color;
+        width[count] = w;
+        owner[count] = stroke;
+        count++;
+    }
+
+    // ---- 2. Drop hidden segments ----
+
+    // Segments whose outline touches one grid square
+    private static final class Cell {
+        int[] items = new int[8];
+        int size = 0;
+
+        void add(int segment, boolean[] hidden) {
+            if (size == items.length) {
+                // Drop hidden entries before growing
+                int m = 0;
+                for (int k = 0; k < size; k++) {
+                    if (!hidden[items[k]]) items[m++] = items[k];
+                }
+                size = m;
+                if (size == items.length) {
+                    items = Arrays.copyOf(items, size * 2);
+                }
+            }
+            items[size++] = segment;
+        }
+    }
+
+    private void prune() {
+        hidden = new boolean[count];
+        Map<Long, Cell> grid = new HashMap<>();
+
+        for (int i = 0; i < count; i++) {
+            float r = width[i] / 2;
+            int minCx = Math.floorDiv((int) Math.floor(Math.min(x1[i], x2[i]) - r), CELL);
+            int maxCx = Math.floorDiv((int) Math.ceil(Math.max(x1[i], x2[i]) + r), CELL);
+            int minCy = Math.floorDiv((int) Math.floor(Math.min(y1[i], y2[i]) - r), CELL);
+            int maxCy = Math.floorDiv((int) Math.ceil(Math.max(y1[i], y2[i]) + r), CELL);
+            boolean canCover = (argb[i] >>> 24) == 0xFF && width[i] >= MIN_COVER_WIDTH;
+            if (maxCx - minCx > MAX_CELL_SPAN || maxCy - minCy > MAX_CELL_SPAN) {
+                // Implausibly long segment: keep it, and don't let it hide anything
+                continue;
+            }
+
+            for (int cx = minCx; cx <= maxCx; cx++) {
+                for (int cy = minCy; cy <= maxCy; cy++) {
+                    long key = cellKey(cx, cy);
+                    Cell cell = grid.get(key);
+                    if (canCover && cell != null) {
+                        for (int k = cell.size - 1; k >= 0 && k >= cell.size - MAX_CANDIDATES; k--) {
+                            int j = cell.items[k];
+                            if (!hidden[j] && covers(i, j)) {
+                                hidden[j] = true;
+                            }
+                        }
+                    }
+                    // Open-stroke segments are kept as they are, so never hide them
+                    if (!open[i]) {
+                        if (cell == null) {
+                            cell = new Cell();
+                            grid.put(key, cell);
+                        }
+                        cell.add(i, hidden);
+                    }
+                }
+            }
+        }
+    }
+
+    private static long cellKey(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+    }
+
+    // Does segment `top` (drawn later) completely cover segment `under`?
+    private boolean covers(int top, int under) {
+        double slack = width[top] / 2.0 - width[under] / 2.0 - 1.0;
+        if (slack < 0) return false;
+        return distance(top, x1[under], y1[under]) <= slack &&
+                distance(top, x2[under], y2[under]) <= slack;
+    }
+
+    // Distance from (px, py) to segment i
+    private double distance(int i, int px, int py) {
+        double dx = x2[i] - x1[i];
+        double dy = y2[i] - y1[i];
+        double lenSq = dx * dx + dy * dy;
+        double t = lenSq == 0 ? 0 : ((px - x1[i]) * dx + (py - y1[i]) * dy) / lenSq;
+        t = Math.max(0, Math.min(1, t));
+        double cx = x1[i] + t * dx - px;
+        double cy = y1[i] + t * dy - py;
+        return Math.sqrt(cx * cx + cy * cy);
+    }
+
+    // ---- 3. Segments back to frames ----
+
+    private Result encode(List<Placed> openFrames) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(count * 3 + 64);
+        int operations = 0;
+        long nextId = 1;
+        int[] deltas = new int[2 * POINTS_PER_FRAME];
+        // Next open-stroke frame to write
+        int o = 0;
+
+        int i = 0;
+        while (i < count) {
+            while (o < openFrames.size() && openFrames.get(o).at <= i) {
+                write(out, openFrames.get(o++).frame);
+                operations++;
+            }
+            if (hidden[i] || open[i]) {
+                i++;
+                continue;
+            }
+            // Extend the run while segments connect and share a style
+            int end = i + 1;
+            int prev = i;
+            while (end < count) {
+                // An open-stroke frame goes between this segment and the last
+                if (o < openFrames.size() && openFrames.get(o).at <= end) {
+                    break;
+                }
+                if (hidden[end] || open[end]) {
+                    end++;
+                    continue;
+                }
+                if (x1[end] != x2[prev] || y1[end] != y2[prev] ||
+                        argb[end] != argb[i] || width[end] != width[i]) {
+                    break;
+                }
+                prev = end;
+                end++;
+            }
+
+            if (prev == i) {
+                write(out, BinaryCodec.encodeDraw(x1[i], y1[i], x2[i], y2[i], argb[i], width[i]));
+                operations++;
+            } else {
+                long id = nextId++;
+                write(out, BinaryCodec.encodeStrokeBegin(id, x1[i], y1[i], argb[i], width[i]));
+                operations++;
+                int n = 0;
+                for (int k = i; k < end; k++) {
+                    if (hidden[k] || open[k]) continue;
+                    deltas[2 * n] = x2[k] - x1[k];
+                    deltas[2 * n + 1] = y2[k] - y1[k];
+                    n++;
+                    if (n == POINTS_PER_FRAME) {
+                        write(out, BinaryCodec.encodeStrokePoints(id, deltas, n));
+                        operations++;
+                        n = 0;
+                    }
+                }
+                if (n > 0) {
+                    write(out, BinaryCodec.encodeStrokePoints(id, deltas, n));
+                    operations++;
+                }
+                write(out, BinaryCodec.encodeStrokeEnd(id));
+                operations++;
+            }
+            i = end;
+        }
+
+        while (o < openFrames.size()) {
+            write(out, openFrames.get(o++).frame);
+            operations++;
+        }
+        byte[] frames = out.toByteArray();
+        return new Result(frames, frames.length, operations);
+    }
+
+    private static void write(ByteArrayOutputStream out, byte[] frame) {
+        out.write(frame, 0, frame.length);
+    }
+}
@@ -0,0 +1,175 @@
+package server;
+
+import protocol.BinaryCodec;
+import protocol.WireMessage;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Drawing operations since the last CLEAR, so that a student who joins late
+ * sees the board as it is.
+ *
+ * Operations are kept as their binary frames in one growing byte array (a
+ * typical stroke segment is about 10 bytes). A new client receives them as
+ *   BOARD_BEGIN|operationCount
+ *   BOARD_CHUNK ...                 (up to CHUNK_SIZE bytes of frames each)
+ *   BOARD_END|
+ * rather than one message per segment.
+ *
+ * The operations can be rewritten into a smaller equivalent set by
+ * {@link BoardCompactor}: directly with {@link #compact()}, or for the live
+ * board with {@link #beginCompaction()} / {@link #finishCompaction}, which
+ * leave the slow part to be done without holding the board lock.
+ *
+ * Not thread-safe; WhiteboardServer guards it with its board lock.
+ */
+class BoardState {
+
+    // Leaves room for the chunk header, and for base64 in the text form
+    static final int CHUNK_SIZE = 32 * 1024;
+
+    private byte[] data = new byte[64 * 1024];
+    private int size = 0;
+    private int operations = 0;
+    // Bumped by clear(), so a compaction started before a CLEAR is discarded
+    private long generation = 0;
+    // Size right after the last compaction
+    private int compactedSize = 0;
+
+    /** Copy of the board taken by {@link #beginCompaction()}. */
+    static final class Pending {
+        final byte[] frames;
+        final int operations;
+        final long generation;
+
+        Pending(byte[] frames, int operations, long generation) {
+            this.frames = frames;
+            this.operations = operations;
+            this.generation = generation;
+        }
+    }
+
+    /** Record a DRAW or STROKE_* message. */
+    void append(WireMessage msg) {
+        byte[] frame = msg.frame();
+        if (size + frame.length > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, size + frame.length));
+        }
+        System.arraycopy(frame, 0, data, size, frame.length);
+        size += frame.length;
+        operations++;
+    }
+
+    void clear() {
+        size = 0;
+        operations = 0;
+        compactedSize = 0;
+        generation++;
+        if (data.length > 1024 * 1024) {
+            // Don't hold on to a large board's buffer after CLEAR
+            data = new byte[64 * 1024];
+        }
+    }
+
+    int operations() {
+        return operations;
+    }
+
+    int sizeInBytes() {
+        return size;
+    }
+
+    /** Bytes appended since the board was last compacted or cleared. */
+    int bytesSinceCompaction() {
+        return size - compactedSize;
+    }
+
+    /** Compact in place; for boards no one else is using. */
+    void compact() {
+        BoardCompactor.Result r = BoardCompactor.compact(data, size);
+        data = Arrays.copyOf(r.frames, Math.max(64 * 1024, r.length));
+        size = r.length;
+        operations = r.operations;
+        compactedSize = size;
+    }
+
+    /** Snapshot the board for compaction outside the lock. */
+    Pending beginCompaction() {
+        return new Pending(Arrays.copyOf(data, size), operations, generation);
+    }
+
+    /**
+     * Swap in the compacted form of {@code pending}, keeping everything
+     * appended since. Does nothing if the board was cleared meanwhile.
+     *
+     * @return false if the result was discarded
+     */
+    boolean finishCompaction(Pending pending, BoardCompactor.Result result) {
+        if (pending.generation != generation) return false;
+        int tail = size - pending.frames.length;
+        byte[] merged = new byte[Math.max(64 * 1024, (result.length + tail) * 2)];
+        System.arraycopy(result.frames, 0, merged, 0, result.length);
+        System.arraycopy(data, pending.frames.length, merged, result.length, tail);
+        data = merged;
+        size = result.length + tail;
+        operations = result.operations + (operations - pending.operations);
+        compactedSize = result.length;
+        return true;
+    }
+
+    /** Each recorded frame, oldest first. */
+    void forEachFrame(Consumer<byte[]> action) {
+        int pos = 0;
+        while (pos < size) {
+            int len = BinaryCodec.frameLength(data, pos, size);
+            action.accept(Arrays.copyOfRange(data, pos, pos + len));
+            pos += len;
+        }
+    }
+
+    /**
+     * Add the frames of a BOARD_CHUNK payload, as produced by
+     * {@link #forEachChunk}.
+     */
+    void appendChunk(byte[] frames) {
+        if (size + frames.length > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, size + frames.length));
+        }
+        System.arraycopy(frames, 0, data, size, frames.length);
+        size += frames.length;
+        int pos = 0;
+        while (pos < frames.length) {
+            pos += BinaryCodec.frameLength(frames, pos, frames.length);
+            operations++;
+        }
+    }
+
+    /** Queue the whole board for {@code client}, chunked at frame boundaries. */
+    void sendTo(ClientSession client) {
+        client.sendMessage("BOARD_BEGIN|" + operations);
+        forEachChunk(client::send);
+        client.sendMessage("BOARD_END|");
+    }
+
+    /** The board as BOARD_CHUNK messages of up to CHUNK_SIZE bytes of frames. */
+    void forEachChunk(Consumer<WireMessage> action) {
+        int chunkStart = 0;
+        int pos = 0;
+        while (pos < size) {
+            int len = BinaryCodec.frameLength(data, pos, size);
+            if (pos + len - chunkStart > CHUNK_SIZE) {
+                action.accept(chunk(chunkStart, pos));
+                chunkStart = pos;
+            }
+            pos += len;
+        }
+        if (pos > chunkStart) {
+            action.accept(chunk(chunkStart, pos));
+        }
+    }
+
+    private WireMessage chunk(int from, int to) {
+        return WireMessage.ofFrame(BinaryCodec.encodeBoardChunk(data, from, to - from));
+    }
+}
@@ -0,0 +1,39 @@
+package server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for running one {@code ClientHandler} per connection.
+ */
+public final class ClientExecutors {
+
+    private ClientExecutors() {}
+
+    /** One platform thread per client (threads are reused after disconnects). */
+    public static ExecutorService platformThreads() {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newCachedThreadPool(r ->
+                new Thread(r, "WB-Client-" + counter.incrementAndGet()));
+    }
+
+    /**
+     * One virtual thread per client. Idle clients then cost a small heap
+     * object instead of a platform thread and its stack.
+     *
+     * Needs Java 21+. On older runtimes this falls back to
+     * {@link #platformThreads()}.
+     */
+    public static ExecutorService virtualThreads() {
+        try {
+            // Looked up reflectively so the project still builds on older JDKs
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads need Java 21+, using platform threads.");
+            return platformThreads();
+        }
+    }
+}
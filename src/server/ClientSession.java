@@ -0,0 +1,213 @@
+package server;
+
+import protocol.WireMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One connected client, independent of how its socket is served.
+ *
+ * {@link WhiteboardServer} keeps the protocol logic (JOIN handshake, relaying,
+ * teacher rights, polls) and only talks to clients through this class, so the
+ * thread-per-client handler and the NIO engine share the same behaviour.
+ *
+ * Outgoing messages go through a per-client queue that is drained by the
+ * engine's writer, so a broadcast never waits on a slow socket. When the
+ * queue backs up past the high-water mark, cursor updates are dropped; when
+ * it reaches the hard limit the client is disconnected.
+ */
+abstract class ClientSession {
+
+    String username = "Anonymous";
+    boolean isTeacher = false;
+    // Set during JOIN when both sides agree on binary framing
+    volatile boolean binary = false;
+    // Set during JOIN; null until then
+    volatile Room room = null;
+    // Set during JOIN when the client takes USER_JOIN / USER_LEAVE instead of
+    // a full USERLIST on every change
+    volatile boolean userDeltas = false;
+    // Set during JOIN when the client counts sequenced broadcasts (RESUME)
+    volatile boolean offersResume = false;
+    // Token the client can resume this session with; null if it cannot
+    volatile String resumeToken = null;
+    // Set during JOIN when the client offered EPOCH, and cleared again on a
+    // cluster replica, which does not order the board
+    volatile boolean boardEpochs = false;
+    // Last CLEAR the client has acknowledged with EPOCH (guarded by the
+    // room's board lock)
+    long boardEpoch = 0;
+    // How far the client has been sent the room's numbered broadcasts
+    final ReplayRing.Cursor delivery = new ReplayRing.Cursor();
+    // Its own drawing operations numbered since it was last sent BOARD_ACK
+    // or CLEAR (guarded by delivery)
+    int unackedOps = 0;
+    // Set by the engine's writer once the stream to the client is deflated;
+    // null for an uncompressed connection
+    volatile StreamCompressor compressor = null;
+    // System.nanoTime() of the last message from the client; only kept up to
+    // date for clients watched by the IdleReaper
+    volatile long lastHeard = 0;
+    // When the IdleReaper last sent a PING (ticker thread only)
+    long lastPing = 0;
+
+    private final int highWaterMark;
+    private final int queueLimit;
+    private final AtomicLong droppedCursorUpdates = new AtomicLong();
+
+    // Messages that arrived while a cluster JOIN was being completed on
+    // another thread; null when they go straight to the room (guarded by this)
+    private volatile List<WireMessage> held = null;
+
+    private final AtomicBoolean joined = new AtomicBoolean(false);
+    private final AtomicBoolean left = new AtomicBoolean(false);
+    private final AtomicBoolean evicted = new AtomicBoolean(false);
+
+    ClientSession() {
+        ServerConfig config = WhiteboardServer.config();
+        this.highWaterMark = config.getQueueHighWater();
+        this.queueLimit = config.getQueueLimit();
+    }
+
+    /** Queue one protocol line (without the trailing newline). Never blocks. */
+    final void sendMessage(String msg) {
+        send(WireMessage.ofText(msg));
+    }
+
+    /** Queue one message in this client's wire format. Never blocks. */
+    final void send(WireMessage msg) {
+        int depth = queuedMessages();
+        if (depth >= queueLimit) {
+            evict("outbound queue full (" + depth + " messages)");
+            return;
+        }
+        if (depth >= highWaterMark && msg.isCursor()) {
+            // Cursor positions are superseded by the next one anyway
+            droppedCursorUpdates.incrementAndGet();
+            return;
+        }
+        if (!enqueue(msg)) {
+            evict("outbound queue rejected message");
+            return;
+        }
+        WhiteboardServer.metrics().sent(msg.type(), encode(msg).length);
+    }
+
+    /** Hand a message to the engine's writer. @return false if it could not be queued. */
+    abstract boolean enqueue(WireMessage msg);
+
+    /**
+     * Bytes to write for {@code msg}. The format is fixed when the message is
+     * queued, so the PROTO reply still goes out as text. The array is shared
+     * with every other recipient of the message and must not be modified.
+     */
+    final byte[] encode(WireMessage msg) {
+        return binary ? msg.frame() : msg.line();
+    }
+
+    /**
+     * Deflate everything queued after this point. Called once during JOIN,
+     * right after the PROTO reply, which still goes out as it is.
+     */
+    abstract void startCompression();
+
+    /** Whether the client connects from this machine, where compression does not pay. */
+    abstract boolean isLoopback();
+
+    /** Number of messages waiting to be written to the socket. */
+    abstract int queuedMessages();
+
+    /**
+     * Ask the engine to close this connection. May be called from any thread,
+     * e.g. from another client's broadcast.
+     */
+    abstract void requestClose();
+
+    /** Close the underlying connection. Safe to call more than once. */
+    abstract void close();
+
+    /** Note that the client is alive; called for every message it sends. */
+    void heard() {
+        lastHeard = System.nanoTime();
+    }
+
+    /** Disconnect a client that stopped answering PING. */
+    void reapIdle(long silentMillis) {
+        if (!evicted.compareAndSet(false, true)) return;
+        System.out.println("Disconnecting idle client " + username + ": nothing received for " +
+                silentMillis + " ms.");
+        requestClose();
+    }
+
+    long droppedCursorUpdates() {
+        return droppedCursorUpdates.get();
+    }
+
+    /** Disconnect a client that cannot keep up; the first reason given wins. */
+    void evict(String reason) {
+        if (!evicted.compareAndSet(false, true)) return;
+        System.out.println("Disconnecting slow client " + username + ": " + reason +
+                ", " + droppedCursorUpdates.get() + " cursor updates dropped.");
+        requestClose();
+    }
+
+    /** Disconnect a client that sent something it should not have. */
+    void reject(String reason) {
+        if (!evicted.compareAndSet(false, true)) return;
+        System.out.println("Disconnecting client " + username + ": " + reason + ".");
+        requestClose();
+    }
+
+    /** Keep the client's messages back until {@link #releaseHeld()} returns null. */
+    synchronized void holdMessages() {
+        held = new ArrayList<>();
+    }
+
+    /** @return true if {@code msg} was kept back, to be handled once JOIN is complete */
+    boolean hold(WireMessage msg) {
+        if (held == null) return false;
+        synchronized (this) {
+            if (held == null) return false;
+            if (held.size() >= queueLimit) {
+                evict("sent " + queueLimit + " messages before JOIN completed");
+            } else {
+                held.add(msg);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The messages kept back since the last call, in order, or null once there
+     * are none left; from then on nothing more is held.
+     */
+    synchronized List<WireMessage> releaseHeld() {
+        List<WireMessage> batch = held;
+        if (batch == null || batch.isEmpty()) {
+            held = null;
+            return null;
+        }
+        held = new ArrayList<>();
+        return batch;
+    }
+
+    boolean markJoined() {
+        return joined.compareAndSet(false, true);
+    }
+
+    boolean hasJoined() {
+        return joined.get();
+    }
+
+    /** @return true only for the first caller, so leave handling runs once. */
+    boolean markLeft() {
+        return left.compareAndSet(false, true);
+    }
+
+    boolean hasLeft() {
+        return left.get();
+    }
+}
@@ -0,0 +1,541 @@
+package server;
+
+import protocol.WireMessage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Links several server processes so that members of one room can be spread
+ * over them.
+ *
+ * Every room has one owner node, decided by its first JOIN anywhere in the
+ * cluster. The owner holds the room's real state (teacher, board lock, poll,
+ * board, chat, journal). Other nodes with members in the room subscribe to
+ * it: they get a copy of the state, then every broadcast of the room, and
+ * forward their own clients' messages to the owner. Nodes without members
+ * in a room get none of its traffic.
+ *
+ * Nodes are configured as --node-id, --cluster-port and
+ * --peers=id@host:port,... Each node dials every peer and sends on that
+ * connection only; it receives on the connections its peers dial in. A link
+ * that drops is re-dialled. Control messages queued meanwhile are kept, but
+ * room state and relays for a peer that cannot be reached are dropped (and
+ * counted), as is everything past a bounded queue: when the link is back,
+ * the peer subscribes again and is sent the whole state.
+ *
+ * Link messages are
+ *   int length | byte type | UTF room | UTF argument | int n | n bytes frame
+ * with the types below.
+ *
+ * Ownership: a node that sees the first JOIN of a room it knows no owner for
+ * sends CLAIM(time:node) to all peers and waits for their answers. A peer
+ * answers with the claim it already settled on, or else with the earlier of
+ * the incoming claim and its own pending one, so two nodes claiming at the
+ * same time agree on the same winner.
+ */
+class ClusterNode {
+
+    private static final byte HELLO = 1;
+    private static final byte CLAIM = 2;
+    private static final byte OWNER = 3;
+    private static final byte SUBSCRIBE = 4;
+    private static final byte UNSUBSCRIBE = 5;
+    // Room state for a new subscriber, ended by SYNC_END
+    private static final byte STATE = 6;
+    private static final byte SYNC_END = 7;
+    // Client message from a subscriber's member, argument = username
+    private static final byte UPSTREAM = 8;
+    // Broadcast from the owner, argument = member not to deliver it to
+    private static final byte RELAY = 9;
+    private static final byte MEMBER_JOIN = 10;
+    private static final byte MEMBER_LEAVE = 11;
+
+    private static final long CLAIM_TIMEOUT_MS = 1000;
+    private static final long SYNC_TIMEOUT_MS = 5000;
+    private static final long RECONNECT_MS = 1000;
+    // Records queued for one peer; past this the link is re-established
+    private static final int OUTBOUND_LIMIT = 65_536;
+
+    final String nodeId;
+    private final int port;
+    private final Function<String, Room> rooms;
+    private final Map<String, PeerLink> peers = new ConcurrentHashMap<>();
+
+    // Best known claim per room
+    private final Map<String, Claim> owners = new ConcurrentHashMap<>();
+    // Claims we are waiting on answers for
+    private final Map<String, CountDownLatch> claiming = new ConcurrentHashMap<>();
+    // Subscriptions waiting for SYNC_END
+    private final Map<String, CountDownLatch> syncing = new ConcurrentHashMap<>();
+    // Rooms subscribed to here, and the node that owns each
+    private final Map<String, String> subscriptions = new ConcurrentHashMap<>();
+    // The latest link from each peer. One it replaced may still be reading
+    // what was buffered, but room state and relays on it are stale by then
+    private final Map<String, Object> inbound = new ConcurrentHashMap<>();
+    private final Map<String, Object> inboundLocks = new ConcurrentHashMap<>();
+
+    /** (time, node) of a room's first JOIN; the smaller one wins. */
+    private static final class Claim implements Comparable<Claim> {
+        final long time;
+        final String node;
+        final boolean settled;
+
+        Claim(long time, String node, boolean settled) {
+            this.time = time;
+            this.node = node;
+            this.settled = settled;
+        }
+
+        static Claim parse(String s) {
+            String[] parts = s.split(":", 3);
+            return new Claim(Long.parseLong(parts[0]), parts[1], parts[2].equals("1"));
+        }
+
+        Claim settle() {
+            return new Claim(time, node, true);
+        }
+
+        @Override
+        public String toString() {
+            return time + ":" + node + ":" + (settled ? "1" : "0");
+        }
+
+        @Override
+        public int compareTo(Claim o) {
+            int c = Long.compare(time, o.time);
+            return c != 0 ? c : node.compareTo(o.node);
+        }
+    }
+
+    /**
+     * @param rooms looks up, or creates, the local room of a given name
+     */
+    ClusterNode(String nodeId, int port, List<String> peerSpecs, Function<String, Room> rooms) {
+        this.nodeId = nodeId;
+        this.port = port;
+        this.rooms = rooms;
+        for (String spec : peerSpecs) {
+            // id@host:port
+            int at = spec.indexOf('@');
+            int colon = spec.lastIndexOf(':');
+            if (at <= 0 || colon < at) {
+                throw new IllegalArgumentException("Peer must be id@host:port: " + spec);
+            }
+            String id = spec.substring(0, at);
+            InetSocketAddress address = new InetSocketAddress(spec.substring(at + 1, colon),
+                    Integer.parseInt(spec.substring(colon + 1)));
+            peers.put(id, new PeerLink(id, address));
+        }
+    }
+
+    void start() throws IOException {
+        ServerSocket server = new ServerSocket(port);
+        Thread acceptor = new Thread(() -> acceptLoop(server), "WB-Cluster-Accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (PeerLink link : peers.values()) {
+            link.start();
+        }
+        System.out.println("Cluster node " + nodeId + " listening on port " + port +
+                ", peers " + peers.keySet());
+    }
+
+    // ---- Ownership ----
+
+    /**
+     * Node that owns {@code room}, claiming it for this node if nobody has
+     * yet. Blocks until the connected peers have answered the claim, so it is
+     * never called on an I/O thread.
+     */
+    String owner(String room) {
+        Claim known = owners.get(room);
+        if (known != null && known.settled) return known.node;
+
+        Claim mine = new Claim(System.currentTimeMillis(), nodeId, false);
+        owners.merge(room, mine, ClusterNode::earlier);
+        List<PeerLink> connected = new ArrayList<>();
+        for (PeerLink link : peers.values()) {
+            if (link.isConnected()) connected.add(link);
+        }
+        CountDownLatch answers = new CountDownLatch(connected.size());
+        claiming.put(room, answers);
+        for (PeerLink link : connected) {
+            link.send(CLAIM, room, owners.get(room).toString(), null);
+        }
+        try {
+            if (!answers.await(CLAIM_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                System.out.println("Cluster: not every peer answered the claim for room " + room);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        claiming.remove(room, answers);
+        Claim result = owners.compute(room, (r, c) -> c.settle());
+        return result.node;
+    }
+
+    // A settled claim always stands; between pending ones the earlier wins
+    private static Claim earlier(Claim current, Claim incoming) {
+        if (current.settled) return current;
+        if (incoming.settled) return incoming;
+        return incoming.compareTo(current) < 0 ? incoming : current;
+    }
+
+    // ---- Calls from rooms ----
+
+    /** Ask the owner for the room's state and wait until it has arrived; not on an I/O thread. */
+    boolean subscribe(Room room, String owner) {
+        CountDownLatch done = new CountDownLatch(1);
+        syncing.put(room.name, done);
+        subscriptions.put(room.name, owner);
+        link(owner).send(SUBSCRIBE, room.name, "", null);
+        try {
+            return done.await(SYNC_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            syncing.remove(room.name, done);
+        }
+    }
+
+    /** Subscribe again after the link to the owner was re-established, without waiting. */
+    void resendSubscribe(Room room, String owner) {
+        subscriptions.put(room.name, owner);
+        link(owner).send(SUBSCRIBE, room.name, "", null);
+    }
+
+    void unsubscribe(Room room, String owner) {
+        subscriptions.remove(room.name, owner);
+        link(owner).send(UNSUBSCRIBE, room.name, "", null);
+    }
+
+    void memberJoined(Room room, String owner, String username) {
+        link(owner).send(MEMBER_JOIN, room.name, username, null);
+    }
+
+    void memberLeft(Room room, String owner, String username) {
+        link(owner).send(MEMBER_LEAVE, room.name, username, null);
+    }
+
+    /** Hand a local member's message to the room's owner. */
+    void forward(Room room, String owner, String username, WireMessage msg) {
+        link(owner).send(UPSTREAM, room.name, username, msg.frame());
+    }
+
+    /** Send one piece of room state to a new subscriber. */
+    void sendState(String peer, Room room, WireMessage msg) {
+        link(peer).send(STATE, room.name, "", msg.frame());
+    }
+
+    void endSync(String peer, Room room) {
+        link(peer).send(SYNC_END, room.name, "", null);
+    }
+
+    /** Pass a broadcast on to a subscriber, except to member {@code exclude}. */
+    void relay(String peer, Room room, WireMessage msg, String exclude) {
+        link(peer).send(RELAY, room.name, exclude, msg.frame());
+    }
+
+    private PeerLink link(String peer) {
+        PeerLink link = peers.get(peer);
+        if (link == null) {
+            throw new IllegalStateException("Unknown cluster peer " + peer);
+        }
+        return link;
+    }
+
+    // ---- Incoming links ----
+
+    private void acceptLoop(ServerSocket server) {
+        while (true) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                Thread t = new Thread(() -> readLoop(socket), "WB-Cluster-In");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                System.out.println("Cluster listener stopped: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private void readLoop(Socket socket) {
+        String peer = null;
+        Object current = new Object();
+        // Rooms whose state is coming in on this link
+        Set<String> receiving = new HashSet<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            while (true) {
+                in.readInt();
+                byte type = in.readByte();
+                String room = in.readUTF();
+                String arg = in.readUTF();
+                int n = in.readInt();
+                byte[] frame = null;
+                if (n >= 0) {
+                    frame = new byte[n];
+                    in.readFully(frame);
+                }
+                if (type == HELLO) {
+                    peer = arg;
+                    Thread.currentThread().setName("WB-Cluster-In-" + peer);
+                    System.out.println("Cluster: peer " + peer + " connected");
+                    Object previous;
+                    synchronized (inboundLock(peer)) {
+                        previous = inbound.put(peer, current);
+                    }
+                    if (previous != null) {
+                        // It re-dialled, so it takes its subscriptions and
+                        // members here as dropped and sends them again
+                        dropPeer(peer);
+                    }
+                    // It may have dropped what it had to relay to us meanwhile
+                    for (Map.Entry<String, String> sub : subscriptions.entrySet()) {
+                        if (sub.getValue().equals(peer)) {
+                            link(peer).send(SUBSCRIBE, sub.getKey(), "", null);
+                        }
+                    }
+                } else if (peer != null) {
+                    WireMessage msg = frame == null ? null : WireMessage.ofFrame(frame);
+                    if (!isRoomData(type)) {
+                        handle(peer, type, room, arg, msg, receiving);
+                        continue;
+                    }
+                    synchronized (inboundLock(peer)) {
+                        if (inbound.get(peer) == current) {
+                            handle(peer, type, room, arg, msg, receiving);
+                        }
+                    }
+                }
+            }
+        } catch (EOFException e) {
+            // peer closed the link
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Cluster: link from " + peer + " failed: " + e);
+        }
+        if (peer != null && inbound.remove(peer, current)) {
+            System.out.println("Cluster: peer " + peer + " disconnected");
+            dropPeer(peer);
+        }
+    }
+
+    private Object inboundLock(String peer) {
+        return inboundLocks.computeIfAbsent(peer, p -> new Object());
+    }
+
+    private static void dropPeer(String peer) {
+        for (Room room : WhiteboardServer.rooms()) {
+            room.dropPeer(peer);
+        }
+    }
+
+    private void handle(String peer, byte type, String room, String arg, WireMessage msg,
+                        Set<String> receiving) {
+        switch (type) {
+            case CLAIM: {
+                Claim best = owners.merge(room, Claim.parse(arg), ClusterNode::earlier);
+                link(peer).send(OWNER, room, best.toString(), null);
+                break;
+            }
+            case OWNER: {
+                owners.merge(room, Claim.parse(arg), ClusterNode::earlier);
+                CountDownLatch answers = claiming.get(room);
+                if (answers != null) answers.countDown();
+                break;
+            }
+            case SUBSCRIBE:
+                rooms.apply(room).addSubscriber(peer);
+                break;
+            case UNSUBSCRIBE:
+                rooms.apply(room).removeSubscriber(peer);
+                break;
+            case STATE: {
+                Room r = rooms.apply(room);
+                // Each state replaces the copy, however many were asked for
+                if (receiving.add(room)) r.resetReplica();
+                r.applyState(msg);
+                break;
+            }
+            case SYNC_END: {
+                receiving.remove(room);
+                CountDownLatch done = syncing.get(room);
+                if (done != null) done.countDown();
+                break;
+            }
+            case UPSTREAM:
+                rooms.apply(room).handleRemote(peer, arg, msg);
+                break;
+            case RELAY:
+                // One sent under a subscription the state in progress replaces
+                if (!receiving.contains(room)) {
+                    rooms.apply(room).applyRelay(msg, arg);
+                }
+                break;
+            case MEMBER_JOIN:
+                rooms.apply(room).remoteJoin(peer, arg);
+                break;
+            case MEMBER_LEAVE:
+                rooms.apply(room).remoteLeave(peer, arg);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // ---- Outgoing links ----
+
+    /** Connection we dial to one peer; only used for sending. */
+    private final class PeerLink {
+        final String id;
+        final InetSocketAddress address;
+        private final BlockingQueue<byte[]> outbound = new LinkedBlockingQueue<>(OUTBOUND_LIMIT);
+        private volatile boolean connected = false;
+        private boolean everConnected = false;
+        // Set when the queue overflowed; the link is then dropped and re-dialled
+        private volatile boolean overflowed = false;
+        // Records dropped since the last time the link came up
+        private final AtomicLong dropped = new AtomicLong();
+
+        PeerLink(String id, InetSocketAddress address) {
+            this.id = id;
+            this.address = address;
+        }
+
+        void start() {
+            Thread t = new Thread(this::run, "WB-Cluster-Out-" + id);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        boolean isConnected() {
+            return connected;
+        }
+
+        void send(byte type, String room, String arg, byte[] frame) {
+            if (!connected && isRoomData(type)) {
+                dropped.incrementAndGet();
+                return;
+            }
+            if (!outbound.offer(encode(type, room, arg, frame))) {
+                dropped.incrementAndGet();
+                overflowed = true;
+            }
+        }
+
+        private void run() {
+            byte[] pending = null;
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(address, (int) RECONNECT_MS);
+                    socket.setTcpNoDelay(true);
+                    OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                    out.write(encode(HELLO, "", nodeId, null));
+                    out.flush();
+                    if (everConnected) {
+                        // The peer dropped whatever we had subscribed to there
+                        for (Room room : WhiteboardServer.rooms()) {
+                            room.resubscribe(id);
+                        }
+                    }
+                    connected = true;
+                    everConnected = true;
+                    long lost = dropped.getAndSet(0);
+                    if (lost > 0) {
+                        System.out.println("Cluster: dropped " + lost + " messages for " + id +
+                                " while it could not be reached");
+                    }
+                    while (true) {
+                        if (pending == null) {
+                            pending = outbound.take();
+                        }
+                        if (overflowed) {
+                            throw new IOException(OUTBOUND_LIMIT + " messages queued");
+                        }
+                        out.write(pending);
+                        pending = null;
+                        if (outbound.isEmpty()) {
+                            out.flush();
+                        }
+                    }
+                } catch (IOException e) {
+                    if (connected) {
+                        System.out.println("Cluster: link to " + id + " lost: " + e.getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (connected) {
+                    connected = false;
+                    // The peer subscribes again once we are back, and is sent
+                    // the whole state; until then nothing is relayed to it
+                    for (Room room : WhiteboardServer.rooms()) {
+                        room.removeSubscriber(id);
+                    }
+                    outbound.removeIf(record -> isRoomData(record[4]));
+                    if (pending != null && isRoomData(pending[4])) {
+                        pending = null;
+                    }
+                    overflowed = false;
+                }
+                try {
+                    Thread.sleep(RECONNECT_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+    }
+
+    // Room state and relays, which a peer gets again in full when it resubscribes
+    private static boolean isRoomData(byte type) {
+        return type == STATE || type == SYNC_END || type == RELAY;
+    }
+
+    private static byte[] encode(byte type, String room, String arg, byte[] frame) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + (frame == null ? 0 : frame.length));
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0);
+            out.writeByte(type);
+            out.writeUTF(room);
+            out.writeUTF(arg);
+            out.writeInt(frame == null ? -1 : frame.length);
+            if (frame != null) out.write(frame);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        byte[] record = bytes.toByteArray();
+        int length = record.length - 4;
+        record[0] = (byte) (length >>> 24);
+        record[1] = (byte) (length >>> 16);
+        record[2] = (byte) (length >>> 8);
+        record[3] = (byte) length;
+        return record;
+    }
+}
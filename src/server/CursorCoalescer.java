@@ -0,0 +1,107 @@
+package server;
+
+import protocol.BinaryCodec;
+import protocol.CursorList;
+import protocol.FieldReader;
+import protocol.WireMessage;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latest-wins cursor aggregation.
+ *
+ * Clients send CURSOR on every mouse move. Instead of relaying each one to
+ * every other client (N^2 messages), the server keeps only the newest position
+ * per user and, once per tick, broadcasts a single
+ *   CURSORS|name,x,y;name,x,y;...
+ * with the users that moved since the previous tick. The same message goes to
+ * everybody in the room; clients skip their own name.
+ *
+ * There is one coalescer per {@link Room}; all of them tick on one shared
+ * thread.
+ */
+class CursorCoalescer {
+
+    // username -> packed (x, y); removed when the tick picks it up
+    private final Map<String, Long> pending = new ConcurrentHashMap<>();
+    private final Room room;
+    private final ScheduledFuture<?> task;
+
+    private String[] names = new String[16];
+    private int[] xy = new int[32];
+
+    CursorCoalescer(Room room, ScheduledExecutorService ticker, int hz) {
+        this.room = room;
+        long periodMicros = 1_000_000L / hz;
+        task = ticker.scheduleAtFixedRate(this::tick, periodMicros, periodMicros, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Record the position carried by a CURSOR message from {@code username}.
+     * A malformed one is dropped; the next move replaces it anyway.
+     */
+    void update(String username, WireMessage msg) {
+        int x, y;
+        try {
+            if (msg.hasFrame()) {
+                BinaryCodec.CursorOp op = new BinaryCodec.CursorOp();
+                BinaryCodec.decodeCursor(msg.frame(), op);
+                x = op.x;
+                y = op.y;
+            } else {
+                // CURSOR|username|x|y
+                FieldReader f = new FieldReader().reset(msg.text());
+                f.skip();
+                x = f.nextInt();
+                y = f.nextInt();
+            }
+        } catch (IllegalArgumentException e) {
+            // NumberFormatException from a text line, or a broken frame
+            return;
+        }
+        pending.put(username, ((long) x << 32) | (y & 0xFFFFFFFFL));
+    }
+
+    /** Forget a user that left, so a stale position is not sent afterwards. */
+    void remove(String username) {
+        pending.remove(username);
+    }
+
+    void shutdown() {
+        task.cancel(false);
+    }
+
+    // Runs on the shared ticker thread only, never twice at once
+    private void tick() {
+        try {
+            int count = 0;
+            Iterator<String> it = pending.keySet().iterator();
+            while (it.hasNext()) {
+                String name = it.next();
+                // remove() returns the newest value; later moves go to the next tick
+                Long value = pending.remove(name);
+                if (value == null) continue;
+                long packed = value;
+                if (count == names.length) {
+                    names = Arrays.copyOf(names, count * 2);
+                    xy = Arrays.copyOf(xy, count * 4);
+                }
+                names[count] = name;
+                xy[2 * count] = (int) (packed >> 32);
+                xy[2 * count + 1] = (int) packed;
+                count++;
+            }
+            if (count == 0) return;
+            room.broadcast(WireMessage.ofText(CursorList.format(names, xy, count)), null);
+        } catch (RuntimeException e) {
+            // An exception would silently cancel the scheduled task
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends PING to clients that have gone quiet and disconnects the ones that
+ * stay silent, e.g. a laptop that crashed or lost its network without
+ * closing the socket. Such a connection is otherwise only noticed once TCP
+ * gives up, which takes many minutes, and meanwhile keeps its username and
+ * fills its queue with broadcasts.
+ *
+ * Only clients that offered PING in JOIN are watched, since older clients
+ * do not answer. Anything a client sends counts as a sign of life; it only
+ * records the time in {@link ClientSession#lastHeard}, so the per-message
+ * cost is one volatile write.
+ *
+ * Clients sit in a hashed timer wheel: each slot holds the clients due for
+ * a check at that tick, and a check puts the client back in the slot of its
+ * next deadline (the next PING or the timeout, whichever comes first). A
+ * client is looked at about once per PING interval however many messages
+ * it sends, and a tick only touches the clients that are due.
+ */
+final class IdleReaper {
+
+    private static final int SLOTS = 64;
+    // Ticks per PING interval, i.e. how late a PING or an eviction may be
+    private static final int TICKS_PER_PING = 8;
+
+    private final long pingNanos;
+    private final long timeoutNanos;
+    private final long tickNanos;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final Queue<ClientSession>[] wheel = new Queue[SLOTS];
+    // Advanced by the ticker only; read when adding a client
+    private volatile long tick = 0;
+
+    /**
+     * @param pingMillis    silence after which a client is sent a PING
+     * @param timeoutMillis silence after which it is disconnected
+     */
+    IdleReaper(long pingMillis, long timeoutMillis) {
+        this.pingNanos = TimeUnit.MILLISECONDS.toNanos(pingMillis);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(pingMillis, timeoutMillis));
+        this.tickNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(10), pingNanos / TICKS_PER_PING);
+        for (int i = 0; i < SLOTS; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    void start(ScheduledExecutorService ticker) {
+        ticker.scheduleAtFixedRate(this::tick, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Watch a client that has joined; it counts as heard from now. */
+    void add(ClientSession client) {
+        client.heard();
+        client.lastPing = client.lastHeard;
+        schedule(client, tick, pingNanos);
+    }
+
+    private void schedule(ClientSession client, long fromTick, long delayNanos) {
+        // A deadline beyond the wheel is checked early and simply rescheduled
+        long ticks = Math.min(SLOTS - 1, Math.max(1, (delayNanos + tickNanos - 1) / tickNanos));
+        wheel[(int) ((fromTick + ticks) % SLOTS)].add(client);
+    }
+
+    // On the ticker thread
+    private void tick() {
+        long current = tick + 1;
+        tick = current;
+        Queue<ClientSession> due = wheel[(int) (current % SLOTS)];
+        long now = System.nanoTime();
+        // Clients are always rescheduled into a later slot, never this one
+        ClientSession client;
+        while ((client = due.poll()) != null) {
+            if (client.hasLeft()) continue;
+
+            long lastHeard = client.lastHeard;
+            long silent = now - lastHeard;
+            if (silent >= timeoutNanos) {
+                client.reapIdle(TimeUnit.NANOSECONDS.toMillis(silent));
+                continue;
+            }
+            // nanoTime values are only comparable by their difference
+            long sincePing = now - (client.lastPing - lastHeard > 0 ? client.lastPing : lastHeard);
+            if (sincePing >= pingNanos) {
+                client.sendMessage("PING|" + TimeUnit.NANOSECONDS.toMillis(now));
+                client.lastPing = now;
+                sincePing = 0;
+            }
+            long next = Math.min(pingNanos - sincePing, timeoutNanos - silent);
+            schedule(client, current, next);
+        }
+    }
+}
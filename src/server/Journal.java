@@ -0,0 +1,374 @@
+package server;
+
+import protocol.BinaryCodec;
+import protocol.WireMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the messages that make up the session state (drawing,
+ * CLEAR, chat, polls), so a restarted server can rebuild it.
+ *
+ * Records go to memory-mapped segment files (--journal-segment-mb) named
+ * journal-&lt;first sequence number&gt;.log. Each record is
+ *   int length | int crc32 | long sequence | binary frame
+ * where length and crc cover sequence + frame. A zero length marks the end of
+ * the data; a record with a bad checksum (torn by a crash) ends replay.
+ *
+ * {@link #append} only queues the message. A single writer thread assigns
+ * sequence numbers, copies records into the mapping and forces it to disk
+ * according to the {@link ServerConfig.JournalSync} policy. If the writer
+ * fails it says so and the journal stops taking records, rather than
+ * queueing them for nobody.
+ *
+ * The queue is bounded. When the disk falls behind, append waits for room,
+ * so the rooms writing to it slow down with it. If there is still no room
+ * after {@link #STALL_MILLIS}, the disk is taken to have stopped. The
+ * journal then fails as if the writer had, and the session goes on
+ * without it.
+ *
+ * Full segments are sealed and folded into a snapshot file by
+ * {@link JournalCompactor}, which then deletes them. Replay reads the newest
+ * snapshot first, then the records after it.
+ */
+class Journal {
+
+    private static final int HEADER = 16;
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".log";
+    // Records queued for the writer at most
+    static final int QUEUE_LIMIT = 65_536;
+    // Longest append waits for room in the queue before giving up on the disk
+    static final long STALL_MILLIS = 5_000;
+
+    private final File dir;
+    private final ServerConfig.JournalSync sync;
+    private final long syncIntervalNanos;
+    private final int segmentSize;
+    // Largest frame a fresh segment has room for, with the end marker after it
+    private final int maxFrame;
+    private final BlockingQueue<WireMessage> queue = new LinkedBlockingQueue<>(QUEUE_LIMIT);
+    // Queued by close() to wake the writer; never written. Interrupting it
+    // instead would close the channel under a write or a roll-over
+    private static final WireMessage WAKE = WireMessage.ofText("");
+    private final CRC32 crc = new CRC32();
+
+    // Owned by the writer thread after start()
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long nextSequence = 1;
+    private boolean dirty = false;
+    private long lastSync = System.nanoTime();
+    private volatile boolean stopped = false;
+    // Set when the writer thread has died; nothing is journaled after that
+    private volatile boolean failed = false;
+    private Thread writer;
+
+    // First sequence number of the segment being written; earlier ones are sealed
+    private volatile long activeSegment = 1;
+    private volatile Runnable onSegmentSealed = () -> {};
+
+    Journal(File dir, ServerConfig.JournalSync sync, int syncIntervalMillis, int segmentSize) {
+        this.dir = dir;
+        this.sync = sync;
+        this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis);
+        this.segmentSize = segmentSize;
+        this.maxFrame = segmentSize - HEADER - 4;
+    }
+
+    File directory() {
+        return dir;
+    }
+
+    /** Run {@code listener} on the writer thread whenever a segment fills up. */
+    void setOnSegmentSealed(Runnable listener) {
+        this.onSegmentSealed = listener;
+    }
+
+    /**
+     * Read the newest snapshot and every intact record after it in sequence
+     * order, then position the journal after the last one. Call once, before
+     * {@link #start()}.
+     */
+    void replay(BiConsumer<Long, WireMessage> handler) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + dir);
+        }
+        long snapshotSequence = 0;
+        File snapshot = JournalCompactor.latestSnapshot(dir);
+        if (snapshot != null) {
+            snapshotSequence = JournalCompactor.snapshotSequence(snapshot);
+            readRecords(snapshot, handler);
+            nextSequence = snapshotSequence + 1;
+        }
+
+        File[] segments = segmentFiles(dir);
+        long covered = snapshotSequence;
+        int end = 0;
+        for (File file : segments) {
+            end = readRecords(file, (seq, msg) -> {
+                // Left behind if the server stopped before the compactor deleted it
+                if (seq <= covered) return;
+                handler.accept(seq, msg);
+                nextSequence = seq + 1;
+            });
+        }
+        if (segments.length > 0) {
+            File last = segments[segments.length - 1];
+            openSegment(last, end);
+            activeSegment = firstSequence(last);
+        } else {
+            openSegment(segmentFile(dir, nextSequence), 0);
+            activeSegment = nextSequence;
+        }
+    }
+
+    void start() {
+        writer = new Thread(this::writeLoop, "WB-Journal-" + dir.getName());
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "WB-Journal-Close"));
+    }
+
+    /**
+     * Queue a message for the journal, waiting up to {@link #STALL_MILLIS}
+     * if the queue is full. A message too large for a segment is left out,
+     * and so is everything once the journal has failed.
+     */
+    void append(WireMessage msg) {
+        if (failed) return;
+        int size = msg.frame().length;
+        if (size > maxFrame) {
+            System.out.println("Journal " + dir.getName() + ": not journaling a " + size +
+                    "-byte message, larger than a segment");
+            return;
+        }
+        if (queue.offer(msg)) return;
+        try {
+            if (queue.offer(msg, STALL_MILLIS, TimeUnit.MILLISECONDS)) return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        fail(QUEUE_LIMIT + " records waited for the disk for more than " + STALL_MILLIS + " ms");
+    }
+
+    // Stop journaling for good; what is on disk stays a complete prefix
+    private void fail(String reason) {
+        if (failed) return;
+        failed = true;
+        queue.clear();
+        System.out.println("Journal " + dir.getName() + " stopped, nothing more is journaled: " + reason);
+    }
+
+    /** Stop the writer after it has written everything queued so far. */
+    void close() {
+        if (stopped) return;
+        stopped = true;
+        if (writer != null) {
+            // A full queue wakes the writer just as well
+            queue.offer(WAKE);
+            try {
+                writer.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** Segments that are no longer written to, oldest first. */
+    File[] sealedSegments() {
+        long active = activeSegment;
+        File[] all = segmentFiles(dir);
+        int n = 0;
+        while (n < all.length && firstSequence(all[n]) < active) {
+            n++;
+        }
+        return Arrays.copyOf(all, n);
+    }
+
+    private void writeLoop() {
+        List<WireMessage> batch = new ArrayList<>();
+        try {
+            while (!failed && (!stopped || !queue.isEmpty())) {
+                WireMessage first;
+                try {
+                    first = queue.poll(syncWaitMillis(), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    first = queue.poll();
+                }
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                    for (WireMessage msg : batch) {
+                        if (msg != WAKE) write(msg);
+                    }
+                    batch.clear();
+                    if (sync == ServerConfig.JournalSync.ALWAYS) {
+                        force();
+                    }
+                }
+                if (sync == ServerConfig.JournalSync.INTERVAL &&
+                        System.nanoTime() - lastSync >= syncIntervalNanos) {
+                    force();
+                }
+            }
+            force();
+            channel.close();
+        } catch (IOException | RuntimeException e) {
+            fail(e.toString());
+        }
+    }
+
+    private long syncWaitMillis() {
+        return sync == ServerConfig.JournalSync.INTERVAL
+                ? Math.max(1, TimeUnit.NANOSECONDS.toMillis(syncIntervalNanos))
+                : 1000;
+    }
+
+    private void write(WireMessage msg) throws IOException {
+        byte[] frame = msg.frame();
+        int length = 8 + frame.length;
+        if (segment.remaining() < 8 + length + 4) {
+            // Leave a zero length behind as the end marker and roll over
+            force();
+            channel.close();
+            openSegment(segmentFile(dir, nextSequence), 0);
+            activeSegment = nextSequence;
+            try {
+                onSegmentSealed.run();
+            } catch (RuntimeException e) {
+                // The segment stays sealed; it is folded in with the next one
+                System.out.println("Journal " + dir.getName() + ": segment listener failed: " + e);
+            }
+        }
+        long seq = nextSequence++;
+        int pos = segment.position();
+
+        segment.position(pos + 8);
+        segment.putLong(seq);
+        segment.put(frame);
+        segment.putInt(pos + 4, checksum(crc, segment, pos + 8, length));
+        // End marker, in case older bytes follow after a torn record
+        segment.putInt(pos + 8 + length, 0);
+        // Length last: a record only counts once it is complete
+        segment.putInt(pos, length);
+        dirty = true;
+    }
+
+    private void force() {
+        if (dirty && segment != null) {
+            segment.force();
+            dirty = false;
+        }
+        lastSync = System.nanoTime();
+    }
+
+    private void openSegment(File file, int position) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // A segment written with a larger --journal-segment-mb keeps its size
+        long size = Math.max(segmentSize, channel.size());
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        // Clear anything after a torn record so it is not mistaken for data
+        segment.position(position);
+        if (position + 4 <= size) {
+            segment.putInt(position, 0);
+        }
+    }
+
+    // ---- Record files: segments and snapshots share the format ----
+
+    /**
+     * Pass each intact record in {@code file} to {@code handler}. A record
+     * whose frame does not decode, journaled before frames were checked on
+     * receipt, is left out.
+     *
+     * @return offset just past the last intact record
+     */
+    static int readRecords(File file, BiConsumer<Long, WireMessage> handler) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            CRC32 crc = new CRC32();
+            int pos = 0;
+            int limit = buf.limit();
+            while (pos + HEADER <= limit) {
+                int length = buf.getInt(pos);
+                if (length <= 8 || pos + 8 + length > limit) break;
+                if (checksum(crc, buf, pos + 8, length) != buf.getInt(pos + 4)) {
+                    System.out.println("Journal: damaged record at offset " + pos + " of " +
+                            file.getName() + ", ignoring the rest of the file.");
+                    break;
+                }
+                long seq = buf.getLong(pos + 8);
+                byte[] frame = new byte[length - 8];
+                buf.position(pos + HEADER);
+                buf.get(frame);
+                pos += 8 + length;
+                try {
+                    BinaryCodec.check(frame);
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Journal: skipping malformed record " + seq + " in " +
+                            file.getName() + ": " + e.getMessage());
+                    continue;
+                }
+                handler.accept(seq, WireMessage.ofFrame(frame));
+            }
+            return pos;
+        }
+    }
+
+    /** Append one record to {@code out}; returns {@code out} or a larger copy. */
+    static ByteBuffer putRecord(ByteBuffer out, CRC32 crc, long seq, byte[] frame) {
+        int length = 8 + frame.length;
+        if (out.remaining() < 8 + length) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + 8 + length));
+            out.flip();
+            bigger.put(out);
+            out = bigger;
+        }
+        int pos = out.position();
+        out.position(pos + 8);
+        out.putLong(seq);
+        out.put(frame);
+        out.putInt(pos + 4, checksum(crc, out, pos + 8, length));
+        out.putInt(pos, length);
+        return out;
+    }
+
+    private static int checksum(CRC32 crc, ByteBuffer buf, int from, int length) {
+        ByteBuffer view = buf.duplicate();
+        view.limit(from + length).position(from);
+        crc.reset();
+        crc.update(view);
+        return (int) crc.getValue();
+    }
+
+    static File[] segmentFiles(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files == null) return new File[0];
+        Arrays.sort(files, (a, b) -> Long.compare(firstSequence(a), firstSequence(b)));
+        return files;
+    }
+
+    private static File segmentFile(File dir, long firstSequence) {
+        return new File(dir, String.format("%s%020d%s", PREFIX, firstSequence, SUFFIX));
+    }
+
+    static long firstSequence(File f) {
+        String name = f.getName();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+}
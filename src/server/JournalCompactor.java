@@ -0,0 +1,216 @@
+package server;
+
+import protocol.FieldReader;
+import protocol.MessageType;
+import protocol.WireMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Folds the sealed journal segments into a snapshot, so that restart time
+ * depends on what the session looks like now rather than on how long it ran.
+ *
+ * The newest snapshot and the sealed segments are replayed into a private
+ * copy of the state, which keeps only:
+ *   - the board since the last CLEAR, compacted by {@link BoardCompactor}
+ *   - the last {@link Room#CHAT_HISTORY} chat messages
+ *   - the open polls with the votes counted for them, and the last
+ *     {@link PollRegistry#HISTORY} closed ones with their close
+ * That is written to snapshot-&lt;last sequence&gt;.snap in the journal record
+ * format (temporary file, forced, then renamed), after which the older
+ * snapshot and the folded segments are deleted. A crash at any point leaves
+ * either the old or the new snapshot, plus segments replay can skip.
+ *
+ * Runs on the server's background maintenance thread.
+ */
+class JournalCompactor implements Runnable {
+
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".snap";
+
+    private final Journal journal;
+
+    JournalCompactor(Journal journal) {
+        this.journal = journal;
+    }
+
+    @Override
+    public void run() {
+        try {
+            compact();
+        } catch (IOException | RuntimeException e) {
+            // Segments stay in place and are picked up again next time
+            System.out.println("Journal compaction failed: " + e);
+        }
+    }
+
+    private void compact() throws IOException {
+        File[] sealed = journal.sealedSegments();
+        if (sealed.length == 0) return;
+        long start = System.nanoTime();
+        File dir = journal.directory();
+
+        State state = new State();
+        File previous = latestSnapshot(dir);
+        long covered = previous == null ? 0 : snapshotSequence(previous);
+        if (previous != null) {
+            Journal.readRecords(previous, (seq, msg) -> state.apply(msg));
+        }
+        long[] last = {covered};
+        for (File segment : sealed) {
+            Journal.readRecords(segment, (seq, msg) -> {
+                if (seq <= covered) return;
+                state.apply(msg);
+                last[0] = seq;
+            });
+        }
+
+        File snapshot = previous;
+        if (last[0] > covered) {
+            state.board.compact();
+            snapshot = new File(dir, String.format("%s%020d%s", PREFIX, last[0], SUFFIX));
+            write(snapshot, state.records(last[0]));
+            if (previous != null) {
+                Files.deleteIfExists(previous.toPath());
+            }
+        }
+        for (File segment : sealed) {
+            Files.deleteIfExists(segment.toPath());
+        }
+        System.out.printf("Journal: folded %d segment(s) into %s (%d KB, %d drawing operations) in %d ms%n",
+                sealed.length, snapshot == null ? "nothing" : snapshot.getName(),
+                snapshot == null ? 0 : snapshot.length() / 1024, state.board.operations(),
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private static void write(File target, ByteBuffer records) throws IOException {
+        File tmp = new File(target.getPath() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            records.flip();
+            while (records.hasRemaining()) {
+                ch.write(records);
+            }
+            ch.force(true);
+        }
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Session state as rebuilt from the journal
+    private static final class State {
+        final BoardState board = new BoardState();
+        final ArrayDeque<WireMessage> chat = new ArrayDeque<>();
+        // POLL_CREATE, counted votes and, once closed, POLL_CLOSE of each poll
+        final Map<String, List<WireMessage>> openPolls = new LinkedHashMap<>();
+        final ArrayDeque<List<WireMessage>> closedPolls = new ArrayDeque<>();
+
+        void apply(WireMessage msg) {
+            if (msg.isDrawing()) {
+                board.append(msg);
+                return;
+            }
+            int type = msg.type();
+            switch (type) {
+                case MessageType.CLEAR:
+                    board.clear();
+                    break;
+                case MessageType.CHAT:
+                    if (chat.size() == Room.CHAT_HISTORY) {
+                        chat.removeFirst();
+                    }
+                    chat.addLast(msg);
+                    break;
+                case MessageType.POLL_CREATE:
+                case MessageType.POLL_VOTE:
+                case MessageType.POLL_CLOSE:
+                    applyPoll(type, msg);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void applyPoll(int type, WireMessage msg) {
+            // POLL_CREATE|user|pollId|..., POLL_VOTE|user|pollId|..., POLL_CLOSE|user|pollId
+            FieldReader f = new FieldReader().reset(msg.text());
+            String pollId;
+            try {
+                f.skip();
+                pollId = f.nextString();
+            } catch (NumberFormatException e) {
+                return;
+            }
+            if (type == MessageType.POLL_CREATE) {
+                openPolls.putIfAbsent(pollId, new ArrayList<>(List.of(msg)));
+                return;
+            }
+            List<WireMessage> poll = openPolls.get(pollId);
+            if (poll == null) return;
+            // Only counted votes are journaled
+            poll.add(msg);
+            if (type == MessageType.POLL_CLOSE) {
+                openPolls.remove(pollId);
+                closedPolls.addLast(poll);
+                if (closedPolls.size() > PollRegistry.HISTORY) {
+                    closedPolls.removeFirst();
+                }
+            }
+        }
+
+        // Everything as journal records, all carrying sequence number seq
+        ByteBuffer records(long seq) {
+            CRC32 crc = new CRC32();
+            ByteBuffer out = ByteBuffer.allocate(board.sizeInBytes() * 2 + 64 * 1024);
+            List<byte[]> frames = new ArrayList<>(board.operations() + chat.size());
+            board.forEachFrame(frames::add);
+            for (WireMessage msg : chat) {
+                frames.add(msg.frame());
+            }
+            for (List<WireMessage> poll : closedPolls) {
+                for (WireMessage msg : poll) {
+                    frames.add(msg.frame());
+                }
+            }
+            for (List<WireMessage> poll : openPolls.values()) {
+                for (WireMessage msg : poll) {
+                    frames.add(msg.frame());
+                }
+            }
+            for (byte[] frame : frames) {
+                out = Journal.putRecord(out, crc, seq, frame);
+            }
+            return out;
+        }
+    }
+
+    /** Newest complete snapshot in {@code dir}, or null. */
+    static File latestSnapshot(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        File latest = null;
+        if (files == null) return null;
+        for (File f : files) {
+            if (latest == null || snapshotSequence(f) > snapshotSequence(latest)) {
+                latest = f;
+            }
+        }
+        return latest;
+    }
+
+    /** Sequence number of the last record folded into {@code snapshot}. */
+    static long snapshotSequence(File snapshot) {
+        String name = snapshot.getName();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+}
@@ -0,0 +1,76 @@
+package server;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Durations in power-of-two microsecond buckets: bucket 0 counts everything
+ * under 1 us, bucket k everything under 2^k us (and at least 2^(k-1)), the
+ * last bucket everything longer.
+ *
+ * Recording is one LongAdder increment and needs no lock, so any number of
+ * threads can record at once; percentiles are read from the buckets and are
+ * accurate to the bucket's upper bound.
+ */
+final class LatencyHistogram {
+
+    static final int BUCKETS = 24;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets[bucket].increment();
+        if (nanos > maxNanos.get()) {
+            maxNanos.accumulate(nanos);
+        }
+    }
+
+    long count() {
+        long n = 0;
+        for (LongAdder b : buckets) {
+            n += b.sum();
+        }
+        return n;
+    }
+
+    /** Count of bucket {@code i}. */
+    long bucket(int i) {
+        return buckets[i].sum();
+    }
+
+    /** Exclusive upper bound of bucket {@code i} in microseconds; the last is open. */
+    static long upperMicros(int i) {
+        return 1L << i;
+    }
+
+    /** Upper bound in us of the bucket holding the {@code p}-th fraction of recordings, 0 if none. */
+    long percentileMicros(double p) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(p * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return upperMicros(i);
+        }
+        return upperMicros(BUCKETS - 1);
+    }
+
+    long maxMicros() {
+        return maxNanos.get() / 1000;
+    }
+}
@@ -0,0 +1,481 @@
+package server;
+
+import protocol.BinaryCodec;
+import protocol.WireMessage;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking server engine.
+ *
+ * One acceptor thread hands new connections round-robin to a small, fixed
+ * pool of I/O workers. Each worker owns a {@link Selector} and serves all of
+ * its clients without blocking, so the number of threads no longer grows with
+ * the number of students. Protocol handling is the same as the
+ * thread-per-client mode: lines are passed to {@link WhiteboardServer}.
+ *
+ * Writes are batched: a queued message normally waits until the worker's next
+ * flush tick (--flush-ms) and then goes out together with everything else
+ * queued for that client in one gathering write. Control messages and a
+ * queue past --flush-bytes are written straight away. Each message is
+ * encoded once and every recipient's queue shares the bytes; a worker copies
+ * them into its own direct buffer for the write, so the JDK does not have to.
+ * For a client that negotiated DEFLATE the queued messages are compressed
+ * instead, one sync-flushed block per flush.
+ */
+class NioServerEngine {
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    // A single protocol line or frame longer than this is treated as a broken client
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    // Direct buffer each worker copies queued messages into for one write
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    // Queued after the PROTO reply of a compressed connection; not counted as a message
+    private static final ByteBuffer START_DEFLATE = ByteBuffer.allocate(0);
+
+    private final int port;
+    private final IoWorker[] workers;
+    private final int flushMillis;
+    private final int flushBytes;
+
+    NioServerEngine(int port, int ioThreads, int flushMillis, int flushBytes) {
+        this.port = port;
+        this.workers = new IoWorker[ioThreads];
+        this.flushMillis = flushMillis;
+        this.flushBytes = flushBytes;
+    }
+
+    /** Accept connections forever. */
+    void run() throws IOException {
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new IoWorker(flushMillis, flushBytes);
+            Thread t = new Thread(workers[i], "WB-NIO-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port));
+            int next = 0;
+            while (true) {
+                SocketChannel channel = server.accept();
+                WhiteboardServer.metrics().accepted();
+                System.out.println("New client connected: " + channel.getRemoteAddress());
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                // Reaps clients without heartbeats eventually
+                channel.socket().setKeepAlive(true);
+                workers[next].adopt(channel);
+                next = (next + 1) % workers.length;
+            }
+        }
+    }
+
+    // ---- I/O worker: one selector, many clients ----
+    private static class IoWorker implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+        private final Queue<NioSession> pendingWrites = new ConcurrentLinkedQueue<>();
+        // Flushed on the next tick rather than right away
+        private final Queue<NioSession> delayedWrites = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        private final long flushNanos;
+        private final int flushBytes;
+        private long nextTick;
+
+        IoWorker(int flushMillis, int flushBytes) throws IOException {
+            this.selector = Selector.open();
+            this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+            this.flushBytes = flushBytes;
+            this.nextTick = System.nanoTime() + flushNanos;
+        }
+
+        void adopt(SocketChannel channel) {
+            pendingChannels.add(channel);
+            selector.wakeup();
+        }
+
+        void requestWrite(NioSession session) {
+            pendingWrites.add(session);
+            selector.wakeup();
+        }
+
+        // No wakeup: the selector returns by itself at the next tick
+        void requestDelayedWrite(NioSession session) {
+            delayedWrites.add(session);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    if (flushNanos == 0) {
+                        selector.select();
+                    } else {
+                        long wait = nextTick - System.nanoTime();
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                    }
+                    registerPending();
+                    flushPending();
+                    flushDelayed();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioSession session = (NioSession) key.attachment();
+                        try {
+                            if (!key.isValid()) {
+                                session.close();
+                                continue;
+                            }
+                            if (key.isReadable()) {
+                                session.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                session.flush();
+                            }
+                        } catch (RuntimeException e) {
+                            fail(session, e);
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        // A bug in serving one client closes that client, not the worker
+        // and everybody else on it
+        private static void fail(NioSession session, RuntimeException e) {
+            System.out.println("Closing connection of " + session.username + " after an error:");
+            e.printStackTrace();
+            try {
+                session.close();
+            } catch (RuntimeException again) {
+                System.out.println("Error while closing it as well: " + again);
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pendingChannels.poll()) != null) {
+                NioSession session = new NioSession(this, channel);
+                try {
+                    session.key = channel.register(selector, SelectionKey.OP_READ, session);
+                } catch (ClosedChannelException e) {
+                    session.close();
+                }
+            }
+        }
+
+        private void flushPending() {
+            NioSession session;
+            while ((session = pendingWrites.poll()) != null) {
+                try {
+                    session.flush();
+                } catch (RuntimeException e) {
+                    fail(session, e);
+                }
+            }
+        }
+
+        private void flushDelayed() {
+            if (flushNanos == 0) return;
+            long now = System.nanoTime();
+            if (now - nextTick < 0) return;
+            nextTick = now + flushNanos;
+            NioSession session;
+            while ((session = delayedWrites.poll()) != null) {
+                try {
+                    session.flush();
+                } catch (RuntimeException e) {
+                    fail(session, e);
+                }
+            }
+        }
+    }
+
+    // ---- One non-blocking client ----
+    private static class NioSession extends ClientSession {
+        private final IoWorker worker;
+        private final SocketChannel channel;
+        private SelectionKey key;
+
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+        // ConcurrentLinkedQueue.size() walks the queue, so count separately
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicInteger queuedBytes = new AtomicInteger();
+        // Set while the session waits in pendingWrites or delayedWrites
+        private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+        private final AtomicBoolean flushNowScheduled = new AtomicBoolean(false);
+        private volatile boolean closeRequested = false;
+        // Compressed connections only (worker thread): the block being written
+        private StreamCompressor deflate = null;
+        private ByteBuffer deflated = null;
+
+        NioSession(IoWorker worker, SocketChannel channel) {
+            this.worker = worker;
+            this.channel = channel;
+        }
+
+        @Override
+        boolean enqueue(WireMessage msg) {
+            if (!channel.isOpen()) return true;
+            // Own position and limit over the bytes shared by all recipients
+            ByteBuffer data = ByteBuffer.wrap(encode(msg));
+            writeQueue.add(data);
+            queued.incrementAndGet();
+            int bytes = queuedBytes.addAndGet(data.remaining());
+            if (worker.flushNanos == 0) {
+                scheduleWrite();
+            } else if (msg.isControl() || bytes >= worker.flushBytes) {
+                // May already be waiting for the tick, so bypass writeScheduled
+                if (flushNowScheduled.compareAndSet(false, true)) {
+                    worker.requestWrite(this);
+                }
+            } else if (writeScheduled.compareAndSet(false, true)) {
+                worker.requestDelayedWrite(this);
+            }
+            return true;
+        }
+
+        @Override
+        void startCompression() {
+            writeQueue.add(START_DEFLATE);
+        }
+
+        @Override
+        boolean isLoopback() {
+            try {
+                return ((InetSocketAddress) channel.getRemoteAddress()).getAddress().isLoopbackAddress();
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        int queuedMessages() {
+            return queued.get();
+        }
+
+        @Override
+        void requestClose() {
+            // Channel state belongs to the worker thread; let it do the close.
+            // Bypasses writeScheduled: a stuck client may be parked on OP_WRITE.
+            closeRequested = true;
+            worker.requestWrite(this);
+        }
+
+        private void scheduleWrite() {
+            if (writeScheduled.compareAndSet(false, true)) {
+                worker.requestWrite(this);
+            }
+        }
+
+        @Override
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+            if (key != null) {
+                key.cancel();
+            }
+            writeQueue.clear();
+            queued.set(0);
+            queuedBytes.set(0);
+            if (deflate != null) {
+                deflate.end();
+                deflate = null;
+            }
+            WhiteboardServer.handleDisconnect(this);
+        }
+
+        /** Read whatever is available and dispatch every complete line or frame. */
+        void onReadable() {
+            int n;
+            try {
+                n = channel.read(readBuffer);
+            } catch (IOException e) {
+                System.out.println("Connection lost with " + username);
+                close();
+                return;
+            }
+            if (n < 0) {
+                close();
+                return;
+            }
+
+            readBuffer.flip();
+            byte[] data = readBuffer.array();
+            int start = readBuffer.position();
+            int limit = readBuffer.limit();
+            // The mode can flip from text to binary right after JOIN
+            while (start < limit && channel.isOpen()) {
+                int next = binary ? nextFrame(data, start, limit) : nextLine(data, start, limit);
+                if (next < 0) break;
+                start = next;
+            }
+            if (!channel.isOpen()) return;
+            readBuffer.position(start);
+            readBuffer.compact();
+
+            if (!readBuffer.hasRemaining()) {
+                // Partial line or frame fills the buffer: grow it, up to a limit
+                if (readBuffer.capacity() > MAX_LINE_LENGTH) {
+                    System.out.println("Line too long from " + username + ", closing.");
+                    close();
+                    return;
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+                readBuffer.flip();
+                bigger.put(readBuffer);
+                readBuffer = bigger;
+            }
+        }
+
+        // Dispatch one text line if complete; returns the offset after it or -1
+        private int nextLine(byte[] data, int start, int limit) {
+            for (int i = start; i < limit; i++) {
+                if (data[i] != '\n') continue;
+                int end = (i > start && data[i - 1] == '\r') ? i - 1 : i;
+                String line = new String(data, start, end - start, StandardCharsets.UTF_8);
+                if (!hasJoined()) {
+                    WhiteboardServer.handleJoin(this, line);
+                } else {
+                    WhiteboardServer.handleLine(this, line);
+                }
+                return i + 1;
+            }
+            return -1;
+        }
+
+        // Dispatch one binary frame if complete; returns the offset after it or -1
+        private int nextFrame(byte[] data, int start, int limit) {
+            int len;
+            try {
+                len = BinaryCodec.frameLength(data, start, limit);
+            } catch (IllegalArgumentException e) {
+                System.out.println("Bad frame from " + username + ": " + e.getMessage());
+                close();
+                return -1;
+            }
+            if (len < 0 || limit - start < len) return -1;
+            WhiteboardServer.handleFrame(this, Arrays.copyOfRange(data, start, start + len));
+            return start + len;
+        }
+
+        /** Write queued data until the queue is empty or the socket is full. */
+        void flush() {
+            if (closeRequested) {
+                close();
+                return;
+            }
+            flushNowScheduled.set(false);
+            while (true) {
+                try {
+                    boolean drained = deflate == null ? writePlain() : writeDeflated();
+                    if (!drained) {
+                        // Socket buffer full: wait for OP_WRITE
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                } catch (IOException | IllegalStateException e) {
+                    close();
+                    return;
+                }
+
+                if (key.isValid()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                writeScheduled.set(false);
+                // A sender may have queued after the loop and seen writeScheduled == true
+                if (writeQueue.isEmpty() || !writeScheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+
+        // Copy queued messages into the worker's write buffer and write it,
+        // until the queue is empty; false if the socket filled up
+        private boolean writePlain() throws IOException {
+            ByteBuffer out = worker.writeBuffer;
+            while (true) {
+                out.clear();
+                for (ByteBuffer buf : writeQueue) {
+                    if (buf == START_DEFLATE || !out.hasRemaining()) break;
+                    // Positions only move once the bytes are on the wire
+                    ByteBuffer part = buf.duplicate();
+                    if (part.remaining() > out.remaining()) {
+                        part.limit(part.position() + out.remaining());
+                    }
+                    out.put(part);
+                }
+                out.flip();
+                if (!out.hasRemaining()) {
+                    if (writeQueue.peek() != START_DEFLATE) return true;
+                    // Everything before it is on the wire
+                    writeQueue.poll();
+                    deflate = new StreamCompressor(WhiteboardServer.config().getCompressionLevel());
+                    compressor = deflate;
+                    return writeDeflated();
+                }
+                int written = channel.write(out);
+                int done = 0;
+                for (int left = written; left > 0; ) {
+                    ByteBuffer buf = writeQueue.peek();
+                    int n = Math.min(left, buf.remaining());
+                    buf.position(buf.position() + n);
+                    left -= n;
+                    if (!buf.hasRemaining()) {
+                        writeQueue.poll();
+                        done++;
+                    }
+                }
+                queued.addAndGet(-done);
+                queuedBytes.addAndGet(-written);
+                if (out.hasRemaining()) return false;
+            }
+        }
+
+        // Compress up to flushBytes of queued messages into one block and
+        // write it, until the queue is empty; false if the socket filled up
+        private boolean writeDeflated() throws IOException {
+            while (true) {
+                if (deflated != null) {
+                    channel.write(deflated);
+                    if (deflated.hasRemaining()) return false;
+                    deflated = null;
+                }
+                int taken = 0;
+                int takenBytes = 0;
+                ByteBuffer buf;
+                while (takenBytes < worker.flushBytes && (buf = writeQueue.poll()) != null) {
+                    takenBytes += buf.remaining();
+                    deflate.write(buf);
+                    taken++;
+                }
+                if (taken == 0) return true;
+                queued.addAndGet(-taken);
+                queuedBytes.addAndGet(-takenBytes);
+                deflated = deflate.flush();
+            }
+        }
+    }
+}
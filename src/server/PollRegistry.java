@@ -0,0 +1,377 @@
+package server;
+
+import protocol.FieldReader;
+import protocol.MessageType;
+import protocol.WireMessage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * The polls of one {@link Room}.
+ *
+ *   POLL_CREATE|username|pollId|question|opt1;opt2;...[|seconds]
+ *   POLL_VOTE|username|pollId|optionIndex
+ *   POLL_RESULTS|pollId|count1;count2;...              (server to clients)
+ *   POLL_CLOSE|username|pollId                        (teacher, or SERVER on expiry)
+ *
+ * Up to {@link #MAX_OPEN} polls are open at once, looked up by id; creating
+ * one more closes the oldest. A poll closes when the teacher says so or,
+ * if POLL_CREATE gave a number of seconds, when that time is up. A closed
+ * poll is reduced to its three protocol lines (create, final results,
+ * close), its counters and voter set are dropped, and the last
+ * {@link #HISTORY} of them are kept for late joiners.
+ *
+ * Votes are counted under the read side of the room's poll lock, with
+ * striped counters and a concurrent voter set, so they run in parallel.
+ * The first vote after a POLL_RESULTS schedules the next one on the room's
+ * ticker; votes in between only count. Everything else takes the write
+ * side.
+ *
+ * On a cluster replica none of this runs: the relayed lines are remembered
+ * as they are, in the same form as the history.
+ */
+class PollRegistry {
+
+    static final int MAX_OPEN = 8;
+    static final int HISTORY = 20;
+
+    private final Room room;
+    private final ReentrantReadWriteLock lock;
+    private final ScheduledExecutorService ticker;
+    private final int resultsMillis;
+
+    // Open polls by id; votes look them up without the write lock
+    private final Map<String, Poll> open = new ConcurrentHashMap<>();
+    private long created = 0;
+    // Closed polls, oldest first (write lock)
+    private final ArrayDeque<Record> history = new ArrayDeque<>();
+    // Replica only: every relayed poll by id, oldest first (write lock)
+    private final LinkedHashMap<String, Record> replica = new LinkedHashMap<>();
+
+    private static final class Poll {
+        final String id;
+        final String createLine;
+        final long order;
+        final LongAdder[] counts;
+        final Set<String> votedUsers = ConcurrentHashMap.newKeySet();
+        // Set by the first vote after a POLL_RESULTS, cleared when the next goes out
+        final AtomicBoolean resultsPending = new AtomicBoolean(false);
+        ScheduledFuture<?> expiry = null;
+
+        Poll(String id, String createLine, long order, int options) {
+            this.id = id;
+            this.createLine = createLine;
+            this.order = order;
+            this.counts = new LongAdder[options];
+            for (int i = 0; i < options; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+    }
+
+    // A poll as late joiners get it; the final form of a closed poll
+    private static final class Record {
+        final String createLine;
+        String resultsLine;
+        String closeLine;
+
+        Record(String createLine) {
+            this.createLine = createLine;
+        }
+    }
+
+    /**
+     * @param lock          the room's poll lock
+     * @param ticker        runs delayed POLL_RESULTS and expiry; null sends
+     *                      results at once and ignores expiry
+     * @param resultsMillis shortest time between two POLL_RESULTS of a poll
+     */
+    PollRegistry(Room room, ReentrantReadWriteLock lock, ScheduledExecutorService ticker, int resultsMillis) {
+        this.room = room;
+        this.lock = lock;
+        this.ticker = ticker;
+        this.resultsMillis = ticker == null ? 0 : resultsMillis;
+    }
+
+    // ---- Owner ----
+
+    /** A teacher's POLL_CREATE. Ignored if malformed or the id is taken. */
+    void create(WireMessage msg) {
+        lock.writeLock().lock();
+        try {
+            open(msg.text(), msg);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** A teacher's POLL_CLOSE. */
+    void close(WireMessage msg) {
+        String line = msg.text();
+        lock.writeLock().lock();
+        try {
+            Poll p = open.get(field(line, 2));
+            if (p != null) {
+                close(p, line, msg);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void vote(WireMessage msg) {
+        Poll p;
+        lock.readLock().lock();
+        try {
+            p = countVote(msg.text());
+            if (p == null) return;
+            WhiteboardServer.metrics().pollVoted();
+            room.journal(msg);
+            // A POLL_RESULTS is already due and will include this vote
+            if (!p.resultsPending.compareAndSet(false, true)) return;
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (resultsMillis == 0) {
+            sendResults(p);
+        } else {
+            ticker.schedule(() -> sendResults(p), resultsMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Apply one journaled poll message with nobody connected yet. */
+    void replay(WireMessage msg) {
+        String line = msg.text();
+        switch (msg.type()) {
+            case MessageType.POLL_CREATE:
+                open(line, null);
+                break;
+            case MessageType.POLL_VOTE:
+                countVote(line);
+                break;
+            case MessageType.POLL_CLOSE: {
+                Poll p = open.get(field(line, 2));
+                if (p != null) {
+                    close(p, line, null);
+                }
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Every poll as protocol lines, closed ones first, for a client or node
+     * that joins. Write lock held.
+     */
+    void forEachLine(Consumer<String> action) {
+        for (Record r : replica.isEmpty() ? history : replica.values()) {
+            action.accept(r.createLine);
+            if (r.resultsLine != null) action.accept(r.resultsLine);
+            if (r.closeLine != null) action.accept(r.closeLine);
+        }
+        List<Poll> current = new ArrayList<>(open.values());
+        current.sort(Comparator.comparingLong(p -> p.order));
+        for (Poll p : current) {
+            action.accept(p.createLine);
+            action.accept(results(p));
+        }
+    }
+
+    // Write lock held; msg is journaled and broadcast unless null (replay)
+    private void open(String line, WireMessage msg) {
+        // POLL_CREATE|username|pollId|question|opt1;opt2;...[|seconds]
+        String[] parts = line.split("\\|", 6);
+        if (parts.length < 5) return;
+        String pollId = parts[2];
+        if (open.containsKey(pollId) || closed(pollId)) return;
+
+        if (open.size() >= MAX_OPEN) {
+            Poll oldest = null;
+            for (Poll p : open.values()) {
+                if (oldest == null || p.order < oldest.order) oldest = p;
+            }
+            String closeLine = "POLL_CLOSE|SERVER|" + oldest.id;
+            close(oldest, closeLine, msg == null ? null : WireMessage.ofText(closeLine));
+        }
+
+        Poll p = new Poll(pollId, line, created++, parts[4].split(";").length);
+        open.put(pollId, p);
+        if (msg != null) {
+            room.journal(msg);
+            // Let everyone know about the new poll
+            room.broadcast(line, null);
+        }
+        if (parts.length == 6 && ticker != null) {
+            try {
+                int seconds = Integer.parseInt(parts[5].trim());
+                if (seconds > 0) {
+                    p.expiry = ticker.schedule(() -> expire(p), seconds, TimeUnit.SECONDS);
+                }
+            } catch (NumberFormatException ignored) {
+                // No time limit
+            }
+        }
+    }
+
+    // Write lock held. The final counts go out before the close.
+    private void close(Poll p, String closeLine, WireMessage msg) {
+        open.remove(p.id);
+        if (p.expiry != null) {
+            p.expiry.cancel(false);
+        }
+        if (msg != null) {
+            flushResults(p);
+            room.journal(msg);
+            room.broadcast(msg, null);
+        }
+        Record r = new Record(p.createLine);
+        r.resultsLine = results(p);
+        r.closeLine = closeLine;
+        history.addLast(r);
+        if (history.size() > HISTORY) {
+            history.removeFirst();
+        }
+    }
+
+    private void expire(Poll p) {
+        lock.writeLock().lock();
+        try {
+            if (open.get(p.id) != p) return;
+            String closeLine = "POLL_CLOSE|SERVER|" + p.id;
+            close(p, closeLine, WireMessage.ofText(closeLine));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean closed(String pollId) {
+        for (Record r : history) {
+            if (field(r.createLine, 2).equals(pollId)) return true;
+        }
+        return false;
+    }
+
+    // Broadcast the counts of p if votes came in since its last POLL_RESULTS
+    // and it is still open; a closed poll had its final flush
+    private void sendResults(Poll p) {
+        lock.writeLock().lock();
+        try {
+            if (open.get(p.id) == p) {
+                flushResults(p);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Write lock held
+    private void flushResults(Poll p) {
+        // Cleared before the counts are read: a vote that misses this
+        // broadcast sees the flag clear and schedules the next one
+        if (p.resultsPending.getAndSet(false)) {
+            room.broadcast(results(p), null);
+        }
+    }
+
+    /** @return the poll the vote was counted for, or null */
+    private Poll countVote(String line) {
+        // POLL_VOTE|username|pollId|optionIndex
+        FieldReader f = new FieldReader().reset(line);
+        String username;
+        Poll p;
+        int idx;
+        try {
+            username = f.nextString();
+            p = open.get(f.nextString());
+            if (p == null) return null;
+            idx = f.nextInt();
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        if (idx < 0 || idx >= p.counts.length) return null;
+        // One vote per user, even when two arrive at once
+        if (!p.votedUsers.add(username)) {
+            return null;
+        }
+        p.counts[idx].increment();
+        return p;
+    }
+
+    private static String results(Poll p) {
+        StringBuilder sb = new StringBuilder("POLL_RESULTS|");
+        sb.append(p.id).append("|");
+        for (int i = 0; i < p.counts.length; i++) {
+            if (i > 0) sb.append(";");
+            sb.append(p.counts[i].sum());
+        }
+        return sb.toString();
+    }
+
+    // ---- Replica ----
+
+    /** Remember a relayed POLL_CREATE, POLL_RESULTS or POLL_CLOSE. Write lock held. */
+    void applyRelay(WireMessage msg) {
+        String line = msg.text();
+        switch (msg.type()) {
+            case MessageType.POLL_CREATE: {
+                replica.putIfAbsent(field(line, 2), new Record(line));
+                Iterator<Record> it = replica.values().iterator();
+                while (replica.size() > MAX_OPEN + HISTORY && it.hasNext()) {
+                    it.next();
+                    it.remove();
+                }
+                break;
+            }
+            case MessageType.POLL_RESULTS: {
+                // POLL_RESULTS|pollId|counts
+                Record r = replica.get(field(line, 1));
+                if (r != null) {
+                    r.resultsLine = line;
+                }
+                break;
+            }
+            case MessageType.POLL_CLOSE: {
+                Record r = replica.get(field(line, 2));
+                if (r != null) {
+                    r.closeLine = line;
+                }
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    /** Forget everything relayed, before a (re)subscription. Write lock held. */
+    void resetReplica() {
+        replica.clear();
+    }
+
+    // The n-th '|'-separated field of line (1 is the first after the
+    // message type), or "" if there are fewer
+    private static String field(String line, int n) {
+        FieldReader f = new FieldReader().reset(line);
+        for (int i = 1; i < n && f.hasNext(); i++) {
+            f.skip();
+        }
+        return f.hasNext() ? f.nextString() : "";
+    }
+}
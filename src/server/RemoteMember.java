@@ -0,0 +1,47 @@
+package server;
+
+import protocol.WireMessage;
+
+/**
+ * A room member connected to another cluster node, as seen by the room's
+ * owner. It stands in for the sender of messages forwarded by that node; it
+ * is never in the room's client list, since broadcasts reach it through the
+ * node's subscription instead.
+ */
+class RemoteMember extends ClientSession {
+
+    /** Cluster node the member is connected to. */
+    final String node;
+
+    RemoteMember(String node, String username) {
+        this.node = node;
+        this.username = username;
+    }
+
+    @Override
+    boolean enqueue(WireMessage msg) {
+        return true;
+    }
+
+    @Override
+    void startCompression() {
+    }
+
+    @Override
+    boolean isLoopback() {
+        return false;
+    }
+
+    @Override
+    int queuedMessages() {
+        return 0;
+    }
+
+    @Override
+    void requestClose() {
+    }
+
+    @Override
+    void close() {
+    }
+}
@@ -0,0 +1,144 @@
+package server;
+
+import protocol.WireMessage;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * The last few thousand sequenced broadcasts of a room, numbered from 1.
+ * Every client and subscribed node is sent them from here, in number order,
+ * and a client whose connection dropped for a moment can be sent just what
+ * it missed instead of the whole board again.
+ *
+ * Each entry remembers who the broadcast skipped (the sender of a drawing
+ * operation, for instance), since that client never received it and must
+ * not get it on replay either.
+ *
+ * The room appends under its replay lock, and only for as long as that
+ * takes. Reading needs no lock: an entry is published before the number
+ * that makes it visible, and {@link #get} tells an entry that has since been
+ * overwritten from the one asked for.
+ */
+final class ReplayRing {
+
+    /** One numbered broadcast. */
+    static final class Entry {
+        final long seq;
+        final WireMessage message;
+        // Member the broadcast left out, or null
+        final String excluded;
+        // Cluster node that member is connected to; null for a local client
+        final String excludedNode;
+        // SEQ|seq for clients that can resume, every CHECKPOINT_EVERY entries; else null
+        final WireMessage checkpoint;
+
+        Entry(long seq, WireMessage message, String excluded, String excludedNode, WireMessage checkpoint) {
+            this.seq = seq;
+            this.message = message;
+            this.excluded = excluded;
+            this.excludedNode = excludedNode;
+            this.checkpoint = checkpoint;
+        }
+
+        /** Whether this broadcast left out {@code username}, a client on this node. */
+        boolean excludes(String username) {
+            return excludedNode == null && username.equals(excluded);
+        }
+    }
+
+    /**
+     * How far one recipient has been sent the ring. Whichever thread gets
+     * hold of it sends everything up to the latest number, so each recipient
+     * gets the entries one at a time and in order, and a broadcaster never
+     * waits for another.
+     */
+    static final class Cursor {
+        private final AtomicBoolean busy = new AtomicBoolean(false);
+        // Number of the last entry handed over; only written while held
+        volatile long delivered = 0;
+
+        boolean tryHold() {
+            return busy.compareAndSet(false, true);
+        }
+
+        void release() {
+            busy.set(false);
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> entries;
+    // Number of the latest broadcast; 0 before the first
+    private volatile long last = 0;
+
+    ReplayRing(int capacity) {
+        entries = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Record a broadcast that went to everyone but {@code exclude} (on
+     * {@code excludeNode}, or here if null). Replay lock held.
+     *
+     * @param checkpointEvery how often to attach a SEQ checkpoint
+     * @return its number
+     */
+    long append(WireMessage msg, String exclude, String excludeNode, int checkpointEvery) {
+        long seq = last + 1;
+        WireMessage checkpoint = seq % checkpointEvery == 0 ? WireMessage.ofText("SEQ|" + seq) : null;
+        entries.set(index(seq), new Entry(seq, msg, exclude, excludeNode, checkpoint));
+        last = seq;
+        return seq;
+    }
+
+    /** Number of the latest broadcast, 0 if none. */
+    long last() {
+        return last;
+    }
+
+    /** Whether every broadcast after {@code seq} is still held. */
+    boolean covers(long seq) {
+        long l = last;
+        return seq >= 0 && seq <= l && l - seq <= entries.length();
+    }
+
+    /**
+     * Broadcast number {@code seq}, which must not be after {@link #last()},
+     * or null if it has been overwritten by a later one.
+     */
+    Entry get(long seq) {
+        Entry e = entries.get(index(seq));
+        return e != null && e.seq == seq ? e : null;
+    }
+
+    /**
+     * Pass {@code to} the broadcasts after {@code seq} that went to
+     * {@code username}, except the first {@code skip} of those, which it
+     * received before the connection dropped. Only if {@link #covers}, and
+     * under the replay lock so that none is overwritten meanwhile.
+     *
+     * @return the number passed on
+     */
+    int replay(long seq, int skip, String username, Consumer<WireMessage> to) {
+        int sent = 0;
+        for (long s = seq + 1; s <= last; s++) {
+            Entry e = get(s);
+            if (e.excludes(username)) continue;
+            if (skip > 0) {
+                skip--;
+                continue;
+            }
+            to.accept(e.message);
+            sent++;
+        }
+        return sent;
+    }
+
+    int capacity() {
+        return entries.length();
+    }
+
+    private int index(long seq) {
+        return (int) (seq % entries.length());
+    }
+}
@@ -0,0 +1,1168 @@
+package server;
+
+import protocol.BinaryCodec;
+import protocol.FieldReader;
+import protocol.MessageType;
+import protocol.WireMessage;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * One class session: its clients, teacher, board lock, poll, board and chat
+ * history. A client picks its room in JOIN and stays in it.
+ *
+ * Every room has its own locks, so a busy room never waits on a quiet one.
+ * Within a room the lock order is membership, board, chat, poll, state,
+ * user list, replay. The client registry itself takes no lock: broadcasts
+ * iterate a copy-on-write set, so a join or leave never waits for a
+ * broadcast to finish.
+ *
+ * Broadcasts that change what clients show (see
+ * {@link MessageType#isSequenced}) are numbered and kept in a
+ * {@link ReplayRing}, and every client and subscribed node is sent them from
+ * there in number order. Numbering takes the replay lock for a moment; the
+ * sending does not, so broadcasts of drawing, chat and polls still fan out
+ * in parallel. A client that offered RESUME learns its place in that
+ * sequence, and after a dropped connection it gets back its name, its role
+ * and only the broadcasts it missed.
+ *
+ * Every client draws its own strokes at once and is not sent them back, so
+ * on its own board they may sit above or below other clients' strokes in a
+ * different order than on everybody else's, and a CLEAR that crosses them
+ * in flight may wipe them on some boards but not on others. A client that
+ * offered EPOCH is therefore told, with BOARD_ACK|n, how many of its own
+ * operations the server had ordered before each incoming one, so it can
+ * slot that one in underneath the rest. CLEAR carries the new epoch, which
+ * such a client acknowledges with EPOCH; drawing it sends before then was
+ * made on a board it has since wiped, and is dropped here too.
+ *
+ * In a cluster ({@link ClusterNode}) only the room's owner node runs the
+ * logic below. On other nodes the room is a replica: it forwards its
+ * clients' messages to the owner and applies the owner's broadcasts to a
+ * copy of the board, chat, poll and lock state, which late joiners there
+ * are served from.
+ */
+class Room {
+
+    /** Room for clients whose JOIN does not name one. */
+    static final String DEFAULT = "main";
+    static final int CHAT_HISTORY = 100;
+    // RESUME clients are sent SEQ|n after every this many numbered broadcasts,
+    // so where they are is never far behind the ring's oldest entry
+    static final int CHECKPOINT_EVERY = 64;
+    // Sessions, current or gone, that can still be resumed
+    static final int RESUMABLE_SESSIONS = 1024;
+    // Numbered broadcasts kept even with --replay-ring=0. Each is sent out
+    // right after it is numbered; a recipient this far behind is dropped.
+    static final int DELIVERY_WINDOW = 1024;
+    // An EPOCH client that draws while nobody else does is still sent
+    // BOARD_ACK this often, so it never has to remember more operations
+    static final int ACK_EVERY = 256;
+
+    private static final SecureRandom tokens = new SecureRandom();
+
+    final String name;
+
+    // All clients in this room. Read on every broadcast, written only on
+    // join and leave, so copying on write beats locking on read.
+    private final Set<ClientSession> clients = new CopyOnWriteArraySet<>();
+
+    // Usernames currently in the room; add() is the atomic reservation
+    private final Set<String> usernames = ConcurrentHashMap.newKeySet();
+
+    // ReentrantLock rather than synchronized: a virtual thread that blocks on
+    // a socket write while holding a monitor pins its carrier thread.
+    // Changes to the member list are made and sent as one step, so clients
+    // see them in version order
+    private final ReentrantLock userListLock = new ReentrantLock();
+    private final ReentrantLock stateLock = new ReentrantLock();
+    // Votes take the read lock and are counted in parallel; anything that
+    // must see the poll and its counts together takes the write lock
+    private final ReentrantReadWriteLock pollLock = new ReentrantReadWriteLock();
+    // Held while recording and relaying drawing, so a joining client gets
+    // every operation exactly once: in the board transfer or live
+    private final ReentrantLock boardLock = new ReentrantLock();
+
+    // Drawing since the last CLEAR, for late joiners
+    private final BoardState board = new BoardState();
+    // Number of CLEARs so far (guarded by boardLock)
+    private long boardEpoch = 0;
+
+    // Recent chat, sent to late joiners (guarded by chatLock)
+    private final ArrayDeque<WireMessage> chatHistory = new ArrayDeque<>();
+    private final ReentrantLock chatLock = new ReentrantLock();
+
+    // null unless --journal is set
+    private volatile Journal journal = null;
+
+    // null when --cursor-hz=0: CURSOR is then relayed directly
+    private final CursorCoalescer cursors;
+
+    // null unless this server is part of a cluster
+    private final ClusterNode cluster;
+    // Node that owns the room; null until the first JOIN, or when alone
+    private volatile String owner = null;
+    // Serialises the first JOIN and last leave on this node, which
+    // claim the room and (on a replica) subscribe to or leave the owner
+    private final ReentrantLock membershipLock = new ReentrantLock();
+    private int localMembers = 0;
+    private boolean subscribed = false;
+    // Member names as clients see them, and the number of changes so far
+    // (guarded by userListLock). A replica keeps the owner's copy.
+    private final List<String> members = new ArrayList<>();
+    private long membersVersion = 0;
+
+    // Owner only: nodes subscribed to this room, by node id
+    private final Map<String, Subscriber> subscribers = new ConcurrentHashMap<>();
+    // Owner only: members on other nodes by node + "/" + name
+    private final Map<String, RemoteMember> remoteMembers = new ConcurrentHashMap<>();
+
+    // Numbered broadcasts, sent to every client and subscriber in order.
+    // replayLock is held to number one, and in JOIN to fix where a client
+    // starts; never while sending to other clients.
+    private final ReplayRing replay;
+    private final ReentrantLock replayLock = new ReentrantLock();
+    // Broadcasts a resuming client can catch up on; 0 if it cannot resume
+    private final int resumeWindow;
+    // Sessions by resume token, oldest first (guarded by replayLock)
+    private final LinkedHashMap<String, Resumable> resumable = new LinkedHashMap<>();
+
+    // Teacher / board state
+    private boolean teacherAssigned = false;
+    private boolean boardLocked = false;
+
+    // Open polls, their results and the closed ones (guarded by pollLock)
+    private final PollRegistry polls;
+
+    /**
+     * @param ticker            shared thread for cursor ticks, poll results
+     *                          and poll time limits, or null to relay cursors
+     *                          and results straight away
+     * @param cursorHz          cursor broadcasts per second; 0 relays every CURSOR
+     * @param pollResultsMillis shortest time between two POLL_RESULTS
+     * @param cluster           this server's cluster node, or null
+     */
+    Room(String name, ScheduledExecutorService ticker, int cursorHz, int pollResultsMillis,
+         ClusterNode cluster) {
+        this.name = name;
+        this.cursors = ticker == null || cursorHz == 0 ? null : new CursorCoalescer(this, ticker, cursorHz);
+        this.polls = new PollRegistry(this, pollLock, ticker, pollResultsMillis);
+        this.cluster = cluster;
+        this.resumeWindow = WhiteboardServer.config().getReplayRing();
+        this.replay = new ReplayRing(Math.max(resumeWindow, DELIVERY_WINDOW));
+    }
+
+    /**
+     * Room name as given in JOIN, reduced to letters, digits, '-' and '_' so
+     * it can name the room's journal directory.
+     */
+    static String normalizeName(String requested) {
+        if (requested == null || requested.isBlank()) return DEFAULT;
+        String cleaned = requested.trim().replaceAll("[^A-Za-z0-9_-]", "_");
+        return cleaned.length() > 32 ? cleaned.substring(0, 32) : cleaned;
+    }
+
+    // ---- Journal ----
+
+    /** Start writing to {@code j}; its contents must have been replayed already. */
+    void setJournal(Journal j) {
+        journal = j;
+    }
+
+    // Apply one journaled message with nobody connected yet
+    void replay(WireMessage msg) {
+        if (msg.isDrawing()) {
+            board.append(msg);
+            return;
+        }
+        switch (msg.type()) {
+            case MessageType.CLEAR:
+                board.clear();
+                break;
+            case MessageType.CHAT:
+                rememberChat(msg);
+                break;
+            case MessageType.POLL_CREATE:
+            case MessageType.POLL_VOTE:
+            case MessageType.POLL_CLOSE:
+                polls.replay(msg);
+                break;
+            default:
+                break;
+        }
+    }
+
+    void journal(WireMessage msg) {
+        Journal j = journal;
+        if (j != null) {
+            j.append(msg);
+        }
+    }
+
+    // ---- Board compaction ----
+
+    /** Compact the board in place; only while nobody is connected. */
+    void compactBoard() {
+        board.compact();
+    }
+
+    int boardOperations() {
+        return board.operations();
+    }
+
+    // Compact the live board once it has grown by threshold bytes and has at
+    // least doubled since last time. The copy and the swap hold the board lock;
+    // the compaction itself does not.
+    void compactBoard(long threshold) {
+        BoardState.Pending pending;
+        boardLock.lock();
+        try {
+            int added = board.bytesSinceCompaction();
+            if (added < threshold || added < board.sizeInBytes() - added) return;
+            pending = board.beginCompaction();
+        } finally {
+            boardLock.unlock();
+        }
+        BoardCompactor.Result result = BoardCompactor.compact(pending.frames, pending.frames.length);
+        boardLock.lock();
+        try {
+            board.finishCompaction(pending, result);
+        } finally {
+            boardLock.unlock();
+        }
+    }
+
+    // ---- Cluster ----
+
+    private boolean isReplica() {
+        String o = owner;
+        return cluster != null && o != null && !o.equals(cluster.nodeId);
+    }
+
+    /** Owner: start relaying to {@code peer}, after sending it the current state. */
+    void addSubscriber(String peer) {
+        if (owner == null) {
+            owner = cluster.nodeId;
+        }
+        boardLock.lock();
+        chatLock.lock();
+        pollLock.writeLock().lock();
+        stateLock.lock();
+        try {
+            // A new state replaces whatever the previous subscription relayed
+            retire(subscribers.remove(peer));
+            // Every stateful broadcast holds one of these locks, so the
+            // subscriber gets each update once: in this state or relayed
+            board.forEachChunk(chunk -> cluster.sendState(peer, this, chunk));
+            for (WireMessage msg : chatHistory) {
+                cluster.sendState(peer, this, msg);
+            }
+            polls.forEachLine(line -> cluster.sendState(peer, this, WireMessage.ofText(line)));
+            cluster.sendState(peer, this, WireMessage.ofText("BOARD_LOCK|" + boardLocked));
+            userListLock.lock();
+            replayLock.lock();
+            try {
+                cluster.sendState(peer, this, WireMessage.ofText(memberList()));
+                cluster.endSync(peer, this);
+                // Relayed from the next numbered broadcast on
+                Subscriber subscriber = new Subscriber(peer);
+                subscriber.delivery.delivered = replay.last();
+                subscribers.put(peer, subscriber);
+            } finally {
+                replayLock.unlock();
+                userListLock.unlock();
+            }
+        } finally {
+            stateLock.unlock();
+            pollLock.writeLock().unlock();
+            chatLock.unlock();
+            boardLock.unlock();
+        }
+    }
+
+    void removeSubscriber(String peer) {
+        retire(subscribers.remove(peer));
+    }
+
+    // Stop relaying to a subscription that has been dropped or replaced: wait
+    // out a relay in progress, and keep hold of its cursor for good
+    private static void retire(Subscriber subscriber) {
+        if (subscriber == null) return;
+        while (!subscriber.delivery.tryHold()) {
+            Thread.onSpinWait();
+        }
+    }
+
+    /** Owner: a member joined on node {@code peer}. */
+    void remoteJoin(String peer, String username) {
+        remoteMembers.put(peer + "/" + username, new RemoteMember(peer, username));
+        broadcast("CHAT|SERVER|" + username + " joined the session.", null);
+        announceMember(true, username);
+    }
+
+    /** Owner: a member on node {@code peer} left. */
+    void remoteLeave(String peer, String username) {
+        if (remoteMembers.remove(peer + "/" + username) == null) return;
+        if (cursors != null) {
+            cursors.remove(username);
+        }
+        broadcast("CHAT|SERVER|" + username + " left the session.", null);
+        announceMember(false, username);
+    }
+
+    /** Owner: a message from a member on node {@code peer}. */
+    void handleRemote(String peer, String username, WireMessage msg) {
+        RemoteMember sender = remoteMembers.get(peer + "/" + username);
+        handleMessage(sender != null ? sender : new RemoteMember(peer, username), msg);
+    }
+
+    /** Owner: the link from {@code peer} is gone, and with it its members. */
+    void dropPeer(String peer) {
+        removeSubscriber(peer);
+        Iterator<RemoteMember> it = remoteMembers.values().iterator();
+        while (it.hasNext()) {
+            RemoteMember m = it.next();
+            if (!m.node.equals(peer)) continue;
+            it.remove();
+            announceMember(false, m.username);
+        }
+    }
+
+    /**
+     * Replica: the link to {@code peer} came back. If it owns this room it
+     * has dropped our subscription, so subscribe again and re-announce our
+     * members. Anything relayed while the link was down is lost.
+     */
+    void resubscribe(String peer) {
+        membershipLock.lock();
+        try {
+            if (!subscribed || !peer.equals(owner)) return;
+            resetReplica();
+            // Not waiting for the state: this runs on the link's own thread
+            cluster.resendSubscribe(this, owner);
+            for (ClientSession client : clients) {
+                cluster.memberJoined(this, owner, client.username);
+            }
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    /** Replica: one piece of the owner's state, before any relayed message. */
+    void applyState(WireMessage msg) {
+        if (msg.opcode() == BinaryCodec.OP_BOARD_CHUNK) {
+            boardLock.lock();
+            try {
+                board.appendChunk(BinaryCodec.decodeBoardChunk(msg.frame()));
+            } finally {
+                boardLock.unlock();
+            }
+            return;
+        }
+        applyRelay(msg, null);
+    }
+
+    /**
+     * Replica: a broadcast from the owner. Update the copy of the room's
+     * state and pass it on to local clients, except to {@code exclude}.
+     */
+    void applyRelay(WireMessage msg, String exclude) {
+        if (msg.isDrawing()) {
+            boardLock.lock();
+            try {
+                board.append(msg);
+                deliver(msg, exclude);
+            } finally {
+                boardLock.unlock();
+            }
+            return;
+        }
+        int type = msg.opcode() == BinaryCodec.OP_TEXT ? msg.type() : MessageType.UNKNOWN;
+        switch (type) {
+            case MessageType.CLEAR:
+                boardLock.lock();
+                try {
+                    board.clear();
+                    deliver(msg, exclude);
+                } finally {
+                    boardLock.unlock();
+                }
+                break;
+            case MessageType.CHAT:
+                chatLock.lock();
+                try {
+                    // CHAT|SERVER|... announcements are not kept
+                    if (!"SERVER".equals(firstField(msg.text()))) {
+                        rememberChat(msg);
+                    }
+                    deliver(msg, exclude);
+                } finally {
+                    chatLock.unlock();
+                }
+                break;
+            case MessageType.POLL_CREATE:
+            case MessageType.POLL_RESULTS:
+            case MessageType.POLL_CLOSE:
+                pollLock.writeLock().lock();
+                try {
+                    polls.applyRelay(msg);
+                    deliver(msg, exclude);
+                } finally {
+                    pollLock.writeLock().unlock();
+                }
+                break;
+            case MessageType.BOARD_LOCK:
+                stateLock.lock();
+                try {
+                    boardLocked = Boolean.parseBoolean(firstField(msg.text()));
+                    deliver(msg, exclude);
+                } finally {
+                    stateLock.unlock();
+                }
+                break;
+            case MessageType.USER_JOIN:
+            case MessageType.USER_LEAVE:
+            case MessageType.USERS:
+                userListLock.lock();
+                try {
+                    applyMembers(type, msg.text());
+                    sendMembers(msg);
+                } finally {
+                    userListLock.unlock();
+                }
+                break;
+            default:
+                deliver(msg, exclude);
+                break;
+        }
+    }
+
+    // The first field after the message type, or "" if there is none
+    private static String firstField(String line) {
+        FieldReader f = new FieldReader().reset(line);
+        return f.hasNext() ? f.nextString() : "";
+    }
+
+    // Send to local clients only, except the one called exclude
+    private void deliver(WireMessage msg, String exclude) {
+        long start = System.nanoTime();
+        for (ClientSession client : clients) {
+            if (exclude != null && client.username.equals(exclude)) continue;
+            client.send(msg);
+        }
+        WhiteboardServer.metrics().broadcast(System.nanoTime() - start);
+    }
+
+    /** Replica: forget the copied state before a (re)subscription fills it in again. */
+    void resetReplica() {
+        boardLock.lock();
+        chatLock.lock();
+        pollLock.writeLock().lock();
+        stateLock.lock();
+        try {
+            board.clear();
+            chatHistory.clear();
+            polls.resetReplica();
+            boardLocked = false;
+            userListLock.lock();
+            try {
+                members.clear();
+                membersVersion = 0;
+            } finally {
+                userListLock.unlock();
+            }
+        } finally {
+            stateLock.unlock();
+            pollLock.writeLock().unlock();
+            chatLock.unlock();
+            boardLock.unlock();
+        }
+    }
+
+    // ---- Membership ----
+
+    /**
+     * Add a client that has finished protocol negotiation: assign a unique
+     * name and a role, send the room's state, then start relaying to it.
+     */
+    void join(ClientSession client, String requestedName) {
+        join(client, requestedName, null);
+    }
+
+    /**
+     * As {@link #join(ClientSession, String)}, for a client that may be coming
+     * back: {@code resume} is the token:seq:count of its resume= option, or
+     * null. If the room still knows the session it takes over its name and
+     * role, and if the ring still holds everything it missed it is sent only
+     * that instead of the board, chat and polls.
+     */
+    void join(ClientSession client, String requestedName, String resume) {
+        membershipLock.lock();
+        try {
+            if (cluster != null && owner == null) {
+                owner = cluster.owner(name);
+            }
+            if (isReplica() && !subscribed) {
+                resetReplica();
+                if (!cluster.subscribe(this, owner)) {
+                    System.out.println("Room " + name + ": no state from owner " + owner + " yet");
+                }
+                subscribed = true;
+            }
+            localMembers++;
+        } finally {
+            membershipLock.unlock();
+        }
+        boolean replica = isReplica();
+
+        // Replicas do not number broadcasts; their clients always rejoin afresh
+        boolean resumes = resumeWindow > 0 && !replica && client.offersResume;
+        ResumePoint from = resumes ? ResumePoint.parse(resume) : null;
+        Resumable previous = from != null ? reclaim(from) : null;
+
+        String username = previous != null ? previous.username : reserveUsername(requestedName);
+        client.username = username;
+        client.sendMessage("USERNAME|" + username);
+
+        // Assign teacher role to the first client
+        stateLock.lock();
+        try {
+            if (previous != null) {
+                client.isTeacher = previous.teacher;
+                client.sendMessage(previous.teacher ? "ROLE|TEACHER" : "ROLE|STUDENT");
+            } else if (!teacherAssigned && !replica) {
+                // On a replica the teacher is always on the owner node
+                teacherAssigned = true;
+                client.isTeacher = true;
+                client.sendMessage("ROLE|TEACHER");
+            } else {
+                client.sendMessage("ROLE|STUDENT");
+            }
+            // Send current board-lock state
+            client.sendMessage("BOARD_LOCK|" + boardLocked);
+        } finally {
+            stateLock.unlock();
+        }
+
+        // Snapshot and live updates must not overlap or leave a gap, so the
+        // client is added while board, chat and poll are all held, and the
+        // replay lock pins down its place among the numbered broadcasts.
+        int replayed = -1;
+        if (replica) {
+            client.boardEpochs = false;
+        }
+        boardLock.lock();
+        chatLock.lock();
+        pollLock.writeLock().lock();
+        userListLock.lock();
+        replayLock.lock();
+        try {
+            // A long replay would cost more than the snapshot, and could
+            // overflow the client's queue
+            if (previous != null && replay.covers(from.seq) && replay.last() - from.seq <= resumeWindow &&
+                    replay.last() - from.seq <= WhiteboardServer.config().getQueueLimit() / 2) {
+                client.sendMessage("RESUMED|" + from.seq);
+                // Until it has applied the CLEARs it missed, its drawing
+                // belongs to the board they wipe
+                long[] clears = {0};
+                replayed = replay.replay(from.seq, from.count, username, msg -> {
+                    if (msg.type() == MessageType.CLEAR) {
+                        clears[0]++;
+                    }
+                    client.send(msg);
+                });
+                client.boardEpoch = boardEpoch - clears[0];
+            } else {
+                board.sendTo(client);
+                sendChatHistory(client);
+                polls.forEachLine(client::sendMessage);
+                client.boardEpoch = boardEpoch;
+            }
+            if (client.boardEpochs) {
+                client.sendMessage("EPOCH|" + boardEpoch);
+            }
+            // The list as of now, then every change after it
+            client.sendMessage(client.userDeltas ? memberList() : legacyMemberList());
+            // Numbered broadcasts from here on are sent by whoever numbers them
+            client.delivery.delivered = replay.last();
+            client.unackedOps = 0;
+            clients.add(client);
+            if (resumes) {
+                String token = previous != null ? from.token : Long.toUnsignedString(tokens.nextLong(), 36);
+                Resumable session = previous != null ? previous : new Resumable(username, client.isTeacher);
+                session.client = client;
+                resumable.remove(token);
+                resumable.put(token, session);
+                if (resumable.size() > RESUMABLE_SESSIONS) {
+                    resumable.remove(resumable.keySet().iterator().next());
+                }
+                client.resumeToken = token;
+                client.sendMessage("SESSION|" + token + "|" + replay.last());
+            }
+        } finally {
+            replayLock.unlock();
+            userListLock.unlock();
+            pollLock.writeLock().unlock();
+            chatLock.unlock();
+            boardLock.unlock();
+        }
+        System.out.println((previous != null ? "User resumed: " : "User joined: ") + username +
+                " in room " + name +
+                (client.isTeacher ? " (TEACHER)" : "") +
+                (client.binary ? " [binary]" : "") +
+                (replica ? " [owner " + owner + "]" : "") +
+                (replayed >= 0 ? " [" + replayed + " replayed]" : ""));
+        if (previous != null && from.replaced) {
+            // Never left as far as the others are concerned
+            return;
+        }
+        if (replica) {
+            // The owner announces it to the whole room
+            cluster.memberJoined(this, owner, username);
+        } else {
+            broadcast("CHAT|SERVER|" + username + " joined the session.", null);
+            announceMember(true, username);
+        }
+    }
+
+    /** Drop a client that has disconnected; nothing if it is no longer in the room. */
+    void leave(ClientSession client) {
+        if (!clients.remove(client)) return;
+        if (cursors != null) {
+            cursors.remove(client.username);
+        }
+        usernames.remove(client.username);
+        String token = client.resumeToken;
+        if (token != null) {
+            replayLock.lock();
+            try {
+                Resumable session = resumable.get(token);
+                if (session != null && session.client == client) {
+                    session.client = null;
+                }
+            } finally {
+                replayLock.unlock();
+            }
+        }
+        if (isReplica()) {
+            cluster.memberLeft(this, owner, client.username);
+        } else {
+            broadcast("CHAT|SERVER|" + client.username + " left the session.", null);
+            announceMember(false, client.username);
+        }
+
+        membershipLock.lock();
+        try {
+            localMembers--;
+            if (localMembers == 0 && subscribed) {
+                // Nobody here any more: stop the owner's relay
+                cluster.unsubscribe(this, owner);
+                subscribed = false;
+            }
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    /** Number of clients that have completed JOIN. */
+    int clientCount() {
+        return clients.size();
+    }
+
+    /** The clients in this room, remote members included; a live, read-only view. */
+    Set<ClientSession> clients() {
+        return Collections.unmodifiableSet(clients);
+    }
+
+    /**
+     * Claim the requested name, or the first free one of name-2, name-3, ...
+     * Each attempt is a single add() on the concurrent set, so two clients
+     * joining at once can never both get the same name.
+     */
+    private String reserveUsername(String requested) {
+        if (requested == null || requested.isBlank()) {
+            requested = "Guest";
+        }
+        // ',' ';' and '|' separate fields in USERLIST and CURSORS
+        String base = requested.trim().replaceAll("[,;|]", "_");
+        String name = base;
+        for (int counter = 2; !tryReserve(name); counter++) {
+            name = base + "-" + counter;
+        }
+        return name;
+    }
+
+    /**
+     * The session with resume token {@code token}, with its name reserved for
+     * the client taking it over, or null if it cannot be resumed. A session
+     * whose connection is still open, most likely dead without the server
+     * having noticed, is closed and quietly replaced.
+     */
+    private Resumable reclaim(ResumePoint from) {
+        Resumable previous;
+        ClientSession old;
+        replayLock.lock();
+        try {
+            previous = resumable.get(from.token);
+            if (previous == null) return null;
+            old = previous.client;
+        } finally {
+            replayLock.unlock();
+        }
+        if (old == null) {
+            // Left already, and someone else may have taken the name since
+            return tryReserve(previous.username) ? previous : null;
+        }
+        // Already on its way out, and about to release the name itself
+        if (!old.markLeft()) return null;
+        clients.remove(old);
+        old.requestClose();
+        System.out.println("Replacing the connection of " + old.username + " in room " + name);
+        membershipLock.lock();
+        try {
+            localMembers--;
+        } finally {
+            membershipLock.unlock();
+        }
+        from.replaced = true;
+        return previous;
+    }
+
+    private boolean tryReserve(String name) {
+        for (RemoteMember m : remoteMembers.values()) {
+            if (m.username.equals(name)) return false;
+        }
+        return usernames.add(name);
+    }
+
+    // ---- Broadcasting ----
+
+    // Broadcast a message to the room (null exclude = send to everyone)
+    void broadcast(String message, ClientSession exclude) {
+        broadcast(WireMessage.ofText(message), exclude);
+    }
+
+    // Iterates a snapshot of the registry, so concurrent senders fan out in
+    // parallel. Numbered messages reach every client and subscriber in the
+    // order of their numbers; ordering between related messages comes from
+    // the board, chat, poll and state locks the callers hold.
+    void broadcast(WireMessage message, ClientSession exclude) {
+        long start = System.nanoTime();
+        if (MessageType.isSequenced(message.type())) {
+            String excludeNode = exclude instanceof RemoteMember ? ((RemoteMember) exclude).node : null;
+            replayLock.lock();
+            try {
+                replay.append(message, exclude != null ? exclude.username : null, excludeNode, CHECKPOINT_EVERY);
+            } finally {
+                replayLock.unlock();
+            }
+            for (ClientSession client : clients) {
+                sendNumbered(client);
+            }
+            for (Subscriber subscriber : subscribers.values()) {
+                relayNumbered(subscriber);
+            }
+        } else {
+            for (ClientSession client : clients) {
+                if (client != exclude) {
+                    client.send(message);
+                }
+            }
+            for (String peer : subscribers.keySet()) {
+                boolean senderThere = exclude instanceof RemoteMember &&
+                        ((RemoteMember) exclude).node.equals(peer);
+                cluster.relay(peer, this, message, senderThere ? exclude.username : "");
+            }
+        }
+        WhiteboardServer.metrics().broadcast(System.nanoTime() - start);
+    }
+
+    // Send the client every numbered broadcast it has not had yet, unless
+    // another thread is doing so already, in which case that one will
+    private void sendNumbered(ClientSession client) {
+        ReplayRing.Cursor cursor = client.delivery;
+        while (cursor.delivered < replay.last() && cursor.tryHold()) {
+            try {
+                for (long seq = cursor.delivered + 1; seq <= replay.last(); seq++) {
+                    ReplayRing.Entry e = replay.get(seq);
+                    if (e == null) {
+                        cursor.delivered = replay.last();
+                        client.evict("more than " + replay.capacity() + " broadcasts behind");
+                        return;
+                    }
+                    boolean own = e.excludes(client.username);
+                    if (e.message.isDrawing() && client.boardEpochs) {
+                        if (!own && client.unackedOps > 0) {
+                            acknowledgeOps(client);
+                        } else if (own && ++client.unackedOps >= ACK_EVERY) {
+                            acknowledgeOps(client);
+                        }
+                    } else if (e.message.type() == MessageType.CLEAR) {
+                        // Its board is wiped, acknowledged or not
+                        client.unackedOps = 0;
+                    }
+                    if (!own) {
+                        try {
+                            client.send(e.message);
+                        } catch (RuntimeException ex) {
+                            // Would fail the same way on every retry; the
+                            // client rejoins and is sent the board instead
+                            cursor.delivered = replay.last();
+                            client.reject("broadcast " + seq + " cannot be sent in its format (" + ex + ")");
+                            return;
+                        }
+                    }
+                    if (e.checkpoint != null && client.resumeToken != null) {
+                        client.send(e.checkpoint);
+                    }
+                    cursor.delivered = seq;
+                }
+            } finally {
+                cursor.release();
+            }
+        }
+    }
+
+    // The same for a subscribed node, which passes them on to its clients
+    private void relayNumbered(Subscriber subscriber) {
+        ReplayRing.Cursor cursor = subscriber.delivery;
+        while (cursor.delivered < replay.last() && cursor.tryHold()) {
+            try {
+                for (long seq = cursor.delivered + 1; seq <= replay.last(); seq++) {
+                    ReplayRing.Entry e = replay.get(seq);
+                    if (e == null) {
+                        System.out.println("Room " + name + ": relay to " + subscriber.peer +
+                                " fell more than " + replay.capacity() + " broadcasts behind");
+                        cursor.delivered = replay.last();
+                        return;
+                    }
+                    boolean senderThere = subscriber.peer.equals(e.excludedNode);
+                    cluster.relay(subscriber.peer, this, e.message, senderThere ? e.excluded : "");
+                    cursor.delivered = seq;
+                }
+            } finally {
+                cursor.release();
+            }
+        }
+    }
+
+    // Before relaying another client's drawing: tell this one how many of
+    // its own operations come first (client.delivery held)
+    private static void acknowledgeOps(ClientSession client) {
+        client.sendMessage("BOARD_ACK|" + client.unackedOps);
+        client.unackedOps = 0;
+    }
+
+    // ---- Member list ----
+    //
+    // Clients that offer USERS in JOIN get
+    //   USERS|version|name1,name2,...               on joining, and on request
+    //   USER_JOIN|version|name, USER_LEAVE|version|name   for each change
+    // and ask again with USERS| if they see a gap in the versions. Older
+    // clients get USERLIST|name1,name2,... after every change instead.
+
+    // Owner: record a member that joined or left and tell everybody
+    private void announceMember(boolean joined, String username) {
+        userListLock.lock();
+        try {
+            membersVersion++;
+            if (joined) {
+                members.add(username);
+            } else {
+                members.remove(username);
+            }
+            WireMessage change = WireMessage.ofText((joined ? "USER_JOIN|" : "USER_LEAVE|") +
+                    membersVersion + "|" + username);
+            sendMembers(change);
+            for (String peer : subscribers.keySet()) {
+                cluster.relay(peer, this, change, "");
+            }
+        } finally {
+            userListLock.unlock();
+        }
+    }
+
+    // Replica: apply a change or full list relayed by the owner (userListLock held)
+    private void applyMembers(int type, String line) {
+        // USERS|version|names, USER_JOIN|version|name, USER_LEAVE|version|name
+        FieldReader f = new FieldReader().reset(line);
+        long version;
+        String names;
+        try {
+            version = f.nextLong();
+            names = f.rest();
+        } catch (NumberFormatException e) {
+            return;
+        }
+        membersVersion = version;
+        switch (type) {
+            case MessageType.USERS:
+                members.clear();
+                for (String n : names.split(",")) {
+                    if (!n.isEmpty()) members.add(n);
+                }
+                break;
+            case MessageType.USER_JOIN:
+                members.add(names);
+                break;
+            default:
+                members.remove(names);
+                break;
+        }
+    }
+
+    // The change to clients that take deltas, the whole list to the rest
+    // (userListLock held)
+    private void sendMembers(WireMessage change) {
+        WireMessage legacy = null;
+        for (ClientSession client : clients) {
+            if (client.userDeltas) {
+                client.send(change);
+            } else {
+                if (legacy == null) {
+                    legacy = WireMessage.ofText(legacyMemberList());
+                }
+                client.send(legacy);
+            }
+        }
+    }
+
+    // A client's USERS| request, answered by this node even on a replica
+    private void sendMemberList(ClientSession client) {
+        userListLock.lock();
+        try {
+            client.sendMessage(memberList());
+        } finally {
+            userListLock.unlock();
+        }
+    }
+
+    // userListLock held
+    private String memberList() {
+        return "USERS|" + membersVersion + "|" + String.join(",", members);
+    }
+
+    // userListLock held
+    private String legacyMemberList() {
+        return "USERLIST|" + String.join(",", members);
+    }
+
+    private void broadcastBoardLock() {
+        broadcast("BOARD_LOCK|" + boardLocked, null);
+    }
+
+    // ---- Messages from clients in this room ----
+
+    void handleMessage(ClientSession client, WireMessage msg) {
+        if (msg.opcode() == BinaryCodec.OP_TEXT) {
+            switch (msg.type()) {
+                case MessageType.USERS:
+                    sendMemberList(client);
+                    return;
+                case MessageType.EPOCH:
+                    acknowledgeClear(client, msg.text());
+                    return;
+                default:
+                    break;
+            }
+        }
+        if (isReplica()) {
+            cluster.forward(this, owner, client.username, msg);
+            return;
+        }
+        if (msg.opcode() == BinaryCodec.OP_CURSOR) {
+            if (cursors != null) {
+                // Our own name, not the one in the message
+                cursors.update(client.username, msg);
+            } else {
+                broadcast(msg, client);
+            }
+            return;
+        }
+        if (msg.isDrawing()) {
+            boardLock.lock();
+            try {
+                // Drawn before the client saw the last CLEAR, which has
+                // wiped it from its own board already
+                if (client.boardEpochs && client.boardEpoch < boardEpoch) return;
+                board.append(msg);
+                journal(msg);
+                // echo to everyone EXCEPT sender (to avoid double-drawing)
+                broadcast(msg, client);
+            } finally {
+                boardLock.unlock();
+            }
+            return;
+        }
+
+        String line = msg.text();
+        switch (MessageType.of(line)) {
+            case MessageType.CHAT:
+                chatLock.lock();
+                try {
+                    rememberChat(msg);
+                    journal(msg);
+                    // Chat goes to everybody including sender
+                    broadcast(msg, null);
+                } finally {
+                    chatLock.unlock();
+                }
+                break;
+
+            case MessageType.CLEAR:
+                if (client.isTeacher) {
+                    boardLock.lock();
+                    try {
+                        boardEpoch++;
+                        board.clear();
+                        WireMessage clear = WireMessage.ofText("CLEAR|" + boardEpoch);
+                        journal(clear);
+                        // The teacher has cleared its own board. An EPOCH client
+                        // gets the CLEAR back, to see where in the order it fell.
+                        client.boardEpoch = boardEpoch;
+                        broadcast(clear, client.boardEpochs ? null : client);
+                    } finally {
+                        boardLock.unlock();
+                    }
+                }
+                break;
+
+            case MessageType.BOARD_LOCK:
+                // Only teacher can lock/unlock
+                if (client.isTeacher) {
+                    String locked = firstField(line);
+                    if (!locked.isEmpty()) {
+                        stateLock.lock();
+                        try {
+                            boardLocked = Boolean.parseBoolean(locked);
+                            broadcastBoardLock();
+                            broadcast("CHAT|SERVER|Board " +
+                                    (boardLocked ? "locked" : "unlocked") +
+                                    " by teacher.", null);
+                        } finally {
+                            stateLock.unlock();
+                        }
+                    }
+                }
+                break;
+
+            case MessageType.POLL_CREATE:
+                // Only teacher can create or close a poll
+                if (client.isTeacher) {
+                    polls.create(msg);
+                }
+                break;
+
+            case MessageType.POLL_CLOSE:
+                if (client.isTeacher) {
+                    polls.close(msg);
+                }
+                break;
+
+            case MessageType.POLL_VOTE:
+                polls.vote(msg);
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    // EPOCH|epoch: the client has applied CLEAR|epoch
+    private void acknowledgeClear(ClientSession client, String line) {
+        if (!client.boardEpochs) return;
+        long epoch;
+        try {
+            epoch = new FieldReader().reset(line).nextLong();
+        } catch (NumberFormatException e) {
+            return;
+        }
+        boardLock.lock();
+        try {
+            client.boardEpoch = Math.max(client.boardEpoch, Math.min(epoch, boardEpoch));
+        } finally {
+            boardLock.unlock();
+        }
+    }
+
+    // ---- Chat history (chatLock held, or replay before clients connect) ----
+    private void rememberChat(WireMessage msg) {
+        if (chatHistory.size() == CHAT_HISTORY) {
+            chatHistory.removeFirst();
+        }
+        chatHistory.addLast(msg);
+    }
+
+    private void sendChatHistory(ClientSession client) {
+        for (WireMessage msg : chatHistory) {
+            client.send(msg);
+        }
+    }
+
+    // Owner: a node subscribed to this room
+    private static final class Subscriber {
+        final String peer;
+        // How far it has been relayed the numbered broadcasts
+        final ReplayRing.Cursor delivery = new ReplayRing.Cursor();
+
+        Subscriber(String peer) {
+            this.peer = peer;
+        }
+    }
+
+    // ---- Resuming ----
+
+    // A session that a reconnecting client can take over (guarded by replayLock)
+    private static final class Resumable {
+        final String username;
+        final boolean teacher;
+        // The connection currently using it; null once that has left
+        ClientSession client;
+
+        Resumable(String username, boolean teacher) {
+            this.username = username;
+            this.teacher = teacher;
+        }
+    }
+
+    // The resume= option of JOIN: token:seq:count
+    private static final class ResumePoint {
+        final String token;
+        // Last SESSION or SEQ the client received
+        final long seq;
+        // Numbered broadcasts it received after that
+        final int count;
+        // Set when the session's old connection was still open and is replaced
+        boolean replaced = false;
+
+        private ResumePoint(String token, long seq, int count) {
+            this.token = token;
+            this.seq = seq;
+            this.count = count;
+        }
+
+        static ResumePoint parse(String option) {
+            if (option == null) return null;
+            String[] parts = option.split(":");
+            if (parts.length != 3) return null;
+            try {
+                return new ResumePoint(parts[0], Long.parseLong(parts[1]), Integer.parseInt(parts[2]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,474 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Runtime settings for {@link WhiteboardServer}.
+ *
+ * Values can be given on the command line as --key=value, e.g.
+ *   java server.WhiteboardServer --port=5001 --engine=nio --io-threads=4
+ *   java server.WhiteboardServer --port=5001 --client-threads=virtual
+ *   java server.WhiteboardServer --queue-high-water=256 --queue-limit=2048
+ *   java server.WhiteboardServer --binary=false       (text protocol only)
+ *   java server.WhiteboardServer --compression=auto --compression-level=1
+ *   java server.WhiteboardServer --ping-ms=5000 --idle-timeout-ms=15000 (--ping-ms=0 never pings)
+ *   java server.WhiteboardServer --replay-ring=4096   (0: reconnecting clients always get a full snapshot)
+ *   java server.WhiteboardServer --cursor-hz=25       (0 relays every CURSOR)
+ *   java server.WhiteboardServer --poll-results-ms=250 (0 sends POLL_RESULTS after every vote)
+ *   java server.WhiteboardServer --flush-ms=5 --flush-bytes=16384
+ *   java server.WhiteboardServer --journal=data --journal-sync=interval --journal-sync-ms=1000
+ *   java server.WhiteboardServer --journal-segment-mb=16 --compact-kb=256 (0 never compacts)
+ *   java server.WhiteboardServer --max-rooms=64
+ *   java server.WhiteboardServer --metrics-port=9091  (text dump of the JMX metrics on localhost)
+ *   java server.WhiteboardServer --node-id=a --cluster-port=6001 --peers=b@host2:6001,c@host3:6001
+ * A bare number is accepted as the port for backwards compatibility.
+ */
+public class ServerConfig {
+
+    /** How client connections are served. */
+    public enum Engine {
+        /** One blocking thread per client (original behaviour). */
+        THREADS,
+        /** Non-blocking selector loop on a small fixed pool of I/O threads. */
+        NIO
+    }
+
+    /** When journal writes are forced to disk. */
+    public enum JournalSync {
+        /** After every batch of records; survives power loss, costs a flush per batch. */
+        ALWAYS,
+        /** At most every journal-sync-ms; a crash loses up to that much. */
+        INTERVAL,
+        /** Left to the operating system; survives a server crash but not power loss. */
+        NEVER
+    }
+
+    /** Which clients that offer DEFLATE in JOIN get a compressed stream. */
+    public enum Compression {
+        /** Everyone except clients on the same machine (loopback). */
+        AUTO,
+        /** Every client that offers it, loopback included. */
+        ALWAYS,
+        /** Nobody. */
+        OFF
+    }
+
+    /** Kind of thread each client gets in the {@link Engine#THREADS} engine. */
+    public enum ClientThreads {
+        PLATFORM,
+        VIRTUAL
+    }
+
+    private int port = 5001;
+    private Engine engine = Engine.THREADS;
+    private int ioThreads = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+    private ClientThreads clientThreads = ClientThreads.PLATFORM;
+    // Per-client outbound queue: above the high-water mark cursor updates are
+    // dropped, at the limit the client is disconnected.
+    private int queueHighWater = 256;
+    private int queueLimit = 2048;
+    private boolean binaryProtocol = true;
+    // Server-to-client deflate stream, and its zlib level (1 fastest, 9 smallest)
+    private Compression compression = Compression.AUTO;
+    private int compressionLevel = 1;
+    // Clients that offer PING are pinged after pingMillis of silence and
+    // disconnected after idleTimeoutMillis
+    private int pingMillis = 5000;
+    private int idleTimeoutMillis = 15000;
+    // Broadcasts each room keeps for clients that reconnect with RESUME
+    private int replayRing = 4096;
+    // Local port serving the metrics as text; 0 = JMX only
+    private int metricsPort = 0;
+    // Rate at which coalesced cursor positions are sent out
+    private int cursorHz = 25;
+    // Votes are reported in one POLL_RESULTS per interval rather than one each
+    private int pollResultsMillis = 250;
+    // Outgoing messages are written in batches: after at most flushMillis, or
+    // sooner once flushBytes are waiting. CLEAR and BOARD_LOCK always go at once.
+    private int flushMillis = 5;
+    private int flushBytes = 16 * 1024;
+    // Directory of the session journal; null keeps everything in memory only
+    private String journalDir = null;
+    private JournalSync journalSync = JournalSync.INTERVAL;
+    private int journalSyncMillis = 1000;
+    private int journalSegmentMb = 16;
+    // The live board is compacted once this much drawing (and at least as
+    // much as the last compacted size) has been added
+    private int compactKb = 256;
+    // Rooms are created on first JOIN; this bounds how many a server opens
+    private int maxRooms = 64;
+    // Cluster link; off unless clusterPort is set
+    private String nodeId = "node";
+    private int clusterPort = 0;
+    private List<String> peers = new ArrayList<>();
+
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (arg.matches("\\d+")) {
+                config.setPort(Integer.parseInt(arg));
+                continue;
+            }
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Unrecognised argument: " + arg);
+            }
+            String key = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            config.set(key, value);
+        }
+        if (config.queueHighWater > config.queueLimit) {
+            throw new IllegalArgumentException("--queue-high-water=" + config.queueHighWater +
+                    " is above --queue-limit=" + config.queueLimit);
+        }
+        return config;
+    }
+
+    private void set(String key, String value) {
+        switch (key) {
+            case "port":
+                setPort(Integer.parseInt(value));
+                break;
+            case "engine":
+                setEngine(Engine.valueOf(value.toUpperCase()));
+                break;
+            case "io-threads":
+                setIoThreads(Integer.parseInt(value));
+                break;
+            case "client-threads":
+                setClientThreads(ClientThreads.valueOf(value.toUpperCase()));
+                break;
+            case "queue-high-water":
+                setQueueHighWater(Integer.parseInt(value));
+                break;
+            case "queue-limit":
+                setQueueLimit(Integer.parseInt(value));
+                break;
+            case "binary":
+                setBinaryProtocol(Boolean.parseBoolean(value));
+                break;
+            case "compression":
+                setCompression(Compression.valueOf(value.toUpperCase()));
+                break;
+            case "compression-level":
+                setCompressionLevel(Integer.parseInt(value));
+                break;
+            case "ping-ms":
+                setPingMillis(Integer.parseInt(value));
+                break;
+            case "idle-timeout-ms":
+                setIdleTimeoutMillis(Integer.parseInt(value));
+                break;
+            case "replay-ring":
+                setReplayRing(Integer.parseInt(value));
+                break;
+            case "metrics-port":
+                setMetricsPort(Integer.parseInt(value));
+                break;
+            case "cursor-hz":
+                setCursorHz(Integer.parseInt(value));
+                break;
+            case "poll-results-ms":
+                setPollResultsMillis(Integer.parseInt(value));
+                break;
+            case "flush-ms":
+                setFlushMillis(Integer.parseInt(value));
+                break;
+            case "flush-bytes":
+                setFlushBytes(Integer.parseInt(value));
+                break;
+            case "journal":
+                setJournalDir(value.isEmpty() ? null : value);
+                break;
+            case "journal-sync":
+                setJournalSync(JournalSync.valueOf(value.toUpperCase()));
+                break;
+            case "journal-sync-ms":
+                setJournalSyncMillis(Integer.parseInt(value));
+                break;
+            case "journal-segment-mb":
+                setJournalSegmentMb(Integer.parseInt(value));
+                break;
+            case "compact-kb":
+                setCompactKb(Integer.parseInt(value));
+                break;
+            case "max-rooms":
+                setMaxRooms(Integer.parseInt(value));
+                break;
+            case "node-id":
+                setNodeId(value);
+                break;
+            case "cluster-port":
+                setClusterPort(Integer.parseInt(value));
+                break;
+            case "peers":
+                setPeers(value.isEmpty() ? new ArrayList<>() : Arrays.asList(value.split(",")));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: --" + key);
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public ServerConfig setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public ServerConfig setEngine(Engine engine) {
+        this.engine = engine;
+        return this;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public ServerConfig setIoThreads(int ioThreads) {
+        this.ioThreads = Math.max(1, ioThreads);
+        return this;
+    }
+
+    public ClientThreads getClientThreads() {
+        return clientThreads;
+    }
+
+    public ServerConfig setClientThreads(ClientThreads clientThreads) {
+        this.clientThreads = clientThreads;
+        return this;
+    }
+
+    public int getQueueHighWater() {
+        return queueHighWater;
+    }
+
+    public ServerConfig setQueueHighWater(int queueHighWater) {
+        this.queueHighWater = Math.max(1, queueHighWater);
+        return this;
+    }
+
+    public int getQueueLimit() {
+        return queueLimit;
+    }
+
+    public ServerConfig setQueueLimit(int queueLimit) {
+        this.queueLimit = Math.max(1, queueLimit);
+        return this;
+    }
+
+    /** Whether clients that offer binary framing in JOIN get it. */
+    public boolean isBinaryProtocol() {
+        return binaryProtocol;
+    }
+
+    public ServerConfig setBinaryProtocol(boolean binaryProtocol) {
+        this.binaryProtocol = binaryProtocol;
+        return this;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public ServerConfig setCompression(Compression compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /** zlib level of compressed streams, 1 (fastest) to 9 (smallest). */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public ServerConfig setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = Math.max(1, Math.min(9, compressionLevel));
+        return this;
+    }
+
+    /** Silence after which a client that offered PING is pinged; 0 turns heartbeats off. */
+    public int getPingMillis() {
+        return pingMillis;
+    }
+
+    public ServerConfig setPingMillis(int pingMillis) {
+        this.pingMillis = Math.max(0, pingMillis);
+        return this;
+    }
+
+    /** Silence after which a client that offered PING is disconnected. */
+    public int getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public ServerConfig setIdleTimeoutMillis(int idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Recent broadcasts each room keeps numbered, so a client that lost its
+     * connection gets only what it missed; 0 turns resuming off.
+     */
+    public int getReplayRing() {
+        return replayRing;
+    }
+
+    public ServerConfig setReplayRing(int replayRing) {
+        this.replayRing = Math.max(0, replayRing);
+        return this;
+    }
+
+    /** Port on 127.0.0.1 that serves {@link ServerMetricsMXBean#dump()}; 0 for none. */
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public ServerConfig setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+        return this;
+    }
+
+    /** Cursor broadcasts per second; 0 relays each CURSOR as soon as it arrives. */
+    public int getCursorHz() {
+        return cursorHz;
+    }
+
+    public ServerConfig setCursorHz(int cursorHz) {
+        this.cursorHz = Math.max(0, Math.min(1000, cursorHz));
+        return this;
+    }
+
+    /** Shortest time between two POLL_RESULTS of a poll; 0 sends one per vote. */
+    public int getPollResultsMillis() {
+        return pollResultsMillis;
+    }
+
+    public ServerConfig setPollResultsMillis(int pollResultsMillis) {
+        this.pollResultsMillis = Math.max(0, Math.min(60_000, pollResultsMillis));
+        return this;
+    }
+
+    /** Longest a queued message waits for others to share its write; 0 writes at once. */
+    public int getFlushMillis() {
+        return flushMillis;
+    }
+
+    public ServerConfig setFlushMillis(int flushMillis) {
+        this.flushMillis = Math.max(0, flushMillis);
+        return this;
+    }
+
+    /** Queued bytes that trigger a write without waiting for {@link #getFlushMillis()}. */
+    public int getFlushBytes() {
+        return flushBytes;
+    }
+
+    public ServerConfig setFlushBytes(int flushBytes) {
+        this.flushBytes = Math.max(512, flushBytes);
+        return this;
+    }
+
+    /** Directory for the session journal, or null if journaling is off. */
+    public String getJournalDir() {
+        return journalDir;
+    }
+
+    public ServerConfig setJournalDir(String journalDir) {
+        this.journalDir = journalDir;
+        return this;
+    }
+
+    public JournalSync getJournalSync() {
+        return journalSync;
+    }
+
+    public ServerConfig setJournalSync(JournalSync journalSync) {
+        this.journalSync = journalSync;
+        return this;
+    }
+
+    public int getJournalSyncMillis() {
+        return journalSyncMillis;
+    }
+
+    public ServerConfig setJournalSyncMillis(int journalSyncMillis) {
+        this.journalSyncMillis = Math.max(1, journalSyncMillis);
+        return this;
+    }
+
+    /** Size of each journal segment; full segments are folded into a snapshot. */
+    public int getJournalSegmentMb() {
+        return journalSegmentMb;
+    }
+
+    public ServerConfig setJournalSegmentMb(int journalSegmentMb) {
+        this.journalSegmentMb = Math.max(1, Math.min(1024, journalSegmentMb));
+        return this;
+    }
+
+    /** Drawing added before the live board is compacted, in KB; 0 turns compaction off. */
+    public int getCompactKb() {
+        return compactKb;
+    }
+
+    public ServerConfig setCompactKb(int compactKb) {
+        this.compactKb = Math.max(0, compactKb);
+        return this;
+    }
+
+    /** Most rooms open at once; a JOIN for a new room beyond this is refused. */
+    public int getMaxRooms() {
+        return maxRooms;
+    }
+
+    public ServerConfig setMaxRooms(int maxRooms) {
+        this.maxRooms = Math.max(1, maxRooms);
+        return this;
+    }
+
+    /** Name of this server in the cluster; must differ between nodes. */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public ServerConfig setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+        return this;
+    }
+
+    /** Port other nodes connect to; 0 runs without a cluster. */
+    public int getClusterPort() {
+        return clusterPort;
+    }
+
+    public ServerConfig setClusterPort(int clusterPort) {
+        this.clusterPort = clusterPort;
+        return this;
+    }
+
+    /** Other nodes, as id@host:port. */
+    public List<String> getPeers() {
+        return peers;
+    }
+
+    public ServerConfig setPeers(List<String> peers) {
+        this.peers = new ArrayList<>(peers);
+        return this;
+    }
+
+    /** Executor for the thread-per-client engine, as selected by {@link #getClientThreads()}. */
+    public ExecutorService newClientExecutor() {
+        return clientThreads == ClientThreads.VIRTUAL
+                ? ClientExecutors.virtualThreads()
+                : ClientExecutors.platformThreads();
+    }
+}
@@ -0,0 +1,394 @@
+package server;
+
+import protocol.MessageType;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for the whole server, registered as the MXBean
+ * {@code whiteboard:type=Server} and, with --metrics-port, served as plain
+ * text to anything that connects to that port on this machine:
+ *
+ *   curl http://127.0.0.1:9091/
+ *
+ * Recording is called from the I/O threads on every message, so it only
+ * ever increments a LongAdder; totals are summed when somebody reads them.
+ * Rates are sampled once a second on the room ticker. Queue depths are read
+ * from the clients at the time of the request.
+ */
+final class ServerMetrics implements ServerMetricsMXBean {
+
+    static final String OBJECT_NAME = "whiteboard:type=Server";
+
+    // Rates are averaged over this many one-second samples
+    private static final int RATE_WINDOW = 10;
+
+    private final LongAdder[] messagesIn = adders(MessageType.COUNT);
+    private final LongAdder[] bytesIn = adders(MessageType.COUNT);
+    private final LongAdder[] messagesOut = adders(MessageType.COUNT);
+    private final LongAdder[] bytesOut = adders(MessageType.COUNT);
+    private final LatencyHistogram broadcasts = new LatencyHistogram();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder pollVotes = new LongAdder();
+
+    // Totals of compressed connections that have closed; live ones are
+    // added when read
+    private final LongAdder deflateIn = new LongAdder();
+    private final LongAdder deflateOut = new LongAdder();
+    private final LongAdder deflateNanos = new LongAdder();
+
+    // Ring of the last RATE_WINDOW + 1 samples; written by the ticker only
+    private final long[] acceptSamples = new long[RATE_WINDOW + 1];
+    private final long[] voteSamples = new long[RATE_WINDOW + 1];
+    private int samples = 0;
+    private volatile double acceptRate = 0;
+    private volatile double voteRate = 0;
+
+    private boolean started = false;
+
+    /**
+     * Register the MXBean, start sampling rates on {@code ticker} and, if
+     * {@code port} is not 0, serve the text dump on it. Does nothing the
+     * second time.
+     */
+    synchronized void start(ScheduledExecutorService ticker, int port) {
+        if (started) return;
+        started = true;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            // Another server in this JVM got there first
+        } catch (JMException e) {
+            System.out.println("Cannot register metrics MBean: " + e.getMessage());
+        }
+        ticker.scheduleAtFixedRate(this::sample, 1, 1, TimeUnit.SECONDS);
+        if (port > 0) {
+            serve(port);
+        }
+    }
+
+    // ---- Recording (hot path) ----
+
+    /** A message of {@code type} that arrived from a client, {@code bytes} long on the wire. */
+    void received(int type, int bytes) {
+        messagesIn[type].increment();
+        bytesIn[type].add(bytes);
+    }
+
+    /** A message of {@code type} queued for one client. */
+    void sent(int type, int bytes) {
+        messagesOut[type].increment();
+        bytesOut[type].add(bytes);
+    }
+
+    /** One broadcast handed to every recipient in {@code nanos}. */
+    void broadcast(long nanos) {
+        broadcasts.record(nanos);
+    }
+
+    void accepted() {
+        accepted.increment();
+    }
+
+    void pollVoted() {
+        pollVotes.increment();
+    }
+
+    /** Fold the totals of a compressed connection that closed into the server's. */
+    void compressionEnded(StreamCompressor compressor) {
+        deflateIn.add(compressor.rawBytes());
+        deflateOut.add(compressor.compressedBytes());
+        deflateNanos.add(compressor.nanos());
+    }
+
+    // ---- ServerMetricsMXBean ----
+
+    @Override
+    public int getConnectedClients() {
+        return WhiteboardServer.clientCount();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return accepted.sum();
+    }
+
+    @Override
+    public double getAcceptsPerSecond() {
+        return acceptRate;
+    }
+
+    @Override
+    public long getPollVotes() {
+        return pollVotes.sum();
+    }
+
+    @Override
+    public double getPollVotesPerSecond() {
+        return voteRate;
+    }
+
+    @Override
+    public Map<String, Long> getMessagesIn() {
+        return byType(messagesIn);
+    }
+
+    @Override
+    public Map<String, Long> getBytesIn() {
+        return byType(bytesIn);
+    }
+
+    @Override
+    public Map<String, Long> getMessagesOut() {
+        return byType(messagesOut);
+    }
+
+    @Override
+    public Map<String, Long> getBytesOut() {
+        return byType(bytesOut);
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return broadcasts.count();
+    }
+
+    @Override
+    public Map<String, Long> getBroadcastMicros() {
+        Map<String, Long> result = new TreeMap<>((a, b) -> Long.compare(Long.parseLong(a), Long.parseLong(b)));
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            long n = broadcasts.bucket(i);
+            if (n > 0) result.put(Long.toString(LatencyHistogram.upperMicros(i)), n);
+        }
+        return result;
+    }
+
+    @Override
+    public long getBroadcastMicrosP50() {
+        return broadcasts.percentileMicros(0.50);
+    }
+
+    @Override
+    public long getBroadcastMicrosP99() {
+        return broadcasts.percentileMicros(0.99);
+    }
+
+    @Override
+    public long getBroadcastMicrosMax() {
+        return broadcasts.maxMicros();
+    }
+
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> result = new TreeMap<>();
+        for (Room room : WhiteboardServer.rooms()) {
+            for (ClientSession client : room.clients()) {
+                if (client instanceof RemoteMember) continue;
+                result.put(room.name + "/" + client.username, client.queuedMessages());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int getMaxQueueDepth() {
+        int max = 0;
+        for (Room room : WhiteboardServer.rooms()) {
+            for (ClientSession client : room.clients()) {
+                max = Math.max(max, client.queuedMessages());
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public long getDeflateInputBytes() {
+        long n = deflateIn.sum();
+        for (StreamCompressor c : liveCompressors()) {
+            n += c.rawBytes();
+        }
+        return n;
+    }
+
+    @Override
+    public long getDeflateOutputBytes() {
+        long n = deflateOut.sum();
+        for (StreamCompressor c : liveCompressors()) {
+            n += c.compressedBytes();
+        }
+        return n;
+    }
+
+    @Override
+    public long getDeflateMillis() {
+        long n = deflateNanos.sum();
+        for (StreamCompressor c : liveCompressors()) {
+            n += c.nanos();
+        }
+        return n / 1_000_000;
+    }
+
+    /**
+     * One metric per line in the Prometheus text format, e.g.
+     *   whiteboard_messages_in_total{type="DRAW"} 18231
+     */
+    @Override
+    public String dump() {
+        StringBuilder sb = new StringBuilder(4096);
+        line(sb, "whiteboard_connected_clients", "", getConnectedClients());
+        line(sb, "whiteboard_accepted_connections_total", "", getAcceptedConnections());
+        line(sb, "whiteboard_accepts_per_second", "", getAcceptsPerSecond());
+        line(sb, "whiteboard_poll_votes_total", "", getPollVotes());
+        line(sb, "whiteboard_poll_votes_per_second", "", getPollVotesPerSecond());
+        perType(sb, "whiteboard_messages_in_total", messagesIn);
+        perType(sb, "whiteboard_bytes_in_total", bytesIn);
+        perType(sb, "whiteboard_messages_out_total", messagesOut);
+        perType(sb, "whiteboard_bytes_out_total", bytesOut);
+
+        // Cumulative, as Prometheus histograms are
+        long cumulative = 0;
+        for (int i = 0; i < LatencyHistogram.BUCKETS - 1; i++) {
+            cumulative += broadcasts.bucket(i);
+            line(sb, "whiteboard_broadcast_micros_bucket",
+                    "{le=\"" + LatencyHistogram.upperMicros(i) + "\"}", cumulative);
+        }
+        cumulative += broadcasts.bucket(LatencyHistogram.BUCKETS - 1);
+        line(sb, "whiteboard_broadcast_micros_bucket", "{le=\"+Inf\"}", cumulative);
+        line(sb, "whiteboard_broadcast_micros_count", "", cumulative);
+        line(sb, "whiteboard_broadcast_micros_max", "", getBroadcastMicrosMax());
+
+        for (Map.Entry<String, Integer> e : getQueueDepths().entrySet()) {
+            line(sb, "whiteboard_queue_depth", "{client=\"" + escape(e.getKey()) + "\"}", e.getValue());
+        }
+        line(sb, "whiteboard_deflate_input_bytes_total", "", getDeflateInputBytes());
+        line(sb, "whiteboard_deflate_output_bytes_total", "", getDeflateOutputBytes());
+        line(sb, "whiteboard_deflate_millis_total", "", getDeflateMillis());
+        return sb.toString();
+    }
+
+    // ---- Rates ----
+
+    // Once a second on the ticker
+    private void sample() {
+        int slot = samples % acceptSamples.length;
+        acceptSamples[slot] = accepted.sum();
+        voteSamples[slot] = pollVotes.sum();
+        samples++;
+        int span = Math.min(samples - 1, RATE_WINDOW);
+        if (span == 0) return;
+        int oldest = (samples - 1 - span) % acceptSamples.length;
+        acceptRate = (double) (acceptSamples[slot] - acceptSamples[oldest]) / span;
+        voteRate = (double) (voteSamples[slot] - voteSamples[oldest]) / span;
+    }
+
+    // ---- Text dump ----
+
+    // One short-lived connection per request; bound to loopback only
+    private void serve(int port) {
+        ServerSocket server;
+        try {
+            server = new ServerSocket(port, 8, InetAddress.getLoopbackAddress());
+        } catch (IOException e) {
+            System.out.println("Cannot serve metrics on port " + port + ": " + e.getMessage());
+            return;
+        }
+        System.out.println("Metrics on http://127.0.0.1:" + port + "/");
+        Thread t = new Thread(() -> {
+            while (true) {
+                try (Socket socket = server.accept()) {
+                    respond(socket);
+                } catch (IOException e) {
+                    // Client went away; serve the next one
+                }
+            }
+        }, "WB-Metrics");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // Answers anything, a plain connection as well as an HTTP GET
+    private void respond(Socket socket) throws IOException {
+        socket.setSoTimeout(500);
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+        try {
+            // Skip the request headers, if any
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                // ignore
+            }
+        } catch (SocketTimeoutException e) {
+            // Nothing sent, e.g. nc
+        }
+        byte[] body = dump().getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.0 200 OK\r\nContent-Type: text/plain; version=0.0.4\r\n" +
+                "Content-Length: " + body.length + "\r\nConnection: close\r\n\r\n";
+        OutputStream out = socket.getOutputStream();
+        out.write(head.getBytes(StandardCharsets.US_ASCII));
+        out.write(body);
+        out.flush();
+    }
+
+    // ---- Helpers ----
+
+    private List<StreamCompressor> liveCompressors() {
+        List<StreamCompressor> result = new ArrayList<>();
+        for (Room room : WhiteboardServer.rooms()) {
+            for (ClientSession client : room.clients()) {
+                StreamCompressor c = client.compressor;
+                if (c != null) result.add(c);
+            }
+        }
+        return result;
+    }
+
+    private static Map<String, Long> byType(LongAdder[] adders) {
+        Map<String, Long> result = new TreeMap<>();
+        for (int type = 0; type < adders.length; type++) {
+            long n = adders[type].sum();
+            if (n > 0) result.put(MessageType.name(type), n);
+        }
+        return result;
+    }
+
+    private static void perType(StringBuilder sb, String metric, LongAdder[] adders) {
+        for (Map.Entry<String, Long> e : byType(adders).entrySet()) {
+            line(sb, metric, "{type=\"" + e.getKey() + "\"}", e.getValue());
+        }
+    }
+
+    private static void line(StringBuilder sb, String metric, String labels, Object value) {
+        sb.append(metric).append(labels).append(' ').append(value).append('\n');
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] result = new LongAdder[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = new LongAdder();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,65 @@
+package server;
+
+import java.util.Map;
+
+/**
+ * What the server exposes over JMX as {@code whiteboard:type=Server}, e.g.
+ * in JConsole or VisualVM. Maps keyed by message type hold one entry per
+ * type seen so far.
+ *
+ * The same numbers are available as plain text with --metrics-port.
+ */
+public interface ServerMetricsMXBean {
+
+    /** Clients that completed JOIN, over all rooms. */
+    int getConnectedClients();
+
+    long getAcceptedConnections();
+
+    /** Connections accepted per second over the last ten seconds. */
+    double getAcceptsPerSecond();
+
+    long getPollVotes();
+
+    /** Poll votes counted per second over the last ten seconds. */
+    double getPollVotesPerSecond();
+
+    /** Messages received from clients, by type. */
+    Map<String, Long> getMessagesIn();
+
+    /** Bytes received from clients, by type. */
+    Map<String, Long> getBytesIn();
+
+    /** Messages queued for clients, by type; a broadcast counts once per recipient. */
+    Map<String, Long> getMessagesOut();
+
+    /** Bytes queued for clients before compression, by type. */
+    Map<String, Long> getBytesOut();
+
+    long getBroadcasts();
+
+    /** Time to hand one broadcast to every recipient, as bucket upper bound in us -> count. */
+    Map<String, Long> getBroadcastMicros();
+
+    long getBroadcastMicrosP50();
+
+    long getBroadcastMicrosP99();
+
+    long getBroadcastMicrosMax();
+
+    /** Messages waiting to be written, by room/username. */
+    Map<String, Integer> getQueueDepths();
+
+    int getMaxQueueDepth();
+
+    /** Bytes fed to the deflate streams of compressed connections. */
+    long getDeflateInputBytes();
+
+    /** Bytes the deflate streams produced. */
+    long getDeflateOutputBytes();
+
+    long getDeflateMillis();
+
+    /** Everything above as text, in the format of the --metrics-port dump. */
+    String dump();
+}
@@ -0,0 +1,114 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * The deflate stream of one client that negotiated DEFLATE in JOIN.
+ *
+ * Messages are compressed as they are written out and the stream is
+ * sync-flushed at the end of every batch, so the client can decode each
+ * batch as soon as it arrives while the dictionary carries over from one
+ * batch to the next. Repeated DRAW / CURSOR prefixes and coordinates
+ * compress several times over.
+ *
+ * Also counts what it did, so that the ratio and the CPU time of each
+ * connection can be reported.
+ *
+ * Used by one writer thread at a time; the counters may be read from any
+ * thread.
+ */
+final class StreamCompressor {
+
+    private final Deflater deflater;
+    private ByteBuffer out = ByteBuffer.allocate(16 * 1024);
+    // True while out holds the result of flush() for the caller to drain
+    private boolean draining = false;
+
+    private volatile long rawBytes = 0;
+    private volatile long compressedBytes = 0;
+    private volatile long nanos = 0;
+
+    StreamCompressor(int level) {
+        this.deflater = new Deflater(level);
+    }
+
+    /** Compress the remaining bytes of {@code data}, consuming them. */
+    void write(ByteBuffer data) {
+        long start = System.nanoTime();
+        if (draining) {
+            out.clear();
+            draining = false;
+        }
+        rawBytes += data.remaining();
+        deflater.setInput(data);
+        while (!deflater.needsInput()) {
+            deflate(Deflater.NO_FLUSH);
+        }
+        nanos += System.nanoTime() - start;
+    }
+
+    void write(byte[] data) {
+        write(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Sync-flush the stream.
+     *
+     * @return everything produced since the last flush, ready to be written;
+     *         it must be drained before the next call to write or flush
+     */
+    ByteBuffer flush() {
+        long start = System.nanoTime();
+        if (draining) {
+            out.clear();
+        }
+        // Done once a call leaves space in the buffer
+        do {
+            deflate(Deflater.SYNC_FLUSH);
+        } while (!out.hasRemaining());
+        compressedBytes += out.position();
+        out.flip();
+        draining = true;
+        nanos += System.nanoTime() - start;
+        return out;
+    }
+
+    /** Release the native zlib state. Safe to call more than once. */
+    void end() {
+        deflater.end();
+    }
+
+    long rawBytes() {
+        return rawBytes;
+    }
+
+    long compressedBytes() {
+        return compressedBytes;
+    }
+
+    /** Time spent compressing, in nanoseconds. */
+    long nanos() {
+        return nanos;
+    }
+
+    /** e.g. "1843 KB -> 212 KB (8.7x), 38 ms deflating" */
+    String summary() {
+        long raw = rawBytes;
+        long compressed = compressedBytes;
+        return String.format("%d KB -> %d KB (%.1fx), %d ms deflating",
+                raw / 1024, compressed / 1024,
+                compressed == 0 ? 0.0 : (double) raw / compressed, nanos / 1_000_000);
+    }
+
+    // Deflate into out, growing it when full
+    private void deflate(int flush) {
+        if (!out.hasRemaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(out.capacity() * 2);
+            out.flip();
+            bigger.put(out);
+            out = bigger;
+        }
+        deflater.deflate(out, flush);
+    }
+}
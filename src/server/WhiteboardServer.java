@@ -1,327 +1,661 @@
 package server;
 
+import protocol.BinaryCodec;
+import protocol.FrameReader;
+import protocol.MessageType;
+import protocol.WireMessage;
+
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Multi-client server for chat + whiteboard + polls.
  *
+ * Clients are grouped into independent {@link Room}s, picked with room= in
+ * JOIN (default "main"). Everything below happens within the client's room.
+ *
  * Protocol (client → server):
- *   JOIN|username
+ *   JOIN|username[|BIN][|DEFLATE][|USERS][|PING][|RESUME][|resume=token:seq:n][|EPOCH][|room=name]
+ *                                  (BIN offers the binary framing, DEFLATE
+ *                                   accepts a compressed stream, resume= picks
+ *                                   up a session after a lost connection)
  *   CHAT|username|message
  *   DRAW|x1|y1|x2|y2|rgb|stroke
+ *   STROKE_BEGIN|strokeId|x|y|rgb|stroke
+ *   STROKE_POINTS|strokeId|dx,dy;dx,dy;...
+ *   STROKE_END|strokeId
  *   CLEAR|
+ *   EPOCH|epoch                   (EPOCH clients: CLEAR|epoch has been applied)
  *   CURSOR|username|x|y
  *   BOARD_LOCK|true/false         (only teacher is honoured)
  *   POLL_CREATE|username|pollId|question|opt1;opt2;...
  *   POLL_VOTE|username|pollId|optionIndex
  *
  * Protocol (server → clients):
+ *   PROTO|BIN or PROTO|TEXT       (first line, only if the client offered BIN,
+ *                                  DEFLATE or USERS; |DEFLATE appended when the
+ *                                  rest of the stream is compressed)
+ *   BOARD_BEGIN|n, BOARD_CHUNK|..., BOARD_END|   (board so far, right after JOIN)
+ *   (then recent CHAT lines and the active poll, if any)
  *   CHAT|username|message
  *   DRAW|x1|y1|x2|y2|rgb|stroke
- *   CLEAR|
- *   CURSOR|username|x|y
+ *   STROKE_BEGIN / STROKE_POINTS / STROKE_END   (relayed as received)
+ *   CLEAR|epoch                   (also to the teacher that sent it, if EPOCH)
+ *   EPOCH|epoch                   (to EPOCH clients at the end of JOIN)
+ *   BOARD_ACK|n                   (to EPOCH clients: n of your drawing operations
+ *                                  were ordered before what follows)
+ *   CURSORS|u1,x,y;u2,x,y;...     (cursors that moved, once per tick)
  *   USERLIST|u1,u2,u3
  *   ROLE|TEACHER or ROLE|STUDENT
  *   BOARD_LOCK|true/false
  *   POLL_CREATE|username|pollId|question|opt1;opt2;...
  *   POLL_RESULTS|pollId|c0;c1;c2;...
+ *   SESSION|token|seq, SEQ|seq     (to RESUME clients: where they are in the
+ *                                  room's numbered broadcasts)
+ *   RESUMED|seq                    (instead of the board and chat after JOIN,
+ *                                  followed by only the broadcasts missed)
+ *
+ * After PROTO|BIN both directions switch to the length-prefixed frames of
+ * {@link BinaryCodec}. Messages are relayed as {@link WireMessage}s, so text
+ * and binary clients can share a room.
+ *
+ * With --journal=dir, drawing, CLEAR, chat and poll messages are also written
+ * to a per-room {@link Journal} in dir/&lt;room&gt; and replayed on startup, so
+ * a restart keeps every session.
+ * Full journal segments are folded into a snapshot by {@link JournalCompactor},
+ * and the live board is compacted by {@link BoardCompactor} as it grows.
+ *
+ * With --cluster-port and --peers, several server processes share rooms
+ * through a {@link ClusterNode}.
  */
 public class WhiteboardServer {
 
     private static int PORT = 5001;
 
-    // All connected clients
-    private static final Set<ClientHandler> clients =
-            Collections.synchronizedSet(new HashSet<>());
-
-    // Usernames currently in the room
-    private static final Set<String> usernames =
-            Collections.synchronizedSet(new HashSet<>());
-
-    // Teacher / board state
-    private static boolean teacherAssigned = false;
-    private static boolean boardLocked = false;
-
-    // Simple single active poll
-    private static class Poll {
-        String id;
-        String question;
-        String[] options;
-        int[] counts;
-        Set<String> votedUsers = new HashSet<>();
-    }
+    // JOIN option naming the room, e.g. JOIN|alice|BIN|room=lab-a
+    static final String ROOM_OPTION = "room=";
+    // JOIN option asking for member list deltas, e.g. JOIN|alice|BIN|USERS
+    static final String USERS_OPTION = "USERS";
+    // JOIN option: the client answers PING and may send PING itself, e.g.
+    // JOIN|alice|PING. Echoed at the end of the PROTO reply if heartbeats are on.
+    static final String PING_OPTION = "PING";
+    // JOIN option: the client counts sequenced broadcasts and is sent
+    // SESSION|token|seq once it has joined, e.g. JOIN|alice|RESUME
+    static final String RESUME_OPTION = "RESUME";
+    // JOIN option of a client coming back after a lost connection:
+    // resume=token:seq:count, i.e. its session, its last SESSION or SEQ, and
+    // the sequenced broadcasts it received after that
+    static final String RESUME_FROM_OPTION = "resume=";
+    // JOIN option: the client keeps its own drawing in the server's order of
+    // board operations, e.g. JOIN|alice|EPOCH. See Room.
+    static final String EPOCH_OPTION = "EPOCH";
+
+    // Rooms by name; created on first JOIN and kept for the server's lifetime
+    private static final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+
+    // Board and journal compaction, one job at a time, off the I/O threads
+    private static final ScheduledExecutorService maintenance =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "WB-Compactor");
+                t.setDaemon(true);
+                return t;
+            });
+    private static boolean compactionScheduled = false;
+
+    // Cluster JOINs, which wait for the peers to settle who owns the room and
+    // for its state; never on an I/O thread, which serves other clients
+    private static final ExecutorService clusterJoins =
+            Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "WB-Cluster-Join");
+                t.setDaemon(true);
+                return t;
+            });
+
+    // Cursor ticks, poll results and poll time limits of every room
+    private static volatile ScheduledExecutorService ticker = null;
+
+    // Counters behind the whiteboard:type=Server MXBean
+    private static final ServerMetrics metrics = new ServerMetrics();
+
+    // Pings quiet clients and drops dead ones; null with --ping-ms=0
+    private static volatile IdleReaper reaper = null;
+
+    // null unless --cluster-port is set
+    private static volatile ClusterNode cluster = null;
 
     public WhiteboardServer(int port){
         this.PORT = port;
     }
 
-    private static Poll activePoll = null;
+    private static volatile ServerConfig config = new ServerConfig();
+
+    static ServerConfig config() {
+        return config;
+    }
+
+    static ServerMetrics metrics() {
+        return metrics;
+    }
 
 
     public static void main(String[] args) {
-        System.out.println("Whiteboard server starting on port " + PORT + "...");
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            while (true) {
-                Socket socket = serverSocket.accept();
-                System.out.println("New client connected: " + socket.getRemoteSocketAddress());
-                ClientHandler handler = new ClientHandler(socket);
-                clients.add(handler);
-                new Thread(handler).start();
+        startServer(args.length == 0
+                ? new ServerConfig().setPort(PORT)
+                : ServerConfig.fromArgs(args));
+    }
+
+    /**
+     * Start the server with the given settings. Blocks for the lifetime of the
+     * server, like {@link #startServer(int)}.
+     */
+    public static void startServer(ServerConfig config) {
+        WhiteboardServer.config = config;
+        if (ticker == null) {
+            ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "WB-Tick");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        metrics.start(ticker, config.getMetricsPort());
+        if (config.getPingMillis() > 0 && reaper == null) {
+            IdleReaper r = new IdleReaper(config.getPingMillis(), config.getIdleTimeoutMillis());
+            reaper = r;
+            r.start(ticker);
+        }
+        if (config.getJournalDir() != null) {
+            try {
+                restoreRooms(new File(config.getJournalDir()));
+            } catch (IOException e) {
+                System.out.println("Cannot open journal: " + e.getMessage());
+                return;
+            }
+        }
+        if (config.getClusterPort() > 0 && cluster == null) {
+            try {
+                ClusterNode node = new ClusterNode(config.getNodeId(), config.getClusterPort(),
+                        config.getPeers(), WhiteboardServer::clusterRoom);
+                cluster = node;
+                node.start();
+            } catch (IOException | IllegalArgumentException e) {
+                System.out.println("Cannot start cluster node: " + e.getMessage());
+                return;
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+        }
+        if (config.getCompactKb() > 0 && !compactionScheduled) {
+            compactionScheduled = true;
+            long threshold = config.getCompactKb() * 1024L;
+            maintenance.scheduleWithFixedDelay(() -> compactBoards(threshold), 1, 1, TimeUnit.SECONDS);
+        }
+        if (config.getEngine() == ServerConfig.Engine.NIO) {
+            System.out.println("Whiteboard server (NIO, " + config.getIoThreads() +
+                    " I/O threads) starting on port " + config.getPort() + "...");
+            try {
+                new NioServerEngine(config.getPort(), config.getIoThreads(),
+                        config.getFlushMillis(), config.getFlushBytes()).run();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else {
+            startServer(config.getPort(), config.newClientExecutor());
         }
     }
 
     public static void startServer() {
-        System.out.println("Whiteboard server starting on port " + PORT + "...");
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            while (true) {
-                Socket socket = serverSocket.accept();
-                System.out.println("New client connected: " + socket.getRemoteSocketAddress());
-                ClientHandler handler = new ClientHandler(socket);
-                clients.add(handler);
-                new Thread(handler).start();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        startServer(PORT);
     }
 
     public static void startServer(int port) {
+        startServer(new ServerConfig().setPort(port));
+    }
+
+    /**
+     * Accept loop for the thread-per-client engine. Each {@link ClientHandler}
+     * runs as one task on {@code executor}, e.g.
+     * {@link ClientExecutors#virtualThreads()} or
+     * {@link ClientExecutors#platformThreads()}.
+     */
+    public static void startServer(int port, Executor executor) {
         System.out.println("Whiteboard server starting on port " + port + "...");
         try (ServerSocket serverSocket = new ServerSocket(port)) {
             while (true) {
                 Socket socket = serverSocket.accept();
+                metrics.accepted();
+                // Reaps clients without heartbeats eventually
+                socket.setKeepAlive(true);
                 System.out.println("New client connected: " + socket.getRemoteSocketAddress());
-                ClientHandler handler = new ClientHandler(socket);
-                clients.add(handler);
-                new Thread(handler).start();
+                executor.execute(new ClientHandler(socket, executor));
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    // Broadcast a message to all clients (null exclude = send to everyone)
-    public static void broadcast(String message, ClientHandler exclude) {
-        synchronized (clients) {
-            for (ClientHandler client : clients) {
-                if (exclude != null && client == exclude) continue;
-                client.sendMessage(message);
+    // ---- Rooms ----
+
+    /**
+     * The room called {@code name}, created if needed. Returns null if it
+     * does not exist and --max-rooms are already open.
+     */
+    private static Room room(String name) {
+        Room room = rooms.get(name);
+        if (room != null) return room;
+        if (rooms.size() >= config.getMaxRooms()) return null;
+        return rooms.computeIfAbsent(name, WhiteboardServer::createRoom);
+    }
+
+    // Rooms named by peers are opened regardless of --max-rooms
+    private static Room clusterRoom(String name) {
+        return rooms.computeIfAbsent(name, WhiteboardServer::createRoom);
+    }
+
+    static Iterable<Room> rooms() {
+        return rooms.values();
+    }
+
+    private static Room createRoom(String name) {
+        Room room = new Room(name, ticker, config.getCursorHz(), config.getPollResultsMillis(), cluster);
+        if (config.getJournalDir() != null) {
+            try {
+                openJournal(room, new File(config.getJournalDir(), name));
+            } catch (IOException e) {
+                System.out.println("Cannot open journal for room " + name + ": " + e.getMessage());
             }
         }
+        return room;
     }
 
-    private static void broadcastUserList() {
-        synchronized (usernames) {
-            StringBuilder sb = new StringBuilder("USERLIST|");
-            boolean first = true;
-            for (String u : usernames) {
-                if (!first) sb.append(",");
-                sb.append(u);
-                first = false;
-            }
-            broadcast(sb.toString(), null);
+    // Every subdirectory of the journal directory holds one room
+    private static void restoreRooms(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + dir);
+        }
+        File[] roomDirs = dir.listFiles(File::isDirectory);
+        if (roomDirs == null) return;
+        for (File roomDir : roomDirs) {
+            String name = roomDir.getName();
+            if (!name.equals(Room.normalizeName(name)) || rooms.containsKey(name)) continue;
+            Room room = new Room(name, ticker, config.getCursorHz(), config.getPollResultsMillis(), cluster);
+            openJournal(room, roomDir);
+            rooms.put(name, room);
         }
     }
 
-    private static void broadcastBoardLock() {
-        broadcast("BOARD_LOCK|" + boardLocked, null);
+    // Rebuild the room's board, chat and poll from its journal, then keep
+    // appending to it
+    private static void openJournal(Room room, File dir) throws IOException {
+        Journal j = new Journal(dir, config.getJournalSync(),
+                config.getJournalSyncMillis(), config.getJournalSegmentMb() * 1024 * 1024);
+        long start = System.nanoTime();
+        long[] count = new long[1];
+        j.replay((seq, msg) -> {
+            room.replay(msg);
+            count[0]++;
+        });
+        if (config.getCompactKb() > 0) {
+            // Nobody is connected yet, so no need for the lock-free variant
+            room.compactBoard();
+        }
+        System.out.printf("Journal: room %s replayed %d records in %d ms (%d drawing operations on the board)%n",
+                room.name, count[0], (System.nanoTime() - start) / 1_000_000, room.boardOperations());
+        JournalCompactor compactor = new JournalCompactor(j);
+        j.setOnSegmentSealed(() -> maintenance.execute(compactor));
+        j.start();
+        room.setJournal(j);
+        if (j.sealedSegments().length > 0) {
+            // Left over from a run that stopped before folding them
+            maintenance.execute(compactor);
+        }
     }
 
-    public static void removeClient(ClientHandler client) {
-        clients.remove(client);
+    private static void compactBoards(long threshold) {
+        for (Room room : rooms.values()) {
+            try {
+                room.compactBoard(threshold);
+            } catch (RuntimeException e) {
+                // An exception would silently cancel the scheduled task
+                e.printStackTrace();
+            }
+        }
     }
 
-    // ---- Poll handling ----
-    private static synchronized void handlePollCreate(String line) {
-        // POLL_CREATE|username|pollId|question|opt1;opt2;...
-        String[] parts = line.split("\\|", 5);
-        if (parts.length < 5) return;
+    /** Number of clients that have completed JOIN, over all rooms. */
+    public static int clientCount() {
+        int count = 0;
+        for (Room room : rooms.values()) {
+            count += room.clientCount();
+        }
+        return count;
+    }
 
-        String pollId = parts[2];
-        String question = parts[3];
-        String[] opts = parts[4].split(";");
+    // ---- Protocol handling (shared by every engine) ----
+
+    /**
+     * Handle the first line from a client, which should be
+     * JOIN|username[|BIN][|room=name]. The client only starts receiving
+     * broadcasts once this has run.
+     */
+    static void handleJoin(ClientSession client, String joinLine) {
+        if (!client.markJoined()) return;
+        if (joinLine != null) {
+            metrics.received(MessageType.JOIN, joinLine.length() + 1);
+        }
 
-        Poll p = new Poll();
-        p.id = pollId;
-        p.question = question;
-        p.options = opts;
-        p.counts = new int[opts.length];
-        p.votedUsers = new HashSet<>();
+        String username = client.username;
+        String roomName = Room.DEFAULT;
+        boolean offersBinary = false;
+        boolean offersDeflate = false;
+        boolean offersPing = false;
+        boolean negotiates = false;
+        String resume = null;
+        if (joinLine != null && joinLine.startsWith("JOIN|")) {
+            String[] parts = joinLine.split("\\|");
+            if (parts.length >= 2 && !parts[1].isEmpty()) {
+                username = parts[1];
+            }
+            for (int i = 2; i < parts.length; i++) {
+                if (parts[i].startsWith(ROOM_OPTION)) {
+                    roomName = Room.normalizeName(parts[i].substring(ROOM_OPTION.length()));
+                    continue;
+                }
+                if (parts[i].startsWith(RESUME_FROM_OPTION)) {
+                    resume = parts[i].substring(RESUME_FROM_OPTION.length());
+                    continue;
+                }
+                negotiates = true;
+                offersBinary |= BinaryCodec.JOIN_CAPABILITY.equals(parts[i]);
+                offersDeflate |= BinaryCodec.DEFLATE_CAPABILITY.equals(parts[i]);
+                offersPing |= PING_OPTION.equals(parts[i]);
+                if (USERS_OPTION.equals(parts[i])) {
+                    client.userDeltas = true;
+                }
+                if (RESUME_OPTION.equals(parts[i])) {
+                    client.offersResume = true;
+                }
+                if (EPOCH_OPTION.equals(parts[i])) {
+                    client.boardEpochs = true;
+                }
+            }
+        }
 
-        activePoll = p;
+        boolean deflate = offersDeflate && compresses(client);
+        IdleReaper watcher = offersPing ? reaper : null;
+        String options = (deflate ? "|" + BinaryCodec.DEFLATE_CAPABILITY : "") +
+                (watcher != null ? "|" + PING_OPTION : "");
+        // Protocol reply must be the first thing the client reads
+        if (offersBinary && config.isBinaryProtocol()) {
+            client.sendMessage(BinaryCodec.PROTO_BINARY + options);
+            client.binary = true;
+        } else if (negotiates) {
+            client.sendMessage(BinaryCodec.PROTO_TEXT + options);
+        }
+        if (deflate) {
+            client.startCompression();
+        }
 
-        // Let everyone know about the new poll
-        broadcast(line, null);
+        Room room = room(roomName);
+        if (room == null) {
+            client.sendMessage("CHAT|SERVER|No more rooms can be opened on this server.");
+            client.requestClose();
+            return;
+        }
+        if (cluster == null) {
+            client.room = room;
+            room.join(client, username, resume);
+            if (watcher != null) {
+                watcher.add(client);
+            }
+            return;
+        }
+        // What the client sends meanwhile is handled once it is in the room
+        client.holdMessages();
+        String name = username;
+        String from = resume;
+        clusterJoins.execute(() -> {
+            try {
+                room.join(client, name, from);
+            } catch (RuntimeException e) {
+                System.out.println("JOIN of " + name + " to room " + room.name + " failed: " + e);
+                client.requestClose();
+                return;
+            }
+            client.room = room;
+            if (client.hasLeft()) {
+                // Disconnected meanwhile, before it had a room to leave
+                room.leave(client);
+                return;
+            }
+            List<WireMessage> held;
+            while ((held = client.releaseHeld()) != null) {
+                for (WireMessage msg : held) {
+                    room.handleMessage(client, msg);
+                }
+            }
+            if (watcher != null) {
+                watcher.add(client);
+            }
+        });
     }
 
-    private static synchronized void handlePollVote(String line) {
-        // POLL_VOTE|username|pollId|optionIndex
-        if (activePoll == null) return;
-
-        String[] parts = line.split("\\|");
-        if (parts.length < 4) return;
+    private static boolean compresses(ClientSession client) {
+        switch (config.getCompression()) {
+            case ALWAYS:
+                return true;
+            case AUTO:
+                return !client.isLoopback();
+            default:
+                return false;
+        }
+    }
 
-        String username = parts[1];
-        String pollId = parts[2];
-        if (!activePoll.id.equals(pollId)) return;
+    /** Handle one protocol line from a client that has already joined. */
+    static void handleLine(ClientSession client, String line) {
+        WireMessage msg = WireMessage.ofText(line);
+        metrics.received(msg.type(), line.length() + 1);
+        handleMessage(client, msg);
+    }
 
-        int idx;
+    /** Handle one binary frame from a client that negotiated binary framing. */
+    static void handleFrame(ClientSession client, byte[] frame) {
         try {
-            idx = Integer.parseInt(parts[3]);
-        } catch (NumberFormatException e) {
+            // Goes on to the board, the journal and text-protocol clients
+            BinaryCodec.check(frame);
+        } catch (IllegalArgumentException e) {
+            metrics.received(MessageType.UNKNOWN, frame.length);
+            client.reject("malformed frame (" + e.getMessage() + ")");
             return;
         }
+        WireMessage msg = WireMessage.ofFrame(frame);
+        metrics.received(msg.type(), frame.length);
+        handleMessage(client, msg);
+    }
 
-        if (idx < 0 || idx >= activePoll.counts.length) return;
-        if (activePoll.votedUsers.contains(username)) {
-            return;
+    private static void handleMessage(ClientSession client, WireMessage msg) {
+        client.heard();
+        switch (msg.type()) {
+            case MessageType.PING:
+                // PING|token is answered with PONG|token, by the server itself
+                client.sendMessage("PONG" + msg.text().substring("PING".length()));
+                return;
+            case MessageType.PONG:
+                return;
+            default:
+                break;
+        }
+        if (client.hold(msg)) return;
+        Room room = client.room;
+        if (room != null) {
+            room.handleMessage(client, msg);
         }
-        activePoll.votedUsers.add(username);
-        activePoll.counts[idx]++;
+    }
 
-        StringBuilder sb = new StringBuilder("POLL_RESULTS|");
-        sb.append(activePoll.id).append("|");
-        for (int i = 0; i < activePoll.counts.length; i++) {
-            if (i > 0) sb.append(";");
-            sb.append(activePoll.counts[i]);
+    /** Drop a client from its room. Runs at most once per client. */
+    static void handleDisconnect(ClientSession client) {
+        if (!client.hasJoined() || !client.markLeft()) return;
+        StreamCompressor compressor = client.compressor;
+        if (compressor != null) {
+            System.out.println("Compression for " + client.username + ": " + compressor.summary());
+            metrics.compressionEnded(compressor);
+        }
+        Room room = client.room;
+        if (room != null) {
+            room.leave(client);
         }
-        broadcast(sb.toString(), null);
     }
 
     // ---- Client handler ----
-    private static class ClientHandler implements Runnable {
+    private static class ClientHandler extends ClientSession implements Runnable {
+        // Queued by the reader on exit to stop the writer task
+        private static final byte[] STOP_WRITER = new byte[0];
+        // Queued after a control message: write the batch out now
+        private static final byte[] FLUSH_NOW = new byte[0];
+        // Queued after the PROTO reply of a compressed connection
+        private static final byte[] START_DEFLATE = new byte[0];
+
         private final Socket socket;
-        private BufferedReader in;
-        private PrintWriter out;
-        private String username = "Anonymous";
-        private boolean isTeacher = false;
+        private final Executor executor;
+        // Bounded, so that two broadcasts racing past the limit check in
+        // send() cannot both get in; the marker entries count too
+        private final BlockingQueue<byte[]> outbound = new LinkedBlockingQueue<>(config.getQueueLimit());
 
-        public ClientHandler(Socket socket) {
+        public ClientHandler(Socket socket, Executor executor) {
             this.socket = socket;
+            this.executor = executor;
         }
 
-        public void sendMessage(String msg) {
-            if (out != null) {
-                out.println(msg);
+        @Override
+        boolean enqueue(WireMessage msg) {
+            if (!outbound.offer(encode(msg))) return false;
+            if (msg.isControl()) {
+                outbound.offer(FLUSH_NOW);
             }
+            return true;
         }
 
         @Override
-        public void run() {
-            try {
-                in = new BufferedReader(
-                        new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(
-                        new OutputStreamWriter(socket.getOutputStream()), true);
-
-                // First line from client should be JOIN|username
-                String joinLine = in.readLine();
-                if (joinLine != null && joinLine.startsWith("JOIN|")) {
-                    String[] parts = joinLine.split("\\|", 2);
-                    if (parts.length == 2 && !parts[1].isEmpty()) {
-                        username = parts[1];
-                    }
-                }
-
-                synchronized (usernames) {
-                    username = ensureUniqueUsername(username);
-                    usernames.add(username);
-                }
-                sendMessage("USERNAME|" + username);
-
-                // Assign teacher role to the first client
-                synchronized (WhiteboardServer.class) {
-                    if (!teacherAssigned) {
-                        teacherAssigned = true;
-                        isTeacher = true;
-                        sendMessage("ROLE|TEACHER");
-                    } else {
-                        sendMessage("ROLE|STUDENT");
-                    }
-                    // Send current board-lock state
-                    sendMessage("BOARD_LOCK|" + boardLocked);
-                }
-
-                System.out.println("User joined: " + username +
-                        (isTeacher ? " (TEACHER)" : ""));
-                broadcast("CHAT|SERVER|" + username + " joined the session.", null);
-                broadcastUserList();
+        void startCompression() {
+            // Without the marker the client, told to inflate, would be sent raw bytes
+            if (!outbound.offer(START_DEFLATE)) {
+                evict("outbound queue full when compression was to start");
+            }
+        }
 
-                String line;
-                while ((line = in.readLine()) != null) {
+        @Override
+        boolean isLoopback() {
+            return socket.getInetAddress().isLoopbackAddress();
+        }
 
-                    if (line.startsWith("CHAT|")) {
-                        // Chat goes to everybody including sender
-                        broadcast(line, null);
+        @Override
+        int queuedMessages() {
+            return outbound.size();
+        }
 
-                    } else if (line.startsWith("DRAW|") ||
-                            line.startsWith("CURSOR|")) {
-                        // echo to everyone EXCEPT sender (to avoid double-drawing
-                        // and double-cursor for oneself)
-                        broadcast(line, this);
+        @Override
+        void requestClose() {
+            // Unblocks the reader, which then runs the normal leave handling
+            close();
+        }
 
-                    } else if (line.startsWith("CLEAR|")) {
-                        if (isTeacher) {
-                            broadcast(line, this);
-                        }
+        @Override
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
 
-                    } else if (line.startsWith("BOARD_LOCK|")) {
-                        // Only teacher can lock/unlock
-                        if (isTeacher) {
-                            String[] parts = line.split("\\|");
-                            if (parts.length >= 2) {
-                                boardLocked = Boolean.parseBoolean(parts[1]);
-                                broadcastBoardLock();
-                                broadcast("CHAT|SERVER|Board " +
-                                        (boardLocked ? "locked" : "unlocked") +
-                                        " by teacher.", null);
-                            }
-                        }
+        @Override
+        public void run() {
+            try {
+                FrameReader in = new FrameReader(socket.getInputStream());
+                // Large enough that only writeLoop decides when to flush
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(),
+                        config.getFlushBytes());
+                executor.execute(() -> writeLoop(out));
 
-                    } else if (line.startsWith("POLL_CREATE|")) {
-                        // Only teacher can create poll
-                        if (isTeacher) {
-                            handlePollCreate(line);
-                        }
+                // First line from client should be JOIN|username
+                handleJoin(this, in.readLine());
 
-                    } else if (line.startsWith("POLL_VOTE|")) {
-                        handlePollVote(line);
+                if (binary) {
+                    byte[] frame;
+                    while ((frame = in.readFrame()) != null) {
+                        handleFrame(this, frame);
+                    }
+                } else {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        handleLine(this, line);
                     }
                 }
             } catch (IOException e) {
                 System.out.println("Connection lost with " + username);
             } finally {
-                WhiteboardServer.removeClient(this);
-                usernames.remove(username);
-                broadcast("CHAT|SERVER|" + username + " left the session.", null);
-                broadcastUserList();
-                try {
-                    socket.close();
-                } catch (IOException ignored) {}
+                handleDisconnect(this);
+                do {
+                    outbound.clear();
+                } while (!outbound.offer(STOP_WRITER));
+                close();
             }
         }
-    }
 
-    private static String ensureUniqueUsername(String requested) {
-        if (requested == null || requested.isBlank()) {
-            requested = "Guest";
-        }
-        String base = requested.trim();
-        if (!usernames.contains(base)) {
-            return base;
-        }
-        int counter = 2;
-        while (usernames.contains(base + "-" + counter)) {
-            counter++;
+        // Drains the outbound queue and flushes once per batch. A batch is
+        // closed by FLUSH_NOW, by reaching flushBytes, or flushMillis after
+        // its first message.
+        private void writeLoop(OutputStream out) {
+            long flushNanos = TimeUnit.MILLISECONDS.toNanos(config.getFlushMillis());
+            int flushBytes = config.getFlushBytes();
+            StreamCompressor deflate = null;
+            try {
+                while (true) {
+                    byte[] data = outbound.take();
+                    long deadline = System.nanoTime() + flushNanos;
+                    int batched = 0;
+                    while (true) {
+                        if (data == STOP_WRITER) return;
+                        if (data == FLUSH_NOW) break;
+                        if (data == START_DEFLATE) {
+                            deflate = new StreamCompressor(config.getCompressionLevel());
+                            compressor = deflate;
+                        } else if (deflate != null) {
+                            deflate.write(data);
+                        } else {
+                            out.write(data);
+                        }
+                        batched += data.length;
+                        if (batched >= flushBytes) break;
+                        data = outbound.poll();
+                        if (data == null) {
+                            long wait = deadline - System.nanoTime();
+                            if (wait <= 0) break;
+                            data = outbound.poll(wait, TimeUnit.NANOSECONDS);
+                            if (data == null) break;
+                        }
+                    }
+                    if (deflate != null && batched > 0) {
+                        ByteBuffer block = deflate.flush();
+                        out.write(block.array(), block.arrayOffset() + block.position(), block.remaining());
+                    }
+                    out.flush();
+                }
+            } catch (IOException e) {
+                close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (deflate != null) {
+                    deflate.end();
+                }
+            }
         }
-        return base + "-" + counter;
     }
 }
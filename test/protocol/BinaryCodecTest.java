@@ -0,0 +1,113 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BinaryCodecTest {
+
+    private static final byte[][] GOOD = {
+            BinaryCodec.encodeText("CHAT|alice|hello"),
+            BinaryCodec.encodeDraw(10, 20, -12, 24, 0xFF000000, 3f),
+            BinaryCodec.encodeDraw(1, 2, 3, 4, 0x12345678, 40f),
+            BinaryCodec.encodeCursor("bob", 300, -4),
+            BinaryCodec.encodeCursors(new String[] {"a", "bb"}, new int[] {1, 2, 3, 4}, 2),
+            BinaryCodec.encodeStrokeBegin(1L << 40, 5, 6, 0xFF89B4FA, 2f),
+            BinaryCodec.encodeStrokePoints(7, new int[] {1, -1, 200, 300}, 2),
+            BinaryCodec.encodeStrokeEnd(7),
+    };
+
+    @Test
+    void acceptsWhatItEncodes() {
+        for (byte[] frame : GOOD) {
+            BinaryCodec.check(frame);
+        }
+        byte[] a = BinaryCodec.encodeDraw(1, 2, 3, 4, 0xFF000000, 3f);
+        byte[] b = BinaryCodec.encodeStrokeEnd(9);
+        byte[] both = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, both, a.length, b.length);
+        BinaryCodec.check(BinaryCodec.encodeBoardChunk(both, 0, both.length));
+    }
+
+    @Test
+    void rejectsEveryTruncation() {
+        for (byte[] frame : GOOD) {
+            if (BinaryCodec.opcode(frame) == BinaryCodec.OP_TEXT) continue;
+            for (int cut = 1; cut <= frame.length - 2; cut++) {
+                byte[] shorter = withPayload(frame, frame.length - 2 - cut);
+                assertThrows(IllegalArgumentException.class, () -> BinaryCodec.check(shorter),
+                        "opcode " + BinaryCodec.opcode(frame) + " cut by " + cut);
+            }
+        }
+    }
+
+    @Test
+    void decodersThrowInsteadOfReadingPastTheEnd() {
+        // The two-byte DRAW frame that used to break the conversion to text
+        byte[] draw = {0x01, BinaryCodec.OP_DRAW};
+        assertThrows(IllegalArgumentException.class, () -> BinaryCodec.check(draw));
+        assertThrows(IllegalArgumentException.class, () -> BinaryCodec.toText(draw));
+        assertThrows(IllegalArgumentException.class,
+                () -> BinaryCodec.decodeDraw(draw, new BinaryCodec.DrawOp()));
+
+        byte[] end = {0x03, BinaryCodec.OP_STROKE_END, (byte) 0x80, (byte) 0x80};
+        assertThrows(IllegalArgumentException.class,
+                () -> BinaryCodec.decodeStroke(end, new BinaryCodec.StrokeOp()));
+        assertThrows(IllegalArgumentException.class, () -> BinaryCodec.opcode(new byte[] {0x01}));
+    }
+
+    @Test
+    void rejectsCountsAndLengthsLargerThanTheFrame() {
+        // A name said to be 100 bytes long in a 5-byte payload
+        byte[] cursor = {0x06, BinaryCodec.OP_CURSOR, 100, 'a', 'b', 0, 0};
+        assertThrows(IllegalArgumentException.class,
+                () -> BinaryCodec.decodeCursor(cursor, new BinaryCodec.CursorOp()));
+        // A billion points, which must not be allocated
+        byte[] points = {0x07, BinaryCodec.OP_STROKE_POINTS, 1,
+                (byte) 0x80, (byte) 0x94, (byte) 0xEB, (byte) 0xDC, 0x03};
+        assertThrows(IllegalArgumentException.class,
+                () -> BinaryCodec.decodeStroke(points, new BinaryCodec.StrokeOp()));
+        byte[] cursors = {0x03, BinaryCodec.OP_CURSORS, 0x7F, 0};
+        assertThrows(IllegalArgumentException.class, () -> BinaryCodec.decodeCursors(cursors));
+    }
+
+    @Test
+    void rejectsWhatDecodesButIsNotAFrame() {
+        byte[] end = BinaryCodec.encodeStrokeEnd(7);
+        // One byte more than the payload needs
+        byte[] longer = withPayload(end, end.length - 1);
+        longer[longer.length - 1] = 0;
+        assertThrows(IllegalArgumentException.class, () -> BinaryCodec.check(longer));
+        // Length prefix that claims less than is there
+        byte[] extra = Arrays.copyOf(end, end.length + 1);
+        assertThrows(IllegalArgumentException.class, () -> BinaryCodec.check(extra));
+        assertThrows(IllegalArgumentException.class, () -> BinaryCodec.check(new byte[] {0x01, 99}));
+        // A board chunk carries drawing only
+        byte[] chat = BinaryCodec.encodeText("CHAT|a|b");
+        assertThrows(IllegalArgumentException.class,
+                () -> BinaryCodec.check(BinaryCodec.encodeBoardChunk(chat, 0, chat.length)));
+        byte[] draw = BinaryCodec.encodeDraw(1, 2, 3, 4, 0xFF000000, 3f);
+        assertThrows(IllegalArgumentException.class,
+                () -> BinaryCodec.check(BinaryCodec.encodeBoardChunk(draw, 0, draw.length - 1)));
+    }
+
+    @Test
+    void convertsToTextAndBack() {
+        for (byte[] frame : GOOD) {
+            String line = BinaryCodec.toText(frame);
+            assertEquals(line, BinaryCodec.toText(BinaryCodec.fromText(line)));
+        }
+    }
+
+    // The frame's length prefix and opcode followed by the first payloadLength
+    // bytes of its payload; frames here are under 128 bytes
+    private static byte[] withPayload(byte[] frame, int payloadLength) {
+        byte[] out = new byte[2 + payloadLength];
+        out[0] = (byte) (1 + payloadLength);
+        System.arraycopy(frame, 1, out, 1, Math.min(frame.length - 1, 1 + payloadLength));
+        return out;
+    }
+}
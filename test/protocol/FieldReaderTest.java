@@ -0,0 +1,122 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FieldReaderTest {
+
+    private final FieldReader f = new FieldReader();
+
+    @Test
+    void readsADrawLine() {
+        f.reset("DRAW|10|20|-12|24|-16777216|3.0");
+        assertEquals(10, f.nextInt());
+        assertEquals(20, f.nextInt());
+        assertEquals(-12, f.nextInt());
+        assertEquals(24, f.nextInt());
+        assertEquals(0xFF000000, f.nextColor());
+        assertEquals(3.0f, f.nextFloat());
+        assertFalse(f.hasNext());
+    }
+
+    @Test
+    void emptyFieldsAreFieldsButNotNumbers() {
+        f.reset("CHAT||x|");
+        assertTrue(f.hasNext());
+        assertEquals("", f.nextString());
+        assertEquals("x", f.nextString());
+        assertTrue(f.hasNext());
+        assertThrows(NumberFormatException.class, f::nextInt);
+
+        assertThrows(NumberFormatException.class, () -> f.reset("DRAW||2").nextInt());
+        f.reset("DRAW|1||3");
+        assertEquals(1, f.nextInt());
+        assertThrows(NumberFormatException.class, f::nextInt);
+        assertThrows(NumberFormatException.class, () -> f.reset("STROKE_WIDTH|").nextFloat());
+        assertThrows(NumberFormatException.class, () -> f.reset("COLOR|").nextColor());
+    }
+
+    @Test
+    void aLineWithoutFieldsHasNone() {
+        f.reset("CLEAR");
+        assertFalse(f.hasNext());
+        assertThrows(NumberFormatException.class, f::nextString);
+        assertThrows(NumberFormatException.class, f::skip);
+        assertThrows(NumberFormatException.class, f::rest);
+
+        f.reset("");
+        assertFalse(f.hasNext());
+    }
+
+    @Test
+    void runningOutOfFieldsThrows() {
+        f.reset("CURSOR|alice|5");
+        f.skip();
+        assertEquals(5, f.nextInt());
+        assertFalse(f.hasNext());
+        assertThrows(NumberFormatException.class, f::nextInt);
+    }
+
+    @Test
+    void rejectsMalformedIntegers() {
+        for (String field : new String[] {"1a", "a1", "-", "--1", "1-", "+1", " 1", "1.5", "0x10"}) {
+            assertThrows(NumberFormatException.class, () -> f.reset("N|" + field).nextLong(), field);
+        }
+    }
+
+    @Test
+    void rejectsNumbersOutOfRange() {
+        assertEquals(Integer.MAX_VALUE, f.reset("N|2147483647").nextInt());
+        assertEquals(Integer.MIN_VALUE, f.reset("N|-2147483648").nextInt());
+        assertThrows(NumberFormatException.class, () -> f.reset("N|2147483648").nextInt());
+        assertThrows(NumberFormatException.class, () -> f.reset("N|-2147483649").nextInt());
+
+        assertEquals(999_999_999_999_999_999L, f.reset("N|999999999999999999").nextLong());
+        assertThrows(NumberFormatException.class, () -> f.reset("N|1000000000000000000").nextLong());
+    }
+
+    @Test
+    void readsColoursSignedOrUnsigned() {
+        assertEquals(0xFF000000, f.reset("C|-16777216").nextColor());
+        assertEquals(0xFF000000, f.reset("C|4278190080").nextColor());
+        assertEquals(-1, f.reset("C|4294967295").nextColor());
+        assertThrows(NumberFormatException.class, () -> f.reset("C|4294967296").nextColor());
+        assertThrows(NumberFormatException.class, () -> f.reset("C|-2147483649").nextColor());
+    }
+
+    @Test
+    void floatsMatchFloatParseFloat() {
+        String[] fields = {"0", "3", "3.0", "-3.0", "0.1", "-12.75", "123.456", "16777215",
+                "16777217", "0.000001", "99999.99", "1.", ".5", "1e3", "2.5E-2", "12345678901234567890"};
+        for (String field : fields) {
+            assertEquals(Float.parseFloat(field), f.reset("S|" + field).nextFloat(), field);
+        }
+    }
+
+    @Test
+    void rejectsMalformedFloats() {
+        for (String field : new String[] {"-", ".", "-.", "1.2.3", "abc", "1,5", "3.0f1"}) {
+            assertThrows(NumberFormatException.class, () -> f.reset("S|" + field).nextFloat(), field);
+        }
+    }
+
+    @Test
+    void restKeepsTheBars() {
+        f.reset("CHAT|bob|a|b||c");
+        assertEquals("bob", f.nextString());
+        assertEquals("a|b||c", f.rest());
+        assertFalse(f.hasNext());
+    }
+
+    @Test
+    void canBeReusedAfterAnError() {
+        assertThrows(NumberFormatException.class, () -> f.reset("N|x").nextInt());
+        f.reset("N|7|8");
+        assertEquals(7, f.nextInt());
+        assertEquals(8, f.nextInt());
+    }
+}
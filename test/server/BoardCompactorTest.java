@@ -0,0 +1,258 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import protocol.BinaryCodec;
+import protocol.WireMessage;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A compacted board must look exactly like the board it came from: both are
+ * drawn the way a client draws them and compared pixel by pixel.
+ */
+class BoardCompactorTest {
+
+    private static final int SIZE = 400;
+    private static final int BLACK = 0xFF000000;
+    private static final int WHITE = 0xFFFFFFFF;
+    private static final int RED = 0xFFFF0000;
+
+    private final ByteArrayOutputStream board = new ByteArrayOutputStream();
+
+    @Test
+    void dropsSegmentsUnderTheEraser() {
+        for (int y = 100; y < 120; y += 4) {
+            draw(50, y, 150, y, BLACK, 2f);
+        }
+        // Reaches past the end of the first line, which stays
+        draw(20, 100, 60, 100, BLACK, 2f);
+        draw(60, 110, 140, 110, WHITE, 40f);
+
+        BoardCompactor.Result r = compact();
+        assertTrue(r.operations < 7, "hidden segments kept: " + r.operations);
+        assertSameBoard(board.toByteArray(), r);
+    }
+
+    @Test
+    void joinsConnectedSegmentsIntoStrokes() {
+        int x = 10, y = 200;
+        for (int i = 0; i < 100; i++) {
+            int ny = 200 + (i % 2) * 2;
+            draw(x, y, x + 3, ny, BLACK, 3f);
+            x += 3;
+            y = ny;
+        }
+
+        BoardCompactor.Result r = compact();
+        assertTrue(r.length < board.size() / 2, r.length + " of " + board.size() + " bytes");
+        assertSameBoard(board.toByteArray(), r);
+    }
+
+    @Test
+    void keepsOpenStrokesWhereTheyWere() {
+        strokeBegin(7, 100, 100, BLACK, 6f);
+        strokePoints(7, 100, 0);
+        // Drawn across the open stroke, so it must stay on top of it
+        draw(150, 50, 150, 150, RED, 10f);
+        strokeBegin(8, 50, 300, BLACK, 4f);
+        strokePoints(8, 50, 0, 50, 0);
+        strokeEnd(8);
+
+        BoardCompactor.Result r = compact();
+        assertSameBoard(board.toByteArray(), r);
+        assertEquals(RED, render(r.frames, r.length)[150 * SIZE + 150]);
+
+        // Points that arrive after the compaction still find their stroke
+        ByteArrayOutputStream after = new ByteArrayOutputStream();
+        after.write(r.frames, 0, r.length);
+        byte[] more = BinaryCodec.encodeStrokePoints(7, new int[] {0, 80}, 1);
+        byte[] end = BinaryCodec.encodeStrokeEnd(7);
+        board.write(more, 0, more.length);
+        board.write(end, 0, end.length);
+        after.write(more, 0, more.length);
+        after.write(end, 0, end.length);
+        assertArrayEquals(render(board.toByteArray(), board.size()), render(after.toByteArray(), after.size()));
+    }
+
+    @Test
+    void interleavedOpenStrokesKeepTheirOrder() {
+        strokeBegin(1, 20, 20, BLACK, 8f);
+        draw(10, 30, 300, 30, RED, 8f);
+        strokePoints(1, 0, 40);
+        strokeBegin(2, 10, 40, WHITE, 8f);
+        strokePoints(2, 60, 0);
+        draw(30, 10, 30, 80, BLACK, 2f);
+        strokePoints(1, 40, 0, 0, 40);
+        draw(40, 60, 80, 60, RED, 12f);
+
+        assertSameBoard(board.toByteArray(), compact());
+    }
+
+    @Test
+    void compactsOnlyWhatCameAfterClear() {
+        BoardState state = new BoardState();
+        state.append(WireMessage.ofFrame(BinaryCodec.encodeDraw(10, 10, 390, 390, BLACK, 20f)));
+        state.clear();
+        for (int y = 40; y < 80; y += 5) {
+            state.append(WireMessage.ofFrame(BinaryCodec.encodeDraw(40, y, 200, y, RED, 2f)));
+        }
+        state.append(WireMessage.ofFrame(BinaryCodec.encodeDraw(60, 60, 180, 60, WHITE, 60f)));
+        byte[] before = frames(state);
+
+        state.compact();
+        byte[] after = frames(state);
+        assertArrayEquals(render(before, before.length), render(after, after.length));
+        assertEquals(WHITE, render(after, after.length)[10 * SIZE + 10]);
+        assertTrue(state.operations() < 9, "operations: " + state.operations());
+    }
+
+    @Test
+    void discardsACompactionOvertakenByClear() {
+        BoardState state = new BoardState();
+        state.append(WireMessage.ofFrame(BinaryCodec.encodeDraw(10, 10, 100, 10, BLACK, 2f)));
+        BoardState.Pending pending = state.beginCompaction();
+        state.clear();
+        state.append(WireMessage.ofFrame(BinaryCodec.encodeDraw(10, 50, 100, 50, RED, 2f)));
+
+        BoardCompactor.Result r = BoardCompactor.compact(pending.frames, pending.frames.length);
+        assertFalse(state.finishCompaction(pending, r));
+        assertEquals(1, state.operations());
+    }
+
+    @Test
+    void keepsWhatWasAddedDuringTheCompaction() {
+        BoardState state = new BoardState();
+        for (int y = 10; y < 50; y += 4) {
+            state.append(WireMessage.ofFrame(BinaryCodec.encodeDraw(10, y, 100, y, BLACK, 2f)));
+        }
+        state.append(WireMessage.ofFrame(BinaryCodec.encodeDraw(20, 30, 90, 30, WHITE, 50f)));
+        BoardState.Pending pending = state.beginCompaction();
+        state.append(WireMessage.ofFrame(BinaryCodec.encodeDraw(50, 0, 50, 100, RED, 6f)));
+        byte[] before = frames(state);
+
+        BoardCompactor.Result r = BoardCompactor.compact(pending.frames, pending.frames.length);
+        assertTrue(state.finishCompaction(pending, r));
+        byte[] after = frames(state);
+        assertArrayEquals(render(before, before.length), render(after, after.length));
+    }
+
+    // ---- Building boards ----
+
+    private void draw(int x1, int y1, int x2, int y2, int argb, float width) {
+        add(BinaryCodec.encodeDraw(x1, y1, x2, y2, argb, width));
+    }
+
+    private void strokeBegin(long id, int x, int y, int argb, float width) {
+        add(BinaryCodec.encodeStrokeBegin(id, x, y, argb, width));
+    }
+
+    private void strokePoints(long id, int... deltas) {
+        add(BinaryCodec.encodeStrokePoints(id, deltas, deltas.length / 2));
+    }
+
+    private void strokeEnd(long id) {
+        add(BinaryCodec.encodeStrokeEnd(id));
+    }
+
+    private void add(byte[] frame) {
+        board.write(frame, 0, frame.length);
+    }
+
+    private BoardCompactor.Result compact() {
+        byte[] data = board.toByteArray();
+        return BoardCompactor.compact(data, data.length);
+    }
+
+    private static byte[] frames(BoardState state) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        state.forEachFrame(frame -> out.write(frame, 0, frame.length));
+        return out.toByteArray();
+    }
+
+    // ---- Drawing boards ----
+
+    private static void assertSameBoard(byte[] original, BoardCompactor.Result compacted) {
+        assertArrayEquals(render(original, original.length), render(compacted.frames, compacted.length));
+    }
+
+    // The board's pixels, each segment drawn in order with round ends as a
+    // client draws it, without anti-aliasing so that equal means equal
+    private static int[] render(byte[] data, int length) {
+        BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, SIZE, SIZE);
+        Map<Long, Pen> strokes = new HashMap<>();
+        BinaryCodec.DrawOp d = new BinaryCodec.DrawOp();
+        BinaryCodec.StrokeOp s = new BinaryCodec.StrokeOp();
+        int pos = 0;
+        while (pos < length) {
+            int len = BinaryCodec.frameLength(data, pos, length);
+            byte[] frame = Arrays.copyOfRange(data, pos, pos + len);
+            pos += len;
+            switch (BinaryCodec.opcode(frame)) {
+                case BinaryCodec.OP_DRAW:
+                    BinaryCodec.decodeDraw(frame, d);
+                    line(g, d.x1, d.y1, d.x2, d.y2, d.argb, d.stroke);
+                    break;
+                case BinaryCodec.OP_STROKE_BEGIN:
+                    BinaryCodec.decodeStroke(frame, s);
+                    strokes.put(s.strokeId, new Pen(s.x, s.y, s.argb, s.stroke));
+                    break;
+                case BinaryCodec.OP_STROKE_POINTS: {
+                    BinaryCodec.decodeStroke(frame, s);
+                    Pen pen = strokes.get(s.strokeId);
+                    if (pen == null) break;
+                    for (int i = 0; i + 1 < s.deltas.length; i += 2) {
+                        int x = pen.x + s.deltas[i];
+                        int y = pen.y + s.deltas[i + 1];
+                        line(g, pen.x, pen.y, x, y, pen.argb, pen.width);
+                        pen.x = x;
+                        pen.y = y;
+                    }
+                    break;
+                }
+                case BinaryCodec.OP_STROKE_END:
+                    BinaryCodec.decodeStroke(frame, s);
+                    strokes.remove(s.strokeId);
+                    break;
+                default:
+                    break;
+            }
+        }
+        g.dispose();
+        return image.getRGB(0, 0, SIZE, SIZE, null, 0, SIZE);
+    }
+
+    // Where an open stroke has got to
+    private static final class Pen {
+        int x, y;
+        final int argb;
+        final float width;
+
+        Pen(int x, int y, int argb, float width) {
+            this.x = x;
+            this.y = y;
+            this.argb = argb;
+            this.width = width;
+        }
+    }
+
+    private static void line(Graphics2D g, int x1, int y1, int x2, int y2, int argb, float width) {
+        g.setColor(new Color(argb, true));
+        g.setStroke(new BasicStroke(width, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        g.drawLine(x1, y1, x2, y2);
+    }
+}
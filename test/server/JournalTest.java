@@ -0,0 +1,178 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import protocol.BinaryCodec;
+import protocol.WireMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Writes journals, damages them the way a crash would, and checks what
+ * replay makes of them.
+ */
+class JournalTest {
+
+    private static final int SEGMENT = 64 * 1024;
+
+    @TempDir
+    File dir;
+
+    @Test
+    void replaysWhatWasWritten() throws IOException {
+        write(SEGMENT, "CHAT|a|one", "CHAT|a|two", "CLEAR|");
+
+        assertEquals(List.of("1 CHAT|a|one", "2 CHAT|a|two", "3 CLEAR|"), replay(SEGMENT));
+    }
+
+    @Test
+    void stopsAtATornRecordAndWritesOverIt() throws IOException {
+        write(SEGMENT, "CHAT|a|one", "CHAT|a|two", "CHAT|a|three");
+        // The crash hit while the last record was being copied in
+        int last = 2 * recordSize("CHAT|a|one");
+        zero(segments()[0], last + 16, recordSize("CHAT|a|three") - 16);
+
+        assertEquals(List.of("1 CHAT|a|one", "2 CHAT|a|two"), replay(SEGMENT));
+
+        // The next server goes on from the last intact record
+        write(SEGMENT, "CHAT|a|again");
+        assertEquals(List.of("1 CHAT|a|one", "2 CHAT|a|two", "3 CHAT|a|again"), replay(SEGMENT));
+    }
+
+    @Test
+    void ignoresEverythingAfterAChecksumMismatch() throws IOException {
+        write(SEGMENT, "CHAT|a|one", "CHAT|a|two", "CHAT|a|three");
+        int second = recordSize("CHAT|a|one");
+        flipBit(segments()[0], second + 20);
+
+        assertEquals(List.of("1 CHAT|a|one"), replay(SEGMENT));
+    }
+
+    @Test
+    void rollsOverIntoNewSegments() throws IOException {
+        int segment = 4 * recordSize("CHAT|a|message 00") + 4;
+        AtomicInteger sealed = new AtomicInteger();
+        Journal journal = new Journal(dir, ServerConfig.JournalSync.ALWAYS, 1000, segment);
+        journal.setOnSegmentSealed(sealed::incrementAndGet);
+        journal.replay((seq, msg) -> {});
+        journal.start();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            String line = String.format("CHAT|a|message %02d", i);
+            journal.append(WireMessage.ofText(line));
+            expected.add((i + 1) + " " + line);
+        }
+        journal.close();
+
+        assertEquals(5, segments().length);
+        assertEquals(4, sealed.get());
+        assertEquals(4, journal.sealedSegments().length);
+        assertEquals(expected, replay(segment));
+    }
+
+    @Test
+    void leavesOutMessagesLargerThanASegment() throws IOException {
+        int segment = 256;
+        Journal journal = new Journal(dir, ServerConfig.JournalSync.ALWAYS, 1000, segment);
+        journal.replay((seq, msg) -> {});
+        journal.start();
+        journal.append(WireMessage.ofText("CHAT|a|before"));
+        journal.append(WireMessage.ofText("CHAT|a|" + "x".repeat(segment)));
+        journal.append(WireMessage.ofText("CHAT|a|after"));
+        journal.close();
+
+        assertEquals(List.of("1 CHAT|a|before", "2 CHAT|a|after"), replay(segment));
+    }
+
+    @Test
+    void keepsWritingWhenTheSegmentListenerFails() throws IOException {
+        int segment = 2 * recordSize("CHAT|a|n0") + 4;
+        Journal journal = new Journal(dir, ServerConfig.JournalSync.ALWAYS, 1000, segment);
+        journal.setOnSegmentSealed(() -> {
+            throw new IllegalStateException("compactor broke");
+        });
+        journal.replay((seq, msg) -> {});
+        journal.start();
+        for (int i = 0; i < 6; i++) {
+            journal.append(WireMessage.ofText("CHAT|a|n" + i));
+        }
+        journal.close();
+
+        List<String> replayed = replay(segment);
+        assertEquals(6, replayed.size());
+        assertEquals("6 CHAT|a|n5", replayed.get(5));
+    }
+
+    @Test
+    void skipsRecordsThatDoNotDecode() throws IOException {
+        write(SEGMENT, "CHAT|a|placeholder");
+        // Intact records, but the second frame was cut short before it was journaled
+        CRC32 crc = new CRC32();
+        ByteBuffer records = ByteBuffer.allocate(256);
+        records = Journal.putRecord(records, crc, 1, BinaryCodec.encodeText("CHAT|a|one"));
+        records = Journal.putRecord(records, crc, 2, new byte[] {0x01, BinaryCodec.OP_DRAW});
+        records = Journal.putRecord(records, crc, 3, BinaryCodec.encodeDraw(1, 2, 3, 4, 0xFF000000, 2f));
+        records.putInt(0);
+        try (RandomAccessFile f = new RandomAccessFile(segments()[0], "rw")) {
+            f.write(records.array(), 0, records.position());
+        }
+
+        assertEquals(List.of("1 CHAT|a|one", "3 DRAW|1|2|3|4|-16777216|2.0"), replay(SEGMENT));
+    }
+
+    // ---- Helpers ----
+
+    private void write(int segment, String... lines) throws IOException {
+        Journal journal = new Journal(dir, ServerConfig.JournalSync.ALWAYS, 1000, segment);
+        journal.replay((seq, msg) -> {});
+        journal.start();
+        for (String line : lines) {
+            journal.append(WireMessage.ofText(line));
+        }
+        journal.close();
+    }
+
+    private List<String> replay(int segment) throws IOException {
+        List<String> out = new ArrayList<>();
+        Journal journal = new Journal(dir, ServerConfig.JournalSync.ALWAYS, 1000, segment);
+        journal.replay((seq, msg) -> out.add(seq + " " + msg.text()));
+        return out;
+    }
+
+    private File[] segments() {
+        File[] files = Journal.segmentFiles(dir);
+        assertTrue(files.length > 0, "no segment in " + dir);
+        return files;
+    }
+
+    // length, crc and sequence, then the frame
+    private static int recordSize(String line) {
+        return 16 + WireMessage.ofText(line).frame().length;
+    }
+
+    private static void zero(File file, int offset, int length) throws IOException {
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.seek(offset);
+            f.write(new byte[length]);
+        }
+    }
+
+    private static void flipBit(File file, int offset) throws IOException {
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.seek(offset);
+            int b = f.read();
+            f.seek(offset);
+            f.write(b ^ 0x10);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import protocol.WireMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReplayRingTest {
+
+    private static final int NO_CHECKPOINTS = Integer.MAX_VALUE;
+
+    @Test
+    void numbersBroadcastsFromOne() {
+        ReplayRing ring = new ReplayRing(8);
+        assertEquals(0, ring.last());
+        assertEquals(1, append(ring, "CHAT|a|1"));
+        assertEquals(2, append(ring, "CHAT|a|2"));
+        assertEquals(2, ring.last());
+        assertEquals("CHAT|a|1", ring.get(1).message.text());
+        assertEquals(2, ring.get(2).seq);
+    }
+
+    @Test
+    void forgetsWhatItWrappedOver() {
+        ReplayRing ring = new ReplayRing(4);
+        for (int i = 1; i <= 10; i++) {
+            append(ring, "CHAT|a|" + i);
+        }
+
+        for (long seq = 1; seq <= 6; seq++) {
+            assertNull(ring.get(seq), "seq " + seq);
+        }
+        for (long seq = 7; seq <= 10; seq++) {
+            assertEquals("CHAT|a|" + seq, ring.get(seq).message.text());
+        }
+        assertTrue(ring.covers(10));
+        assertTrue(ring.covers(6));
+        assertFalse(ring.covers(5));
+        assertFalse(ring.covers(11));
+        assertFalse(ring.covers(-1));
+    }
+
+    @Test
+    void resumesAfterTheLastBroadcastReceived() {
+        ReplayRing ring = new ReplayRing(4);
+        for (int i = 1; i <= 6; i++) {
+            append(ring, "CHAT|a|" + i);
+        }
+
+        assertEquals(List.of("CHAT|a|4", "CHAT|a|5", "CHAT|a|6"), replay(ring, 3, 0, "bob"));
+        // Two of them arrived before the connection dropped
+        assertEquals(List.of("CHAT|a|6"), replay(ring, 3, 2, "bob"));
+        assertEquals(List.of(), replay(ring, 6, 0, "bob"));
+        // Across the wrap: seq 3..6 sit in slots 3, 0, 1, 2
+        assertEquals(List.of("CHAT|a|3", "CHAT|a|4", "CHAT|a|5", "CHAT|a|6"), replay(ring, 2, 0, "bob"));
+    }
+
+    @Test
+    void replaySkipsWhatTheClientWasLeftOutOf() {
+        ReplayRing ring = new ReplayRing(8);
+        ring.append(WireMessage.ofText("DRAW|1|1|2|2|-1|3.0"), "bob", null, NO_CHECKPOINTS);
+        ring.append(WireMessage.ofText("DRAW|3|3|4|4|-1|3.0"), "alice", null, NO_CHECKPOINTS);
+        // Left out a member of that name on another node, not this bob
+        ring.append(WireMessage.ofText("DRAW|5|5|6|6|-1|3.0"), "bob", "n2", NO_CHECKPOINTS);
+
+        assertTrue(ring.get(1).excludes("bob"));
+        assertFalse(ring.get(3).excludes("bob"));
+        assertEquals(List.of("DRAW|3|3|4|4|-1|3.0", "DRAW|5|5|6|6|-1|3.0"), replay(ring, 0, 0, "bob"));
+        assertEquals(List.of("DRAW|5|5|6|6|-1|3.0"), replay(ring, 0, 1, "bob"));
+        assertEquals(List.of("DRAW|1|1|2|2|-1|3.0", "DRAW|5|5|6|6|-1|3.0"), replay(ring, 0, 0, "alice"));
+    }
+
+    @Test
+    void attachesCheckpoints() {
+        ReplayRing ring = new ReplayRing(16);
+        for (int i = 1; i <= 7; i++) {
+            ring.append(WireMessage.ofText("CHAT|a|" + i), null, null, 3);
+        }
+
+        assertNull(ring.get(1).checkpoint);
+        assertEquals("SEQ|3", ring.get(3).checkpoint.text());
+        assertEquals("SEQ|6", ring.get(6).checkpoint.text());
+        assertNull(ring.get(7).checkpoint);
+    }
+
+    @Test
+    void cursorIsHeldByOneThreadAtATime() {
+        ReplayRing.Cursor cursor = new ReplayRing.Cursor();
+        assertTrue(cursor.tryHold());
+        assertFalse(cursor.tryHold());
+        cursor.release();
+        assertTrue(cursor.tryHold());
+    }
+
+    private static long append(ReplayRing ring, String line) {
+        return ring.append(WireMessage.ofText(line), null, null, NO_CHECKPOINTS);
+    }
+
+    private static List<String> replay(ReplayRing ring, long seq, int skip, String username) {
+        List<String> out = new ArrayList<>();
+        int sent = ring.replay(seq, skip, username, msg -> out.add(msg.text()));
+        assertEquals(out.size(), sent);
+        return out;
+    }
+}